@@ -0,0 +1,60 @@
+package it.davideorlandi.lithophanizer.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.davideorlandi.lithophanizer.BrightnessPlane;
+
+/**
+ * Conversion of a decoded image to brightness values, for the image types with a fast path and
+ * one converted through RGB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrightnessBenchmark
+{
+    /** Image size, as widthxheight. */
+    @Param({ "256x160", "1024x640", "4096x2560" })
+    public String size;
+
+    /** Image type: TYPE_3BYTE_BGR, TYPE_BYTE_GRAY, TYPE_INT_RGB or TYPE_USHORT_565_RGB. */
+    @Param({ "5", "10", "1", "8" })
+    public int imageType;
+
+    private BufferedImage image;
+
+    /**
+     * Creates the synthetic image.
+     */
+    @Setup
+    public void setUp()
+    {
+        image = SyntheticImages.create(size, imageType);
+    }
+
+    /**
+     * Reads the brightness of all the pixels.
+     * @return brightness, so that the conversion is not eliminated.
+     */
+    @Benchmark
+    public BrightnessPlane fromImage()
+    {
+        return BrightnessPlane.fromImage(image);
+    }
+}
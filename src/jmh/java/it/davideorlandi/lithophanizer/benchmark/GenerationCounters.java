@@ -0,0 +1,31 @@
+package it.davideorlandi.lithophanizer.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results reported by JMH as rates: triangles/s and bytes/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class GenerationCounters
+{
+    /** Triangles generated or written. */
+    public long triangles;
+
+    /** Bytes written. */
+    public long bytes;
+
+    /**
+     * Resets the counters before each iteration.
+     */
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        triangles = 0;
+        bytes = 0;
+    }
+}
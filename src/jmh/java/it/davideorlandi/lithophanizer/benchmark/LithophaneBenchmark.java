@@ -0,0 +1,90 @@
+package it.davideorlandi.lithophanizer.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.davideorlandi.lithophanizer.Lithophanizer;
+import it.davideorlandi.lithophanizer.RoughFace;
+
+/**
+ * Generation of a whole binary STL model on a single thread: layer creation, normals and
+ * serialization, without disk writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LithophaneBenchmark
+{
+    /** Image size, as widthxheight. */
+    @Param({ "256x160", "1024x640", "2048x1280" })
+    public String size;
+
+    @Param({ "BOTH", "INSIDE", "OUTSIDE" })
+    public RoughFace roughFace;
+
+    private File image;
+
+    /**
+     * Writes the synthetic image.
+     * @throws IOException error writing the image.
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        image = SyntheticImages.createFile(size);
+    }
+
+    /**
+     * Generates the model, discarding the output.
+     * @param counters triangles and bytes.
+     * @throws IOException error reading the image.
+     */
+    @Benchmark
+    public void generateStl(final GenerationCounters counters) throws IOException
+    {
+        Lithophanizer lithophanizer = new Lithophanizer(image, null, 60.0, 0.6, 3.0, 3.0, 3.0,
+                2.0, 3.0, 3.0, 2.0, roughFace);
+        lithophanizer.setVerbose(false);
+        CountingOutputStream stream = new CountingOutputStream();
+        lithophanizer.generateLithophane(stream);
+        counters.triangles += lithophanizer.getTriangleCount();
+        counters.bytes += stream.count;
+    }
+
+    /**
+     * Output stream that only counts the bytes.
+     */
+    private static final class CountingOutputStream extends OutputStream
+    {
+        private long count;
+
+        @Override
+        public void write(final int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len)
+        {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package it.davideorlandi.lithophanizer.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Reproducible synthetic images for the benchmarks: a diagonal gradient with noise, so that
+ * neighbouring pixels differ as in a photo.
+ */
+final class SyntheticImages
+{
+    /** Seed of the noise, fixed so that every run uses the same pixels. */
+    private static final long SEED = 42;
+
+    /**
+     * Private constructor: only static methods.
+     */
+    private SyntheticImages()
+    {
+        // no instances
+    }
+
+    /**
+     * Parses a size parameter.
+     * @param size size as "widthxheight".
+     * @return width and height.
+     */
+    static int [] parseSize(final String size)
+    {
+        String [] parts = size.split("x");
+        return new int [] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) };
+    }
+
+    /**
+     * Creates an image.
+     * @param size size as "widthxheight".
+     * @param type image type (one of the BufferedImage.TYPE_* constants).
+     * @return image.
+     */
+    static BufferedImage create(final String size, final int type)
+    {
+        int [] wh = parseSize(size);
+        int width = wh[0];
+        int height = wh[1];
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(SEED);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int base = (255 * (x + y)) / (width + height);
+                int r = clamp(base + random.nextInt(32) - 16);
+                int g = clamp(base + random.nextInt(32) - 16);
+                int b = clamp(base + random.nextInt(32) - 16);
+                image.setRGB(x, y, 0xFF000000 | (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Creates an RGB image and saves it as a temporary PNG file, deleted on exit.
+     * @param size size as "widthxheight".
+     * @return image file.
+     * @throws IOException error writing the file.
+     */
+    static File createFile(final String size) throws IOException
+    {
+        File file = File.createTempFile("lithophanizer-benchmark-" + size + "-", ".png");
+        file.deleteOnExit();
+        ImageIO.write(create(size, BufferedImage.TYPE_3BYTE_BGR), "png", file);
+        return file;
+    }
+
+    private static int clamp(final int value)
+    {
+        return Math.max(0, Math.min(255, value));
+    }
+}
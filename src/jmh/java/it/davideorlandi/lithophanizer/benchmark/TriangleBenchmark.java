@@ -0,0 +1,97 @@
+package it.davideorlandi.lithophanizer.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.davideorlandi.lithophanizer.Lithophanizer;
+import it.davideorlandi.lithophanizer.RoughFace;
+import it.davideorlandi.lithophanizer.Triangle;
+
+/**
+ * Serialization of triangles (normal calculation included) with the vertices of a real model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TriangleBenchmark
+{
+    /** Image size, as widthxheight. */
+    @Param({ "256x160", "1024x640" })
+    public String size;
+
+    @Param({ "BOTH", "INSIDE", "OUTSIDE" })
+    public RoughFace roughFace;
+
+    /** Vertex coordinates, 9 per triangle. */
+    private float [] vertices;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Generates the model and extracts the vertices of its triangles.
+     * @throws IOException error generating the model.
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        File image = SyntheticImages.createFile(size);
+        Lithophanizer lithophanizer = new Lithophanizer(image, null, 60.0, 0.6, 3.0, 3.0, 3.0,
+                2.0, 3.0, 3.0, 2.0, roughFace);
+        lithophanizer.setVerbose(false);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        lithophanizer.generateLithophane(stream);
+
+        ByteBuffer stl = ByteBuffer.wrap(stream.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        int count = stl.getInt(80);
+        vertices = new float [count * 9];
+        for (int t = 0; t < count; t++)
+        {
+            // skip the normal
+            int offset = 84 + (t * Triangle.BINARY_SIZE) + 12;
+            for (int i = 0; i < 9; i++)
+            {
+                vertices[(t * 9) + i] = stl.getFloat(offset + (i * 4));
+            }
+        }
+        buffer = ByteBuffer.allocate(count * Triangle.BINARY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes all the triangles of the model.
+     * @param counters triangles and bytes.
+     * @return the buffer, so that the writes are not eliminated.
+     */
+    @Benchmark
+    public ByteBuffer writeBinary(final GenerationCounters counters)
+    {
+        buffer.clear();
+        float [] v = vertices;
+        for (int i = 0; i < v.length; i += 9)
+        {
+            Triangle.writeBinary(buffer, v[i], v[i + 1], v[i + 2], v[i + 3], v[i + 4], v[i + 5],
+                    v[i + 6], v[i + 7], v[i + 8]);
+        }
+        counters.triangles += v.length / 9;
+        counters.bytes += buffer.position();
+        return buffer;
+    }
+}
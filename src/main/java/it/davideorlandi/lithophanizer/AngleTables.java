@@ -0,0 +1,69 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precalculated cosine and sine of the angle of each column of an image wrapped around a
+ * cylinder; for a whole cylinder they only depend on the number of columns.
+ * @param cos cosine of each column angle.
+ * @param sin sine of each column angle.
+ * @param midCos cosine of the angle halfway between each column and the next one.
+ * @param midSin sine of the angle halfway between each column and the next one.
+ */
+public record AngleTables(double [] cos, double [] sin, double [] midCos, double [] midSin)
+{
+    /**
+     * Calculates the tables for an image width.
+     * @param width number of columns.
+     * @return tables.
+     */
+    public static AngleTables calculate(final int width)
+    {
+        return calculate(width, 0.0, (2.0 * Math.PI) / width);
+    }
+
+    /**
+     * Calculates the tables for columns at regular angles.
+     * @param width number of columns.
+     * @param startAngle angle of the first column, in radians.
+     * @param angleStep angle between two consecutive columns, in radians.
+     * @return tables.
+     */
+    public static AngleTables calculate(final int width, final double startAngle,
+            final double angleStep)
+    {
+        double [] cos = new double [width];
+        double [] sin = new double [width];
+        double [] midCos = new double [width];
+        double [] midSin = new double [width];
+        for (int col = 0; col < width; col++)
+        {
+            double a = startAngle + (col * angleStep);
+            cos[col] = Math.cos(a);
+            sin[col] = Math.sin(a);
+            double mid = startAngle + ((col + 0.5) * angleStep);
+            midCos[col] = Math.cos(mid);
+            midSin[col] = Math.sin(mid);
+        }
+        return new AngleTables(cos, sin, midCos, midSin);
+    }
+
+    /**
+     * Tables shared between lithophanes with the same width; safe for concurrent use.
+     */
+    public static final class Cache
+    {
+        private final Map<Integer, AngleTables> tables = new ConcurrentHashMap<>();
+
+        /**
+         * Returns the tables for an image width, calculating them the first time.
+         * @param width number of columns.
+         * @return tables; they must not be modified.
+         */
+        public AngleTables get(final int width)
+        {
+            return tables.computeIfAbsent(width, AngleTables::calculate);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downsamples the brightness of an image by area averaging: each destination pixel is the
+ * average of the source pixels it covers, weighted by the covered fraction of each of them.
+ * <p>
+ * Since thickness is linear in brightness, the average thickness of each area is preserved.
+ * </p>
+ */
+public final class AreaResampler
+{
+    /** Number of tasks for each thread, to balance the load. */
+    private static final int TASKS_PER_THREAD = 4;
+
+    /** Source width. */
+    private final int sourceWidth;
+
+    /** Horizontal contributions of the source pixels to each destination column. */
+    private final Contributions columns;
+
+    /** Vertical contributions of the source rows to each destination row. */
+    private final Contributions rows;
+
+    private final BrightnessSource source;
+
+    private final BrightnessPlane destination;
+
+    /**
+     * Constructor.
+     * @param source source image.
+     * @param width destination width, not larger than the source width.
+     * @param height destination height, not larger than the source height.
+     */
+    private AreaResampler(final BrightnessSource source, final int width, final int height)
+    {
+        this.source = source;
+        this.sourceWidth = source.getWidth();
+        this.columns = new Contributions(sourceWidth, width);
+        this.rows = new Contributions(source.getHeight(), height);
+        this.destination = new BrightnessPlane(width, height);
+    }
+
+    /**
+     * Downsamples an image.
+     * @param source source image.
+     * @param width destination width, not larger than the source width.
+     * @param height destination height, not larger than the source height.
+     * @param threads number of threads; rows are split between them.
+     * @return downsampled image.
+     * @throws IOException interrupted while waiting for the threads.
+     */
+    public static BrightnessPlane resample(final BrightnessSource source, final int width,
+            final int height, final int threads) throws IOException
+    {
+        if ((width < 1) || (height < 1) || (width > source.getWidth())
+                || (height > source.getHeight()))
+            throw new IllegalArgumentException(String.format(
+                    "Cannot resample a %dx%d image to %dx%d", source.getWidth(),
+                    source.getHeight(), width, height));
+        AreaResampler resampler = new AreaResampler(source, width, height);
+        if (threads <= 1)
+        {
+            resampler.resampleRows(0, height);
+            return resampler.destination;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            int tasks = Math.min(height, threads * TASKS_PER_THREAD);
+            List<Future<?>> futures = new ArrayList<>(tasks);
+            for (int task = 0; task < tasks; task++)
+            {
+                int firstRow = (int) (((long) height * task) / tasks);
+                int lastRow = (int) (((long) height * (task + 1)) / tasks);
+                futures.add(executor.submit(() -> resampler.resampleRows(firstRow, lastRow)));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+            return resampler.destination;
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            if (e.getCause() instanceof Error error)
+                throw error;
+            throw new IOException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Resampling interrupted");
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Calculates a range of destination rows.
+     * @param firstRow first destination row.
+     * @param endRow destination row after the last one.
+     */
+    private void resampleRows(final int firstRow, final int endRow)
+    {
+        double [] sum = new double [sourceWidth];
+        for (int y = firstRow; y < endRow; y++)
+        {
+            // average the covered source rows...
+            Arrays.fill(sum, 0.0);
+            int offset = rows.offsets[y];
+            for (int i = 0; i < rows.counts[y]; i++)
+            {
+                int sourceRow = rows.firsts[y] + i;
+                double weight = rows.weights[offset + i];
+                for (int x = 0; x < sourceWidth; x++)
+                {
+                    sum[x] += weight * source.get(x, sourceRow);
+                }
+            }
+
+            // ...then the covered columns
+            for (int x = 0; x < destination.getWidth(); x++)
+            {
+                double value = 0.0;
+                int columnOffset = columns.offsets[x];
+                for (int i = 0; i < columns.counts[x]; i++)
+                {
+                    value += columns.weights[columnOffset + i] * sum[columns.firsts[x] + i];
+                }
+                destination.set(x, y,
+                        (int) Math.min(BrightnessSource.MAX_BRIGHTNESS, Math.round(value)));
+            }
+        }
+    }
+
+    /**
+     * Source pixels covered by each destination pixel along one axis, with their weights; the
+     * weights of each destination pixel add up to 1.
+     */
+    private static final class Contributions
+    {
+        /** First covered source pixel. */
+        final int [] firsts;
+
+        /** Number of covered source pixels. */
+        final int [] counts;
+
+        /** Offset of the weights of each destination pixel. */
+        final int [] offsets;
+
+        /** Weights of the covered source pixels. */
+        final double [] weights;
+
+        /**
+         * Constructor.
+         * @param sourceSize number of source pixels.
+         * @param destinationSize number of destination pixels.
+         */
+        Contributions(final int sourceSize, final int destinationSize)
+        {
+            firsts = new int [destinationSize];
+            counts = new int [destinationSize];
+            offsets = new int [destinationSize];
+            double scale = (double) sourceSize / destinationSize;
+            // each destination pixel covers at most ceil(scale) + 1 source pixels
+            double [] allWeights = new double [Math.multiplyExact(destinationSize,
+                    (int) Math.ceil(scale) + 1)];
+            int count = 0;
+            for (int d = 0; d < destinationSize; d++)
+            {
+                double start = d * scale;
+                double end = Math.min(sourceSize, (d + 1) * scale);
+                int first = (int) Math.floor(start);
+                int last = Math.min(sourceSize - 1, (int) Math.ceil(end) - 1);
+                firsts[d] = first;
+                offsets[d] = count;
+                for (int s = first; s <= last; s++)
+                {
+                    double covered = Math.min(end, s + 1) - Math.max(start, s);
+                    allWeights[count++] = covered / scale;
+                }
+                counts[d] = count - offsets[d];
+            }
+            weights = Arrays.copyOf(allWeights, count);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates many lithophanes in a single run, on a bounded pool of workers.
+ * <p>
+ * Each job is described by a map of parameters, whose keys are the long command line option names
+ * (for example "image", "output", "diameter"). Jobs are independent: a failure is reported in the
+ * summary and does not stop the others. The cosine and sine tables are shared between jobs with
+ * the same image width.
+ * </p>
+ */
+public class BatchRunner
+{
+    /** Parameter with the image path. */
+    public static final String IMAGE_PARAMETER = "image";
+
+    /** Parameter with the output path. */
+    public static final String OUTPUT_PARAMETER = "output";
+
+    /** Parameter with the output format. */
+    public static final String FORMAT_PARAMETER = "format";
+
+    /** Parameter enabling the compression of the output. */
+    public static final String COMPRESS_PARAMETER = "compress";
+
+    /**
+     * Creates the lithophanizer of a job.
+     */
+    @FunctionalInterface
+    public interface JobFactory
+    {
+        /**
+         * Creates the lithophanizer of a job.
+         * @param parameters job parameters.
+         * @return configured lithophanizer.
+         * @throws Exception invalid parameters.
+         */
+        Lithophanizer create(Map<String, String> parameters) throws Exception;
+    }
+
+    private final int jobs;
+
+    private final AngleTables.Cache angleTableCache = new AngleTables.Cache();
+
+    /**
+     * Constructor.
+     * @param jobs maximum number of lithophanes generated at the same time.
+     */
+    public BatchRunner(final int jobs)
+    {
+        if (jobs < 1)
+            throw new IllegalArgumentException("Number of jobs must be at least 1");
+        this.jobs = jobs;
+    }
+
+    /**
+     * Reads a manifest: a CSV file whose first line contains the parameter names, or a JSON lines
+     * file (extension .jsonl or .json) with one flat object per line. Empty lines and lines
+     * starting with # are ignored; relative image and output paths are relative to the manifest.
+     * @param manifest manifest file.
+     * @return parameters of each job.
+     * @throws IOException error reading the manifest.
+     */
+    public static List<Map<String, String>> readManifest(final File manifest) throws IOException
+    {
+        String name = manifest.getName().toLowerCase(Locale.ROOT);
+        boolean json = name.endsWith(".jsonl") || name.endsWith(".json");
+        List<Map<String, String>> jobs = new ArrayList<>();
+        List<String> header = null;
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(),
+                StandardCharsets.UTF_8))
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                lineNumber++;
+                if (line.isBlank() || line.strip().startsWith("#"))
+                    continue;
+                Map<String, String> parameters;
+                if (json)
+                {
+                    parameters = parseJsonObject(line, lineNumber);
+                }
+                else if (header == null)
+                {
+                    header = parseCsvLine(line);
+                    continue;
+                }
+                else
+                {
+                    List<String> values = parseCsvLine(line);
+                    if (values.size() > header.size())
+                        throw new IOException(String.format(
+                                "Manifest line %d has more values than the header", lineNumber));
+                    parameters = new LinkedHashMap<>();
+                    for (int i = 0; i < values.size(); i++)
+                    {
+                        if ( ! values.get(i).isEmpty())
+                            parameters.put(header.get(i), values.get(i));
+                    }
+                }
+                File base = manifest.getAbsoluteFile().getParentFile();
+                resolvePath(parameters, IMAGE_PARAMETER, base);
+                resolvePath(parameters, OUTPUT_PARAMETER, base);
+                jobs.add(parameters);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Lists the images of a directory that can be read, creating a job for each of them.
+     * @param directory source directory.
+     * @param outputDirectory destination directory.
+     * @param extension extension of the output files, without dot.
+     * @return parameters of each job, sorted by image name.
+     * @throws IOException error listing the directory.
+     */
+    public static List<Map<String, String>> listDirectory(final File directory,
+            final File outputDirectory, final String extension) throws IOException
+    {
+        File [] files = directory.listFiles();
+        if (files == null)
+            throw new IOException(String.format("Cannot list directory \"%s\".", directory));
+        Arrays.sort(files);
+
+        List<Map<String, String>> jobs = new ArrayList<>();
+        for (File file : files)
+        {
+            if ( ! file.isFile() || ! isImage(file))
+                continue;
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put(IMAGE_PARAMETER, file.getPath());
+            parameters.put(OUTPUT_PARAMETER,
+                    getOutputFile(file, outputDirectory, extension).getPath());
+            jobs.add(parameters);
+        }
+        return jobs;
+    }
+
+    /**
+     * Tells whether a file has the extension of an image that can be read.
+     * @param file file.
+     * @return true if the file is an image.
+     */
+    static boolean isImage(final File file)
+    {
+        Set<String> suffixes = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        suffixes.addAll(Arrays.asList(ImageIO.getReaderFileSuffixes()));
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) && suffixes.contains(name.substring(dot + 1));
+    }
+
+    /**
+     * Returns the output file of an image in a directory.
+     * @param image image.
+     * @param outputDirectory destination directory.
+     * @param extension extension of the output files, without dot.
+     * @return file with the name of the image and the output extension.
+     */
+    static File getOutputFile(final File image, final File outputDirectory,
+            final String extension)
+    {
+        return new File(outputDirectory, getBaseName(image) + "." + extension);
+    }
+
+    /**
+     * Returns the name of a file without its extension.
+     * @param file file.
+     * @return name without extension.
+     */
+    static String getBaseName(final File file)
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Runs all the jobs, printing a line for each completed job and a final summary.
+     * @param parameters parameters of each job.
+     * @param factory creates the lithophanizer of each job.
+     * @return number of failed jobs.
+     * @throws InterruptedException interrupted while waiting for the jobs.
+     */
+    public int run(final List<Map<String, String>> parameters, final JobFactory factory)
+            throws InterruptedException
+    {
+        long start = System.nanoTime();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>(parameters.size());
+            for (Map<String, String> jobParameters : parameters)
+            {
+                futures.add(executor.submit(() -> {
+                    String result = runJob(jobParameters, factory, failed);
+                    System.out.format(Locale.US, "[%d/%d] %s%n", completed.incrementAndGet(),
+                            parameters.size(), result);
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    // runJob reports its own failures
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        System.out.format(Locale.US, "Batch complete: %d succeeded, %d failed in %.1f s.%n",
+                parameters.size() - failed.get(), failed.get(),
+                (System.nanoTime() - start) / 1e9);
+        return failed.get();
+    }
+
+    /**
+     * Runs a single job.
+     * @param parameters job parameters.
+     * @param factory creates the lithophanizer.
+     * @param failed counter of failed jobs.
+     * @return summary line.
+     */
+    private String runJob(final Map<String, String> parameters, final JobFactory factory,
+            final AtomicInteger failed)
+    {
+        long start = System.nanoTime();
+        String image = parameters.getOrDefault(IMAGE_PARAMETER, "(no image)");
+        try
+        {
+            Lithophanizer lithophanizer = factory.create(parameters);
+            lithophanizer.setAngleTableCache(angleTableCache);
+            lithophanizer.setVerbose(false);
+            lithophanizer.generateLithophane();
+            MeshValidator.Report report = lithophanizer.getValidationReport();
+            if ((report != null) && ! report.isValid())
+            {
+                failed.incrementAndGet();
+                return String.format(Locale.US, "FAILED %s: invalid mesh: %s", image, report);
+            }
+            if (lithophanizer.isCacheHit())
+                return String.format(Locale.US, "OK %s -> %s: taken from cache in %.1f s", image,
+                        parameters.get(OUTPUT_PARAMETER), (System.nanoTime() - start) / 1e9);
+            return String.format(Locale.US, "OK %s -> %s: %d triangles in %.1f s", image,
+                    parameters.get(OUTPUT_PARAMETER), lithophanizer.getTriangleCount(),
+                    (System.nanoTime() - start) / 1e9);
+        }
+        catch (Exception | OutOfMemoryError e)
+        {
+            failed.incrementAndGet();
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            return String.format(Locale.US, "FAILED %s: %s", image, message);
+        }
+    }
+
+    /**
+     * Makes a relative path parameter relative to a base directory.
+     * @param parameters job parameters.
+     * @param name parameter name.
+     * @param base base directory.
+     */
+    static void resolvePath(final Map<String, String> parameters, final String name,
+            final File base)
+    {
+        String path = parameters.get(name);
+        if ((path != null) && ! new File(path).isAbsolute())
+            parameters.put(name, new File(base, path).getPath());
+    }
+
+    /**
+     * Splits a CSV line; values may be enclosed in double quotes, with "" for a quote.
+     * @param line CSV line.
+     * @return values, stripped of surrounding spaces.
+     */
+    private static List<String> parseCsvLine(final String line)
+    {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (quoted)
+            {
+                if (c != '"')
+                {
+                    value.append(c);
+                }
+                else if (((i + 1) < line.length()) && (line.charAt(i + 1) == '"'))
+                {
+                    value.append('"');
+                    i++;
+                }
+                else
+                {
+                    quoted = false;
+                }
+            }
+            else if (c == '"')
+            {
+                quoted = true;
+            }
+            else if (c == ',')
+            {
+                values.add(value.toString().strip());
+                value.setLength(0);
+            }
+            else
+            {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().strip());
+        return values;
+    }
+
+    /**
+     * Parses a flat JSON object whose values are strings, numbers or booleans.
+     * @param line JSON object.
+     * @param lineNumber line number, for error messages.
+     * @return values as strings.
+     * @throws IOException invalid object.
+     */
+    static Map<String, String> parseJsonObject(final String line, final int lineNumber)
+            throws IOException
+    {
+        Map<String, String> values = new LinkedHashMap<>();
+        JsonScanner scanner = new JsonScanner(line, lineNumber);
+        scanner.expect('{');
+        if ( ! scanner.skip('}'))
+        {
+            do
+            {
+                String key = scanner.string();
+                scanner.expect(':');
+                values.put(key, scanner.value());
+            }
+            while (scanner.skip(','));
+            scanner.expect('}');
+        }
+        scanner.end();
+        return values;
+    }
+
+    /**
+     * Minimal scanner for flat JSON objects.
+     */
+    private static final class JsonScanner
+    {
+        private final String text;
+
+        private final int lineNumber;
+
+        private int position;
+
+        JsonScanner(final String text, final int lineNumber)
+        {
+            this.text = text;
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * Skips a character, if it is the next one after blanks.
+         * @param c character.
+         * @return true if it was skipped.
+         */
+        boolean skip(final char c)
+        {
+            skipBlanks();
+            if ((position < text.length()) && (text.charAt(position) == c))
+            {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(final char c) throws IOException
+        {
+            if ( ! skip(c))
+                throw error("'" + c + "' expected");
+        }
+
+        void end() throws IOException
+        {
+            skipBlanks();
+            if (position < text.length())
+                throw error("unexpected text after the object");
+        }
+
+        String string() throws IOException
+        {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (position < text.length())
+            {
+                char c = text.charAt(position++);
+                if (c == '"')
+                    return value.toString();
+                if (c != '\\')
+                {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length())
+                    break;
+                char escaped = text.charAt(position++);
+                switch (escaped)
+                {
+                    case 'n' -> value.append('\n');
+                    case 't' -> value.append('\t');
+                    case 'r' -> value.append('\r');
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'u' ->
+                    {
+                        if ((position + 4) > text.length())
+                            throw error("invalid escape");
+                        value.append((char) Integer.parseInt(
+                                text.substring(position, position + 4), 16));
+                        position += 4;
+                    }
+                    default -> value.append(escaped);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        String value() throws IOException
+        {
+            skipBlanks();
+            if ((position < text.length()) && (text.charAt(position) == '"'))
+                return string();
+            int start = position;
+            while ((position < text.length()) && (",} \t".indexOf(text.charAt(position)) < 0))
+            {
+                position++;
+            }
+            if (start == position)
+                throw error("value expected");
+            return text.substring(start, position);
+        }
+
+        private void skipBlanks()
+        {
+            while ((position < text.length()) && Character.isWhitespace(text.charAt(position)))
+            {
+                position++;
+            }
+        }
+
+        private IOException error(final String message)
+        {
+            return new IOException(String.format("Manifest line %d, column %d: %s", lineNumber,
+                    position + 1, message));
+        }
+    }
+}
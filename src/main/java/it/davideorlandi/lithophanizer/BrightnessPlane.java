@@ -0,0 +1,299 @@
+package it.davideorlandi.lithophanizer;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Brightness of each pixel of an image, as an unsigned 16 bit value (0 = black, 65535 = white).
+ * <p>
+ * Brightness is the B component of the HSB model, that is the maximum of the red, green and blue
+ * components. 8 bit samples are scaled to 16 bits (multiplied by 257), 16 bit samples are kept
+ * with their full precision.
+ * </p>
+ */
+public final class BrightnessPlane implements WritableBrightness
+{
+    /** Scale factor from 8 bit to 16 bit samples. */
+    private static final int BYTE_TO_USHORT = 257;
+
+    /** Width in pixels. */
+    private final int width;
+
+    /** Height in pixels. */
+    private final int height;
+
+    /** Brightness of each pixel, row by row from the top of the image. */
+    private final short [] brightness;
+
+    /**
+     * Constructor; all the pixels are black.
+     * @param width width in pixels.
+     * @param height height in pixels.
+     */
+    public BrightnessPlane(final int width, final int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.brightness = new short [Math.multiplyExact(width, height)];
+    }
+
+    /**
+     * Reads the brightness of all the pixels of an image.
+     * <p>
+     * The raster is read in bulk, accessing the data buffer directly for the common gray, RGB and
+     * packed integer image types; other image types are converted to RGB one row at a time.
+     * </p>
+     * @param image source image.
+     * @return brightness of the image.
+     */
+    public static BrightnessPlane fromImage(final BufferedImage image)
+    {
+        BrightnessPlane plane = new BrightnessPlane(image.getWidth(), image.getHeight());
+        Raster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        ColorModel colorModel = image.getColorModel();
+        int colorComponents = getColorComponents(colorModel);
+
+        if ((colorComponents == 0) || (raster.getSampleModelTranslateX() != 0)
+                || (raster.getSampleModelTranslateY() != 0)
+                || (raster.getDataBuffer().getNumBanks() != 1))
+        {
+            plane.readRgbRows(image);
+        }
+        else if ((sampleModel instanceof ComponentSampleModel componentSampleModel)
+                && (raster.getDataBuffer() instanceof DataBufferByte byteBuffer)
+                && hasSampleSize(sampleModel, colorComponents, 8))
+        {
+            plane.readComponents(componentSampleModel, byteBuffer.getData(),
+                    byteBuffer.getOffset(), colorComponents);
+        }
+        else if ((sampleModel instanceof ComponentSampleModel componentSampleModel)
+                && (raster.getDataBuffer() instanceof DataBufferUShort ushortBuffer)
+                && hasSampleSize(sampleModel, colorComponents, 16))
+        {
+            plane.readComponents(componentSampleModel, ushortBuffer.getData(),
+                    ushortBuffer.getOffset(), colorComponents);
+        }
+        else if ((sampleModel instanceof SinglePixelPackedSampleModel packedSampleModel)
+                && (colorModel instanceof DirectColorModel)
+                && (raster.getDataBuffer() instanceof DataBufferInt intBuffer)
+                && hasSampleSize(sampleModel, colorComponents, 8))
+        {
+            plane.readPacked(packedSampleModel, intBuffer.getData(), intBuffer.getOffset());
+        }
+        else
+        {
+            plane.readRgbRows(image);
+        }
+        return plane;
+    }
+
+    /**
+     * Returns the number of color components that can be read directly from the raster: 1 for
+     * gray images, 3 for sRGB images, 0 if the raster must be converted.
+     * @param colorModel color model of the image.
+     * @return number of color components, or 0.
+     */
+    private static int getColorComponents(final ColorModel colorModel)
+    {
+        if (colorModel.isAlphaPremultiplied())
+            return 0;
+        ColorSpace colorSpace = colorModel.getColorSpace();
+        if ((colorSpace.getType() == ColorSpace.TYPE_GRAY)
+                && (colorModel.getNumColorComponents() == 1))
+            return 1;
+        if (colorSpace.isCS_sRGB() && (colorModel.getNumColorComponents() == 3))
+            return 3;
+        return 0;
+    }
+
+    /**
+     * Checks that all the color bands have the specified number of bits.
+     * @param sampleModel sample model of the image.
+     * @param colorComponents number of color bands.
+     * @param bits required number of bits.
+     * @return true if all the color bands have the required size.
+     */
+    private static boolean hasSampleSize(final SampleModel sampleModel,
+            final int colorComponents, final int bits)
+    {
+        for (int band = 0; band < colorComponents; band++)
+        {
+            if (sampleModel.getSampleSize(band) != bits)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads 8 bit gray or RGB components stored in a byte array.
+     * @param sampleModel sample model of the image.
+     * @param data image data.
+     * @param dataOffset offset of the first pixel in the data.
+     * @param colorComponents number of color components (1 or 3).
+     */
+    private void readComponents(final ComponentSampleModel sampleModel, final byte [] data,
+            final int dataOffset, final int colorComponents)
+    {
+        int scanlineStride = sampleModel.getScanlineStride();
+        int pixelStride = sampleModel.getPixelStride();
+        int [] bandOffsets = sampleModel.getBandOffsets();
+        int b0 = bandOffsets[0];
+        int b1 = colorComponents > 1 ? bandOffsets[1] : b0;
+        int b2 = colorComponents > 2 ? bandOffsets[2] : b0;
+        for (int y = 0; y < height; y++)
+        {
+            int in = dataOffset + (y * scanlineStride);
+            int out = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                int max = Math.max(data[in + b0] & 0xFF,
+                        Math.max(data[in + b1] & 0xFF, data[in + b2] & 0xFF));
+                brightness[out + x] = (short) (max * BYTE_TO_USHORT);
+                in += pixelStride;
+            }
+        }
+    }
+
+    /**
+     * Reads 16 bit gray or RGB components stored in a short array.
+     * @param sampleModel sample model of the image.
+     * @param data image data.
+     * @param dataOffset offset of the first pixel in the data.
+     * @param colorComponents number of color components (1 or 3).
+     */
+    private void readComponents(final ComponentSampleModel sampleModel, final short [] data,
+            final int dataOffset, final int colorComponents)
+    {
+        int scanlineStride = sampleModel.getScanlineStride();
+        int pixelStride = sampleModel.getPixelStride();
+        int [] bandOffsets = sampleModel.getBandOffsets();
+        int b0 = bandOffsets[0];
+        int b1 = colorComponents > 1 ? bandOffsets[1] : b0;
+        int b2 = colorComponents > 2 ? bandOffsets[2] : b0;
+        for (int y = 0; y < height; y++)
+        {
+            int in = dataOffset + (y * scanlineStride);
+            int out = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                int max = Math.max(data[in + b0] & 0xFFFF,
+                        Math.max(data[in + b1] & 0xFFFF, data[in + b2] & 0xFFFF));
+                brightness[out + x] = (short) max;
+                in += pixelStride;
+            }
+        }
+    }
+
+    /**
+     * Reads 8 bit RGB components packed in an int array (with or without alpha).
+     * @param sampleModel sample model of the image.
+     * @param data image data.
+     * @param dataOffset offset of the first pixel in the data.
+     */
+    private void readPacked(final SinglePixelPackedSampleModel sampleModel, final int [] data,
+            final int dataOffset)
+    {
+        int scanlineStride = sampleModel.getScanlineStride();
+        int [] bitOffsets = sampleModel.getBitOffsets();
+        int s0 = bitOffsets[0];
+        int s1 = bitOffsets[1];
+        int s2 = bitOffsets[2];
+        for (int y = 0; y < height; y++)
+        {
+            int in = dataOffset + (y * scanlineStride);
+            int out = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                int pixel = data[in + x];
+                int max = Math.max((pixel >>> s0) & 0xFF,
+                        Math.max((pixel >>> s1) & 0xFF, (pixel >>> s2) & 0xFF));
+                brightness[out + x] = (short) (max * BYTE_TO_USHORT);
+            }
+        }
+    }
+
+    /**
+     * Reads any image type, converting one row at a time to RGB.
+     * @param image source image.
+     */
+    private void readRgbRows(final BufferedImage image)
+    {
+        int [] row = new int [width];
+        for (int y = 0; y < height; y++)
+        {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int out = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                int pixel = row[x];
+                int max = Math.max((pixel >>> 16) & 0xFF,
+                        Math.max((pixel >>> 8) & 0xFF, pixel & 0xFF));
+                brightness[out + x] = (short) (max * BYTE_TO_USHORT);
+            }
+        }
+    }
+
+    /**
+     * Returns the width.
+     * @return width in pixels.
+     */
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Returns the height.
+     * @return height in pixels.
+     */
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Returns the brightness of a pixel.
+     * @param x pixel x coordinate.
+     * @param y pixel y coordinate (0 = top row).
+     * @return brightness (0 - {@link #MAX_BRIGHTNESS}).
+     */
+    @Override
+    public int get(final int x, final int y)
+    {
+        return brightness[(y * width) + x] & 0xFFFF;
+    }
+
+    /**
+     * Copies the brightness of a row.
+     * @param y row (0 = top row).
+     * @param dest destination array, with at least width elements; values are unsigned.
+     */
+    public void getRow(final int y, final short [] dest)
+    {
+        System.arraycopy(brightness, y * width, dest, 0, width);
+    }
+
+    /**
+     * Sets the brightness of a pixel.
+     * @param x pixel x coordinate.
+     * @param y pixel y coordinate (0 = top row).
+     * @param value brightness (0 - {@link #MAX_BRIGHTNESS}).
+     */
+    @Override
+    public void set(final int x, final int y, final int value)
+    {
+        brightness[(y * width) + x] = (short) value;
+    }
+}
@@ -0,0 +1,31 @@
+package it.davideorlandi.lithophanizer;
+
+/**
+ * Brightness of each pixel of an image, as an unsigned 16 bit value (0 = black, 65535 = white);
+ * implementations must allow concurrent reads.
+ */
+public interface BrightnessSource
+{
+    /** Brightness of a white pixel. */
+    int MAX_BRIGHTNESS = 0xFFFF;
+
+    /**
+     * Returns the width.
+     * @return width in pixels.
+     */
+    int getWidth();
+
+    /**
+     * Returns the height.
+     * @return height in pixels.
+     */
+    int getHeight();
+
+    /**
+     * Returns the brightness of a pixel.
+     * @param x pixel x coordinate.
+     * @param y pixel y coordinate (0 = top row).
+     * @return brightness (0 - {@link #MAX_BRIGHTNESS}).
+     */
+    int get(int x, int y);
+}
@@ -0,0 +1,39 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Requests the cancellation of a generation from another thread; the generation stops before
+ * the next band of layers, throwing a {@link CancellationException}.
+ */
+public final class CancellationToken
+{
+    private volatile boolean cancelled;
+
+    /**
+     * Requests the cancellation.
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+
+    /**
+     * Tells whether the cancellation has been requested.
+     * @return true if cancelled.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Throws an exception if the cancellation has been requested.
+     * @throws CancellationException if cancelled.
+     */
+    public void throwIfCancelled()
+    {
+        if (cancelled)
+            throw new CancellationException("Generation cancelled");
+    }
+}
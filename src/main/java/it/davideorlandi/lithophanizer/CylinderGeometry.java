@@ -0,0 +1,98 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.BitSet;
+
+/**
+ * Image laid around the Z axis, on a whole cylinder or on an arc of it.
+ */
+public final class CylinderGeometry implements Geometry
+{
+    private final double [] cos;
+
+    private final double [] sin;
+
+    private final double [] midCos;
+
+    private final double [] midSin;
+
+    private final double radius;
+
+    private final double outerFactor;
+
+    private final double innerFactor;
+
+    private final boolean closed;
+
+    /**
+     * Constructor.
+     * @param angleTables angle of each column.
+     * @param radius radius of the base surface.
+     * @param roughFace where the rough face is.
+     * @param closed true for a whole cylinder, false for an arc.
+     */
+    public CylinderGeometry(final AngleTables angleTables, final double radius,
+            final RoughFace roughFace, final boolean closed)
+    {
+        this.cos = angleTables.cos();
+        this.sin = angleTables.sin();
+        this.midCos = angleTables.midCos();
+        this.midSin = angleTables.midSin();
+        this.radius = radius;
+        this.outerFactor = roughFace.getOuterFactor();
+        this.innerFactor = roughFace.getInnerFactor();
+        this.closed = closed;
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    @Override
+    public int setPoints(final Layer layer, final double [] thickness, final BitSet columns)
+    {
+        float [] outerX = layer.outerPerimeter().x();
+        float [] outerY = layer.outerPerimeter().y();
+        float [] innerX = layer.innerPerimeter().x();
+        float [] innerY = layer.innerPerimeter().y();
+        if (columns == null)
+        {
+            for (int col = 0; col < cos.length; col++)
+            {
+                double outerRadius = radius + (outerFactor * thickness[col]);
+                double innerRadius = radius + (innerFactor * thickness[col]);
+                outerX[col] = (float) (cos[col] * outerRadius);
+                outerY[col] = (float) (sin[col] * outerRadius);
+                innerX[col] = (float) (cos[col] * innerRadius);
+                innerY[col] = (float) (sin[col] * innerRadius);
+            }
+            return cos.length;
+        }
+
+        int point = 0;
+        for (int col = columns.nextSetBit(0); col >= 0; col = columns.nextSetBit(col + 1))
+        {
+            double outerRadius = radius + (outerFactor * thickness[col]);
+            double innerRadius = radius + (innerFactor * thickness[col]);
+            outerX[point] = (float) (cos[col] * outerRadius);
+            outerY[point] = (float) (sin[col] * outerRadius);
+            innerX[point] = (float) (cos[col] * innerRadius);
+            innerY[point] = (float) (sin[col] * innerRadius);
+            point++;
+        }
+        return point;
+    }
+
+    @Override
+    public float getNormalX(final int column)
+    {
+        return (float) midCos[column];
+    }
+
+    @Override
+    public float getNormalY(final int column)
+    {
+        return (float) midSin[column];
+    }
+}
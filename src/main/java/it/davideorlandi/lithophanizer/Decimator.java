@@ -0,0 +1,122 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.BitSet;
+
+/**
+ * Decides which points of the mesh can be left out because they can be interpolated from their
+ * neighbours within a given tolerance.
+ * <p>
+ * Along a perimeter, a point can be left out if its thickness differs from the linear
+ * interpolation between the kept points around it by less than half the tolerance, including the
+ * error of replacing the arc between them with a chord. Across rows, a whole layer can be left out
+ * if every one of its points differs from the linear interpolation between the kept layers below
+ * and above it by less than half the tolerance. The two errors add up to at most the tolerance.
+ * </p>
+ */
+public class Decimator
+{
+    /** Maximum number of columns merged in a single segment. */
+    public static final int MAX_COLUMN_SPAN = 256;
+
+    /** Maximum number of layers merged in a single vertical step. */
+    public static final int MAX_LAYER_SPAN = 32;
+
+    /** Tolerance for each direction (half the total tolerance). */
+    private final double tolerance;
+
+    /** Chord error for each number of merged columns. */
+    private final double [] chordError;
+
+    /**
+     * Constructor.
+     * @param tolerance maximum distance between a left out point and the mesh, in millimeters.
+     * @param maxRadius largest distance of a point from the axis.
+     * @param angleStep angle between two consecutive columns, in radians.
+     */
+    public Decimator(final double tolerance, final double maxRadius, final double angleStep)
+    {
+        this.tolerance = tolerance / 2.0;
+        this.chordError = new double [MAX_COLUMN_SPAN + 1];
+        for (int span = 0; span <= MAX_COLUMN_SPAN; span++)
+        {
+            chordError[span] = maxRadius * (1.0 - Math.cos((span * angleStep) / 2.0));
+        }
+    }
+
+    /**
+     * Selects the columns of a closed perimeter that must be kept; column 0 is always kept, so
+     * that perimeters with different columns can be stitched together.
+     * @param thickness thickness of each column.
+     * @return kept columns.
+     */
+    public BitSet selectColumns(final double [] thickness)
+    {
+        int width = thickness.length;
+        BitSet columns = new BitSet(width);
+        columns.set(0);
+        int anchor = 0;
+        while (anchor < width)
+        {
+            // extend the segment as long as all the points in between are within tolerance;
+            // column "width" is column 0 again
+            int end = anchor + 1;
+            int limit = Math.min(width, anchor + MAX_COLUMN_SPAN);
+            while ((end < limit) && isSegmentWithinTolerance(thickness, anchor, end + 1))
+            {
+                end++;
+            }
+            if (end < width)
+                columns.set(end);
+            anchor = end;
+        }
+        return columns;
+    }
+
+    /**
+     * Checks whether all the points between two columns can be left out.
+     * @param thickness thickness of each column.
+     * @param start first column of the segment.
+     * @param end last column of the segment (may be the number of columns, meaning column 0).
+     * @return true if all the points in between are within tolerance.
+     */
+    private boolean isSegmentWithinTolerance(final double [] thickness, final int start,
+            final int end)
+    {
+        int span = end - start;
+        double allowed = tolerance - chordError[span];
+        if (allowed < 0.0)
+            return false;
+        double startThickness = thickness[start];
+        double endThickness = thickness[end % thickness.length];
+        double slope = (endThickness - startThickness) / span;
+        for (int col = start + 1; col < end; col++)
+        {
+            double interpolated = startThickness + (slope * (col - start));
+            if (Math.abs(thickness[col] - interpolated) > allowed)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a layer can be left out, interpolating it between the layers below and
+     * above.
+     * @param lower thickness of each column of the kept layer below.
+     * @param upper thickness of each column of the candidate layer above.
+     * @param middle thickness of each column of the layer to check.
+     * @param fraction vertical position of the layer to check between the lower (0) and upper (1)
+     *        layers.
+     * @return true if all the points of the layer are within tolerance.
+     */
+    public boolean isLayerWithinTolerance(final double [] lower, final double [] upper,
+            final double [] middle, final double fraction)
+    {
+        for (int col = 0; col < middle.length; col++)
+        {
+            double interpolated = lower[col] + ((upper[col] - lower[col]) * fraction);
+            if (Math.abs(middle[col] - interpolated) > tolerance)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,380 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory and generates a lithophane for each image created or modified in it, on a
+ * pool of workers that stays warm between jobs.
+ * <p>
+ * The parameters of an image are the defaults given to the job factory, overridden by an
+ * optional sidecar file with the name of the image and extension .json, containing a flat JSON
+ * object like a line of a manifest (see {@link BatchRunner#readManifest(File)}); changing the
+ * sidecar regenerates the image. Events are debounced: an image is generated only when it has not
+ * changed for a while, so that a file being saved is read once, complete. If an image changes
+ * again while its lithophane is being generated, the stale job is cancelled and the new one is
+ * queued when it has stopped, without holding a worker while waiting. Errors reading the
+ * directory or a sidecar while watching are reported and do not stop the watch.
+ * </p>
+ */
+public class DirectoryWatcher
+{
+    /** Extension of the sidecar files. */
+    private static final String SIDECAR_EXTENSION = ".json";
+
+    private final File directory;
+
+    private final File outputDirectory;
+
+    private final String extension;
+
+    private final BatchRunner.JobFactory factory;
+
+    private final long debounceMillis;
+
+    private final AngleTables.Cache angleTableCache = new AngleTables.Cache();
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService scheduler;
+
+    /** Images waiting for the end of a burst of events. */
+    private final Map<File, ScheduledFuture<?>> pending = new HashMap<>();
+
+    /** Cancellation token of the job of each image queued or running, until it completes. */
+    private final Map<File, CancellationToken> running = new HashMap<>();
+
+    /** Cancellation token of the job of each image waiting for the stale one to stop. */
+    private final Map<File, CancellationToken> waiting = new HashMap<>();
+
+    private WatchService watchService;
+
+    /**
+     * Constructor.
+     * @param directory directory containing the images.
+     * @param outputDirectory destination directory.
+     * @param extension extension of the output files, without dot.
+     * @param jobs maximum number of lithophanes generated at the same time.
+     * @param factory creates the lithophanizer of each job.
+     * @param debounceMillis time an image must stay unchanged before it is generated.
+     */
+    public DirectoryWatcher(final File directory, final File outputDirectory,
+            final String extension, final int jobs, final BatchRunner.JobFactory factory,
+            final long debounceMillis)
+    {
+        if (jobs < 1)
+            throw new IllegalArgumentException("Number of jobs must be at least 1");
+        if ( ! directory.isDirectory())
+            throw new IllegalArgumentException(
+                    String.format("Watched path \"%s\" is not a directory.", directory));
+        this.directory = directory;
+        this.outputDirectory = outputDirectory;
+        this.extension = extension;
+        this.factory = factory;
+        this.debounceMillis = debounceMillis;
+        this.workers = Executors.newFixedThreadPool(jobs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Generates the images whose lithophane is missing or older than the image or its sidecar,
+     * then watches the directory until {@link #stop()} is called or the directory is deleted.
+     * @throws IOException error watching the directory.
+     * @throws InterruptedException interrupted while waiting for events.
+     */
+    public void run() throws IOException, InterruptedException
+    {
+        synchronized (this)
+        {
+            watchService = FileSystems.getDefault().newWatchService();
+        }
+        try
+        {
+            directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            scanDirectory();
+            while (true)
+            {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    try
+                    {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            scanDirectory();
+                        else
+                            changed(directory.toPath().resolve((Path) event.context()).toFile());
+                    }
+                    catch (IOException e)
+                    {
+                        // the next event may succeed
+                        System.err.println(String.format("Error reading %s: %s", directory,
+                                e.getMessage()));
+                    }
+                }
+                if ( ! key.reset())
+                    break;
+            }
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // stopped
+        }
+        finally
+        {
+            stop();
+        }
+    }
+
+    /**
+     * Stops watching, cancelling the jobs in progress.
+     */
+    public synchronized void stop()
+    {
+        try
+        {
+            if (watchService != null)
+                watchService.close();
+        }
+        catch (IOException e)
+        {
+            // nothing else to release
+        }
+        scheduler.shutdownNow();
+        waiting.clear();
+        for (CancellationToken token : running.values())
+        {
+            token.cancel();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Schedules the images of the directory whose lithophane is missing or older than the image
+     * or its sidecar.
+     * @throws IOException error listing the directory.
+     */
+    private void scanDirectory() throws IOException
+    {
+        for (Map<String, String> parameters : BatchRunner.listDirectory(directory,
+                outputDirectory, extension))
+        {
+            File image = new File(parameters.get(BatchRunner.IMAGE_PARAMETER));
+            long changed = Math.max(image.lastModified(), getSidecar(image).lastModified());
+            try
+            {
+                File output = new File(getParameters(image).get(BatchRunner.OUTPUT_PARAMETER));
+                if (output.lastModified() < changed)
+                    schedule(image);
+            }
+            catch (IOException e)
+            {
+                // the job reports the invalid sidecar
+                schedule(image);
+            }
+        }
+    }
+
+    /**
+     * Handles a created or modified file.
+     * @param file file.
+     * @throws IOException error listing the directory.
+     */
+    private void changed(final File file) throws IOException
+    {
+        if (BatchRunner.isImage(file))
+        {
+            schedule(file);
+        }
+        else if (file.getName().toLowerCase(Locale.ROOT).endsWith(SIDECAR_EXTENSION))
+        {
+            // regenerate the images with the same name
+            String name = BatchRunner.getBaseName(file);
+            for (Map<String, String> parameters : BatchRunner.listDirectory(directory,
+                    outputDirectory, extension))
+            {
+                File image = new File(parameters.get(BatchRunner.IMAGE_PARAMETER));
+                if (BatchRunner.getBaseName(image).equals(name))
+                    schedule(image);
+            }
+        }
+    }
+
+    /**
+     * Schedules the generation of an image after the debounce time, postponing it if already
+     * scheduled.
+     * @param image image.
+     */
+    private synchronized void schedule(final File image)
+    {
+        if (scheduler.isShutdown())
+            return;
+        ScheduledFuture<?> previous = pending.remove(image);
+        if (previous != null)
+            previous.cancel(false);
+        pending.put(image, scheduler.schedule(() -> start(image), debounceMillis,
+                TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Starts the generation of an image; if a job of the same image is queued or running, it is
+     * cancelled and the new one waits for it to stop, since they write the same file.
+     * @param image image.
+     */
+    private synchronized void start(final File image)
+    {
+        pending.remove(image);
+        if (workers.isShutdown())
+            return;
+        CancellationToken stale = running.get(image);
+        if (stale != null)
+        {
+            stale.cancel();
+            waiting.put(image, new CancellationToken());
+        }
+        else
+        {
+            submit(image, new CancellationToken());
+        }
+    }
+
+    /**
+     * Queues the job of an image on the workers.
+     * @param image image.
+     * @param token cancellation token of the job.
+     */
+    private synchronized void submit(final File image, final CancellationToken token)
+    {
+        running.put(image, token);
+        workers.execute(() -> {
+            try
+            {
+                String result = runJob(image, token);
+                if (result != null)
+                    System.out.println(result);
+            }
+            finally
+            {
+                finished(image);
+            }
+        });
+    }
+
+    /**
+     * Forgets the completed job of an image, and queues the job waiting for it, if any.
+     * @param image image.
+     */
+    private synchronized void finished(final File image)
+    {
+        running.remove(image);
+        CancellationToken next = waiting.remove(image);
+        if ((next != null) && ! workers.isShutdown())
+            submit(image, next);
+    }
+
+    /**
+     * Generates the lithophane of an image.
+     * @param image image.
+     * @param token cancellation token of the job.
+     * @return summary line, or null if the job was cancelled before starting.
+     */
+    private String runJob(final File image, final CancellationToken token)
+    {
+        if (token.isCancelled())
+            return null;
+        long start = System.nanoTime();
+        try
+        {
+            Lithophanizer lithophanizer = factory.create(getParameters(image));
+            lithophanizer.setAngleTableCache(angleTableCache);
+            lithophanizer.setVerbose(false);
+            lithophanizer.setCancellationToken(token);
+            lithophanizer.generateLithophane();
+            MeshValidator.Report report = lithophanizer.getValidationReport();
+            if ((report != null) && ! report.isValid())
+                return String.format(Locale.US, "FAILED %s: invalid mesh: %s", image, report);
+            return String.format(Locale.US, "OK %s: %d triangles in %.1f s", image,
+                    lithophanizer.getTriangleCount(), (System.nanoTime() - start) / 1e9);
+        }
+        catch (CancellationException e)
+        {
+            return String.format(Locale.US, "CANCELLED %s: changed again", image);
+        }
+        catch (Exception | OutOfMemoryError e)
+        {
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            return String.format(Locale.US, "FAILED %s: %s", image, message);
+        }
+    }
+
+    /**
+     * Returns the parameters of the job of an image, read from its sidecar if present.
+     * @param image image.
+     * @return job parameters.
+     * @throws IOException error reading the sidecar.
+     */
+    private Map<String, String> getParameters(final File image) throws IOException
+    {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        File sidecar = getSidecar(image);
+        if (sidecar.isFile())
+        {
+            List<String> lines = Files.readAllLines(sidecar.toPath(), StandardCharsets.UTF_8);
+            parameters.putAll(BatchRunner.parseJsonObject(String.join(" ", lines), 1));
+            BatchRunner.resolvePath(parameters, BatchRunner.OUTPUT_PARAMETER, directory);
+        }
+        parameters.put(BatchRunner.IMAGE_PARAMETER, image.getPath());
+        parameters.putIfAbsent(BatchRunner.OUTPUT_PARAMETER, BatchRunner.getOutputFile(image,
+                outputDirectory, getExtension(parameters)).getPath());
+        return parameters;
+    }
+
+    /**
+     * Returns the extension of the output file of a job, which may set its own format and
+     * compression.
+     * @param parameters job parameters.
+     * @return extension, without dot.
+     */
+    private String getExtension(final Map<String, String> parameters)
+    {
+        boolean compressed = extension.endsWith(".gz");
+        String formatExtension = compressed ? extension.substring(0, extension.length() - 3)
+                : extension;
+        if (parameters.containsKey(BatchRunner.FORMAT_PARAMETER))
+            formatExtension = MeshFormat.fromName(parameters.get(BatchRunner.FORMAT_PARAMETER))
+                    .getExtension();
+        if (parameters.containsKey(BatchRunner.COMPRESS_PARAMETER))
+            compressed = Boolean.parseBoolean(parameters.get(BatchRunner.COMPRESS_PARAMETER));
+        return compressed ? formatExtension + ".gz" : formatExtension;
+    }
+
+    /**
+     * Returns the sidecar file of an image.
+     * @param image image.
+     * @return sidecar file, which may not exist.
+     */
+    private File getSidecar(final File image)
+    {
+        return new File(directory, BatchRunner.getBaseName(image) + SIDECAR_EXTENSION);
+    }
+}
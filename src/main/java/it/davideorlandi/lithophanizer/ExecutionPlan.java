@@ -0,0 +1,173 @@
+package it.davideorlandi.lithophanizer;
+
+import java.awt.Dimension;
+import java.util.Locale;
+
+/**
+ * Execution strategy of a generation, with its estimated peak heap usage and output size (see
+ * {@link Lithophanizer#planExecution()}).
+ * @param threads number of threads.
+ * @param tiledDecoding true if the image is decoded in strips to a memory mapped file.
+ * @param heapBytes estimated peak heap usage, in bytes.
+ * @param outputBytes estimated size of the output, in bytes; an upper bound for decimated or
+ *        compressed models.
+ */
+public record ExecutionPlan(int threads, boolean tiledDecoding, long heapBytes, long outputBytes)
+{
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    /** Bytes per pixel of an image decoded in the heap (8 bit RGB or RGBA). */
+    private static final int DECODED_PIXEL_SIZE = 4;
+
+    /** Bytes per pixel of the brightness of an image. */
+    private static final int BRIGHTNESS_PIXEL_SIZE = 2;
+
+    /** Bytes per column of the layers and perimeters held by each thread. */
+    private static final int LAYER_COLUMN_SIZE = 256;
+
+    /** Bytes of each layer of the layer plan. */
+    private static final int LAYER_SPEC_SIZE = 64;
+
+    /** Bytes of the blocks queued by each compression thread. */
+    private static final int COMPRESSION_THREAD_SIZE = 4 * 1024 * 1024;
+
+    /** Estimated bytes of each vertex and triangle of a text format (OBJ and 3MF). */
+    private static final int TEXT_ELEMENT_SIZE = 48;
+
+    /**
+     * Chooses how to generate a model: with the requested threads and decoding if they fit the
+     * memory budget, otherwise with the most threads that fit, preferring decoding in the heap to
+     * tiled decoding for the same number of threads.
+     * @param workload work of the generation.
+     * @param threads requested number of threads.
+     * @param tiledDecoding true if tiled decoding is requested.
+     * @param memoryBudget maximum heap, in bytes (0 = no limit).
+     * @return execution strategy, with its estimated heap usage and output size.
+     * @throws IllegalArgumentException if no strategy fits the memory budget.
+     */
+    static ExecutionPlan choose(final Workload workload, final int threads,
+            final boolean tiledDecoding, final long memoryBudget)
+    {
+        long outputBytes = estimateOutputBytes(workload);
+        ExecutionPlan requested = new ExecutionPlan(threads, tiledDecoding,
+                estimateHeapBytes(workload, threads, tiledDecoding), outputBytes);
+        if ((memoryBudget == 0) || (requested.heapBytes() <= memoryBudget))
+            return requested;
+
+        ExecutionPlan cheapest = requested;
+        for (int t = threads; t >= 1; t--)
+        {
+            for (boolean tiled : new boolean [] {tiledDecoding, true})
+            {
+                ExecutionPlan plan = new ExecutionPlan(t, tiled,
+                        estimateHeapBytes(workload, t, tiled), outputBytes);
+                if (plan.heapBytes() <= memoryBudget)
+                    return plan;
+                if (plan.heapBytes() < cheapest.heapBytes())
+                    cheapest = plan;
+            }
+        }
+        throw new IllegalArgumentException(String.format(Locale.US,
+                "Memory budget of %d MB too small: about %d MB needed with %s", memoryBudget >> 20,
+                cheapest.heapBytes() >> 20, cheapest.tiledDecoding() ? "1 thread and tiled decoding"
+                        : "1 thread"));
+    }
+
+    /**
+     * Estimates the peak heap of a generation: the largest of the decoding (the decoded image, or
+     * a strip of it with tiled decoding, and its brightness), the resampling and filters (source
+     * and result) and the generation (brightness, layer plan, and the layers, bands and
+     * compression blocks of each thread). This is a rough upper bound for 8 bit images; 16 bit
+     * images need more while decoding.
+     * @param workload work of the generation.
+     * @param threads number of threads.
+     * @param tiled true for tiled decoding.
+     * @return estimated heap size in bytes.
+     */
+    static long estimateHeapBytes(final Workload workload, final int threads,
+            final boolean tiled)
+    {
+        Dimension source = workload.source();
+        Dimension target = workload.target();
+        // previews are always decoded in the heap
+        boolean mapped = tiled && ! workload.preview();
+        long sourcePixels = (long) source.width * source.height;
+        long peak = mapped ? Math.min(MappedBrightness.getStripSize(), sourcePixels * 8)
+                : sourcePixels * (DECODED_PIXEL_SIZE + BRIGHTNESS_PIXEL_SIZE);
+        long plane = mapped ? 0 : sourcePixels * BRIGHTNESS_PIXEL_SIZE;
+
+        if ( ! target.equals(source))
+        {
+            long targetPlane = (long) target.width * target.height * BRIGHTNESS_PIXEL_SIZE;
+            peak = Math.max(peak, plane + targetPlane);
+            plane = targetPlane;
+        }
+        if (workload.filtered())
+            peak = Math.max(peak, 2 * plane);
+
+        long layerPlan = (long) target.height * LAYER_SPEC_SIZE;
+        if (workload.decimated())
+            layerPlan += ((long) target.height * (target.width / 8))
+                    + ((Decimator.MAX_LAYER_SPAN + 1L) * target.width * Double.BYTES);
+        long perThread = ((long) Lithophanizer.BANDS_PER_THREAD * Lithophanizer.BAND_SIZE)
+                + ((long) target.width * LAYER_COLUMN_SIZE)
+                + (workload.compressed() ? COMPRESSION_THREAD_SIZE : 0);
+        return Math.max(peak,
+                plane + layerPlan + Lithophanizer.BUFFER_SIZE + (threads * perThread));
+    }
+
+    /**
+     * Estimates the size of the output, from the number of layers and of points of each layer
+     * before decimation.
+     * @param workload work of the generation.
+     * @return estimated size in bytes; compressed outputs are estimated uncompressed.
+     */
+    static long estimateOutputBytes(final Workload workload)
+    {
+        long layerCount = workload.layerCount();
+        long points = workload.target().width;
+        long triangles = (2 * 2 * points) + ((layerCount - 1) * 4 * points);
+        long vertices = 2 * points * layerCount;
+        switch (workload.format())
+        {
+            case STL:
+                return Lithophanizer.STL_HEADER_SIZE + (triangles * Triangle.BINARY_SIZE);
+
+            case PLY:
+                return (vertices * 3 * Float.BYTES) + (triangles * (1 + (3 * Integer.BYTES)));
+
+            case OBJ:
+            case THREE_MF:
+                return (vertices + triangles) * TEXT_ELEMENT_SIZE;
+
+            default:
+                throw new UnsupportedOperationException(
+                        "format " + workload.format() + " is not supported");
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US,
+                "%d thread%s, %s decoding: about %.0f MB of heap, up to %.0f MB of output",
+                threads, threads == 1 ? "" : "s", tiledDecoding ? "tiled" : "in-heap",
+                heapBytes / MEGABYTE, outputBytes / MEGABYTE);
+    }
+
+    /**
+     * What a generation has to do, as far as its heap usage and output size are concerned.
+     * @param source size of the decoded image.
+     * @param target size of the image after resampling; the same as the source if not resampled.
+     * @param preview true if a subsampled preview is decoded, always in the heap.
+     * @param filtered true if a tone curve, blur or sharpening is applied.
+     * @param decimated true if the layers are decimated.
+     * @param compressed true if the output is compressed.
+     * @param format format of the output.
+     * @param layerCount number of layers, borders included.
+     */
+    record Workload(Dimension source, Dimension target, boolean preview, boolean filtered,
+            boolean decimated, boolean compressed, MeshFormat format, long layerCount)
+    {
+    }
+}
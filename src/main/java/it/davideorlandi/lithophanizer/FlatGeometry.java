@@ -0,0 +1,83 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.BitSet;
+
+/**
+ * Image laid on a flat panel in the XZ plane, centered on the Z axis; the outer face looks
+ * towards negative Y, and the columns go towards positive X.
+ */
+public final class FlatGeometry implements Geometry
+{
+    /** X coordinate of each column. */
+    private final double [] x;
+
+    private final double outerFactor;
+
+    private final double innerFactor;
+
+    /**
+     * Constructor.
+     * @param width number of columns.
+     * @param pixelStep distance between two columns.
+     * @param roughFace where the rough face is.
+     */
+    public FlatGeometry(final int width, final double pixelStep, final RoughFace roughFace)
+    {
+        this.x = new double [width];
+        for (int col = 0; col < width; col++)
+        {
+            x[col] = (col - ((width - 1) / 2.0)) * pixelStep;
+        }
+        this.outerFactor = roughFace.getOuterFactor();
+        this.innerFactor = roughFace.getInnerFactor();
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return false;
+    }
+
+    @Override
+    public int setPoints(final Layer layer, final double [] thickness, final BitSet columns)
+    {
+        float [] outerX = layer.outerPerimeter().x();
+        float [] outerY = layer.outerPerimeter().y();
+        float [] innerX = layer.innerPerimeter().x();
+        float [] innerY = layer.innerPerimeter().y();
+        if (columns == null)
+        {
+            for (int col = 0; col < x.length; col++)
+            {
+                outerX[col] = (float) x[col];
+                outerY[col] = (float) -(outerFactor * thickness[col]);
+                innerX[col] = (float) x[col];
+                innerY[col] = (float) -(innerFactor * thickness[col]);
+            }
+            return x.length;
+        }
+
+        int point = 0;
+        for (int col = columns.nextSetBit(0); col >= 0; col = columns.nextSetBit(col + 1))
+        {
+            outerX[point] = (float) x[col];
+            outerY[point] = (float) -(outerFactor * thickness[col]);
+            innerX[point] = (float) x[col];
+            innerY[point] = (float) -(innerFactor * thickness[col]);
+            point++;
+        }
+        return point;
+    }
+
+    @Override
+    public float getNormalX(final int column)
+    {
+        return 0.0f;
+    }
+
+    @Override
+    public float getNormalY(final int column)
+    {
+        return -1.0f;
+    }
+}
@@ -0,0 +1,469 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Time spent in each phase of the generation of a lithophane, with the size of the result.
+ * <p>
+ * Phases running on several threads (body, border, serialization) report the sum of the time of
+ * all the threads, so their total may exceed the wall time. The peak heap usage is sampled at the
+ * end of each phase and band, without touching the JVM-wide peak counters of the memory pools, so
+ * that generations running at the same time do not disturb each other's measurement. The same
+ * information is emitted as JFR events, recorded when a flight recording is active.
+ * </p>
+ */
+public final class GenerationMetrics
+{
+    /**
+     * Phases of the generation.
+     */
+    public enum Phase
+    {
+        /** Image reading and conversion to brightness. */
+        DECODE,
+        /** Image downsampling. */
+        RESAMPLE,
+        /** Tone curve, blur and sharpening. */
+        FILTER,
+        /** Thickness and cosine/sine tables. */
+        TRIG,
+        /** Layer planning and decimation. */
+        PLAN,
+        /** Lithophane layers and their surfaces. */
+        BODY,
+        /** Border layers and their surfaces. */
+        BORDER,
+        /** Writes to the output. */
+        SERIALIZATION;
+
+        /**
+         * Returns the name used in reports.
+         * @return lowercase name.
+         */
+        public String getName()
+        {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final LongAdder [] phaseNanos = new LongAdder [Phase.values().length];
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /** Largest heap usage sampled so far. */
+    private final LongAccumulator peakHeap = new LongAccumulator(Math::max, 0);
+
+    /** Serialization time of the current thread, to exclude it from the generation phases. */
+    private final ThreadLocal<long []> threadSerializationNanos = ThreadLocal.withInitial(
+            () -> new long [1]);
+
+    private final long startNanos;
+
+    private long wallNanos;
+
+    private long triangles;
+
+    private int width;
+
+    private boolean cacheHit;
+
+    private int height;
+
+    /**
+     * Constructor; starts measuring the wall time and the peak heap usage.
+     */
+    public GenerationMetrics()
+    {
+        for (int i = 0; i < phaseNanos.length; i++)
+        {
+            phaseNanos[i] = new LongAdder();
+        }
+        sampleHeap();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Samples the heap usage, updating the peak.
+     */
+    void sampleHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        peakHeap.accumulate(runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Starts measuring a sequential phase.
+     * @param phase phase.
+     * @return timer to stop at the end of the phase.
+     */
+    public PhaseTimer startPhase(final Phase phase)
+    {
+        return new PhaseTimer(phase);
+    }
+
+    /**
+     * Adds time to a phase, without JFR events (for phases measured in small steps).
+     * @param phase phase.
+     * @param nanos time in nanoseconds.
+     */
+    public void addNanos(final Phase phase, final long nanos)
+    {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    /**
+     * Records a write to the output.
+     * @param bytes number of bytes written.
+     * @param nanos time spent writing.
+     */
+    public void addWrite(final long bytes, final long nanos)
+    {
+        bytesWritten.add(bytes);
+        addNanos(Phase.SERIALIZATION, nanos);
+        threadSerializationNanos.get()[0] += nanos;
+    }
+
+    /**
+     * Returns the total time spent writing to the output by the current thread.
+     * @return time in nanoseconds.
+     */
+    long getThreadSerializationNanos()
+    {
+        return threadSerializationNanos.get()[0];
+    }
+
+    /**
+     * Starts splitting the time of the current thread between the generation phases.
+     * @return clock of the current thread.
+     */
+    PhaseClock startClock()
+    {
+        return new PhaseClock();
+    }
+
+    /**
+     * Starts the JFR event of a band of layers.
+     * @return event to pass to {@link #endBand}.
+     */
+    BandEvent startBand()
+    {
+        BandEvent event = new BandEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the JFR event of a band of layers.
+     * @param event event returned by {@link #startBand()}.
+     * @param firstLayer first layer of the band.
+     * @param lastLayer last layer of the band.
+     * @param bandTriangles number of triangles of the band.
+     */
+    void endBand(final BandEvent event, final int firstLayer, final int lastLayer,
+            final long bandTriangles)
+    {
+        sampleHeap();
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.firstLayer = firstLayer;
+            event.lastLayer = lastLayer;
+            event.triangles = bandTriangles;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records the image size after decoding and resampling.
+     * @param imageWidth width in pixels.
+     * @param imageHeight height in pixels.
+     */
+    void setImageSize(final int imageWidth, final int imageHeight)
+    {
+        this.width = imageWidth;
+        this.height = imageHeight;
+    }
+
+    /**
+     * Records that the model was taken from the cache instead of being generated.
+     */
+    void setCacheHit()
+    {
+        this.cacheHit = true;
+    }
+
+    /**
+     * Tells whether the model was taken from the cache.
+     * @return true if the model was not generated.
+     */
+    public boolean isCacheHit()
+    {
+        return cacheHit;
+    }
+
+    /**
+     * Stops measuring.
+     * @param modelTriangles number of triangles of the model.
+     */
+    void finish(final long modelTriangles)
+    {
+        this.wallNanos = System.nanoTime() - startNanos;
+        this.triangles = modelTriangles;
+        sampleHeap();
+
+        GenerationEvent event = new GenerationEvent();
+        if (event.isEnabled())
+        {
+            event.triangles = triangles;
+            event.bytesWritten = getBytesWritten();
+            event.peakHeap = getPeakHeapBytes();
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the time spent in a phase.
+     * @param phase phase.
+     * @return time in nanoseconds, summed over all the threads.
+     */
+    public long getNanos(final Phase phase)
+    {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * Returns the wall time of the whole generation.
+     * @return time in nanoseconds.
+     */
+    public long getWallNanos()
+    {
+        return wallNanos;
+    }
+
+    /**
+     * Returns the number of triangles.
+     * @return number of triangles.
+     */
+    public long getTriangles()
+    {
+        return triangles;
+    }
+
+    /**
+     * Returns the number of bytes written to the output.
+     * @return number of bytes.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Returns the largest heap usage of the JVM sampled during the generation (garbage not yet
+     * collected and other generations running at the same time are included).
+     * @return bytes.
+     */
+    public long getPeakHeapBytes()
+    {
+        return peakHeap.get();
+    }
+
+    /**
+     * Writes the metrics as a JSON object.
+     * @param file destination file.
+     * @param image source image.
+     * @param output destination model, or null if written to a stream.
+     * @param format model format.
+     * @param threads number of threads.
+     * @throws IOException error writing the file.
+     */
+    public void writeJson(final File file, final File image, final File output,
+            final MeshFormat format, final int threads) throws IOException
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append(String.format(Locale.US, "  \"image\": %s,%n", quote(image.getPath())));
+        json.append(String.format(Locale.US, "  \"output\": %s,%n",
+                output == null ? "null" : quote(output.getPath())));
+        json.append(String.format(Locale.US, "  \"format\": %s,%n", quote(format.name())));
+        json.append(String.format(Locale.US, "  \"threads\": %d,%n", threads));
+        json.append(String.format(Locale.US, "  \"cacheHit\": %b,%n", cacheHit));
+        json.append(String.format(Locale.US, "  \"width\": %d,%n", width));
+        json.append(String.format(Locale.US, "  \"height\": %d,%n", height));
+        json.append(String.format(Locale.US, "  \"triangles\": %d,%n", triangles));
+        json.append(String.format(Locale.US, "  \"bytesWritten\": %d,%n", getBytesWritten()));
+        json.append(String.format(Locale.US, "  \"peakHeapBytes\": %d,%n",
+                getPeakHeapBytes()));
+        json.append(String.format(Locale.US, "  \"wallTimeMs\": %.3f,%n", wallNanos / 1e6));
+        json.append(String.format(Locale.US, "  \"trianglesPerSecond\": %.0f,%n",
+                wallNanos > 0 ? (triangles * 1e9) / wallNanos : 0.0));
+        json.append("  \"phasesMs\": {");
+        for (Phase phase : Phase.values())
+        {
+            json.append(String.format(Locale.US, "%s\n    \"%s\": %.3f",
+                    phase.ordinal() == 0 ? "" : ",", phase.getName(), getNanos(phase) / 1e6));
+        }
+        json.append("\n  }\n}\n");
+
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(json.toString());
+        }
+    }
+
+    /**
+     * Quotes a JSON string.
+     * @param value string.
+     * @return quoted and escaped string.
+     */
+    private static String quote(final String value)
+    {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if ((c == '"') || (c == '\\'))
+            {
+                quoted.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Measures a sequential phase.
+     */
+    public final class PhaseTimer
+    {
+        private final Phase phase;
+
+        private final long start;
+
+        private final PhaseEvent event = new PhaseEvent();
+
+        /**
+         * Constructor; starts measuring.
+         * @param phase phase.
+         */
+        private PhaseTimer(final Phase phase)
+        {
+            this.phase = phase;
+            event.begin();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Stops measuring, adding the elapsed time to the phase.
+         */
+        public void stop()
+        {
+            addNanos(phase, System.nanoTime() - start);
+            sampleHeap();
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.phase = phase.getName();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Splits the time of a thread between phases measured in small steps, leaving out the time
+     * spent writing to the output (counted as serialization).
+     */
+    final class PhaseClock
+    {
+        private long mark = System.nanoTime();
+
+        private long serializationMark = getThreadSerializationNanos();
+
+        /**
+         * Adds the time elapsed since the previous lap to a phase.
+         * @param phase phase.
+         */
+        void lap(final Phase phase)
+        {
+            long now = System.nanoTime();
+            long serialization = getThreadSerializationNanos();
+            addNanos(phase, (now - mark) - (serialization - serializationMark));
+            mark = now;
+            serializationMark = serialization;
+        }
+    }
+
+    /**
+     * JFR event of a completed sequential phase.
+     */
+    @Name("it.davideorlandi.lithophanizer.Phase")
+    @Label("Lithophane Phase")
+    @Category("Lithophanizer")
+    @Description("A phase of the generation of a lithophane")
+    static final class PhaseEvent extends Event
+    {
+        @Label("Phase")
+        String phase;
+    }
+
+    /**
+     * JFR event of a generated band of layers.
+     */
+    @Name("it.davideorlandi.lithophanizer.Band")
+    @Label("Lithophane Band")
+    @Category("Lithophanizer")
+    @Description("Generation of a band of layers")
+    static final class BandEvent extends Event
+    {
+        @Label("First Layer")
+        int firstLayer;
+
+        @Label("Last Layer")
+        int lastLayer;
+
+        @Label("Triangles")
+        long triangles;
+    }
+
+    /**
+     * JFR event of a completed lithophane.
+     */
+    @Name("it.davideorlandi.lithophanizer.Generation")
+    @Label("Lithophane Generation")
+    @Category("Lithophanizer")
+    @Description("Generation of a whole lithophane")
+    static final class GenerationEvent extends Event
+    {
+        @Label("Triangles")
+        long triangles;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Peak Heap")
+        @DataAmount
+        long peakHeap;
+    }
+}
@@ -0,0 +1,491 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP service generating lithophanes in a long running JVM.
+ * <p>
+ * A lithophane is requested with a <code>POST</code> to {@value #PATH} whose body is the image
+ * and whose query parameters are the long command line option names (for example
+ * <code>?diameter=80&amp;rough-face=inside</code>); the model is streamed back while it is
+ * generated. The server listens on the loopback address only.
+ * </p>
+ * <p>
+ * At most a fixed number of lithophanes are generated at the same time; further requests are
+ * rejected with status 503. A request is also rejected if the heap estimated for its image does
+ * not fit in the heap left by the requests in progress (status 503) or in the whole heap
+ * (status 413).
+ * </p>
+ */
+public class GenerationServer
+{
+    /** Path of the generation endpoint. */
+    public static final String PATH = "/lithophane";
+
+    /** Fraction of the maximum heap that can be reserved by the requests in progress. */
+    private static final double HEAP_FRACTION = 0.75;
+
+    /** Extra handler threads, to reject requests while all the generations are in progress. */
+    private static final int EXTRA_HANDLERS = 2;
+
+    /** Seconds suggested to the client before retrying a rejected request. */
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    /** Number of pending connections accepted by the socket. */
+    private static final int BACKLOG = 64;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** File name of the uploaded images. */
+    private static final String UPLOAD_NAME = "upload";
+
+    private static final int STATUS_OK = 200;
+
+    private static final int STATUS_BAD_REQUEST = 400;
+
+    private static final int STATUS_NOT_FOUND = 404;
+
+    private static final int STATUS_METHOD_NOT_ALLOWED = 405;
+
+    private static final int STATUS_PAYLOAD_TOO_LARGE = 413;
+
+    private static final int STATUS_INTERNAL_ERROR = 500;
+
+    private static final int STATUS_UNAVAILABLE = 503;
+
+    private final int port;
+
+    private final BatchRunner.JobFactory factory;
+
+    /** Permits for the lithophanes generated at the same time. */
+    private final Semaphore inFlight;
+
+    private final int maxInFlight;
+
+    /** Heap that can be reserved by the requests in progress, in bytes. */
+    private final long heapBudget;
+
+    /** Heap reserved by the requests in progress, in bytes. */
+    private long reservedHeap;
+
+    private long maxUploadSize = 256L * 1024 * 1024;
+
+    private final AngleTables.Cache angleTableCache = new AngleTables.Cache();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * Constructor.
+     * @param port TCP port; 0 to choose a free one.
+     * @param maxInFlight maximum number of lithophanes generated at the same time.
+     * @param factory creates the lithophanizer of a request from its parameters; the image and
+     *        output parameters are set by the server.
+     */
+    public GenerationServer(final int port, final int maxInFlight,
+            final BatchRunner.JobFactory factory)
+    {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("Number of jobs must be at least 1");
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.factory = factory;
+        this.heapBudget = (long) (Runtime.getRuntime().maxMemory() * HEAP_FRACTION);
+    }
+
+    /**
+     * Sets the maximum size of an uploaded image.
+     * @param maxUploadSize size in bytes; default is 256 MB.
+     */
+    public void setMaxUploadSize(final long maxUploadSize)
+    {
+        this.maxUploadSize = maxUploadSize;
+    }
+
+    /**
+     * Starts listening; requests are handled on a bounded pool of threads.
+     * @throws IOException error opening the socket.
+     */
+    public void start() throws IOException
+    {
+        server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        executor = Executors.newFixedThreadPool(maxInFlight + EXTRA_HANDLERS);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return port.
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, waiting for the requests in progress.
+     * @param delaySeconds maximum time to wait for the requests in progress.
+     * @throws InterruptedException interrupted while waiting.
+     */
+    public void stop(final int delaySeconds) throws InterruptedException
+    {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Handles a request.
+     * @param exchange request and response.
+     */
+    private void handle(final HttpExchange exchange)
+    {
+        try
+        {
+            if ( ! PATH.equals(exchange.getRequestURI().getPath()))
+            {
+                sendError(exchange, STATUS_NOT_FOUND, "Not found");
+            }
+            else if ( ! "POST".equals(exchange.getRequestMethod()))
+            {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, STATUS_METHOD_NOT_ALLOWED, "Only POST is supported");
+            }
+            else if ( ! inFlight.tryAcquire())
+            {
+                exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                sendError(exchange, STATUS_UNAVAILABLE, "Too many requests in progress");
+            }
+            else
+            {
+                try
+                {
+                    generate(exchange);
+                }
+                finally
+                {
+                    inFlight.release();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // the client went away
+            log("FAILED %s: %s", exchange.getRemoteAddress(), e);
+        }
+        // skipped if the response is aborted: closing the exchange would end the chunked body
+        exchange.close();
+    }
+
+    /**
+     * Generates a lithophane from the uploaded image and streams it as response.
+     * @param exchange request and response.
+     * @throws IOException error reading the request or writing the response.
+     * @throws AbortedResponseException if the generation fails after the response has started.
+     */
+    private void generate(final HttpExchange exchange) throws IOException
+    {
+        long start = System.nanoTime();
+        // same name for every upload, so that the model name (and the cache key) only depend
+        // on the content
+        Path directory = Files.createTempDirectory("lithophanizer");
+        Path image = directory.resolve(UPLOAD_NAME);
+        long reserved = 0;
+        CommittingOutputStream response = new CommittingOutputStream(exchange);
+        try
+        {
+            long size = upload(exchange.getRequestBody(), image);
+            if (size < 0)
+            {
+                sendError(exchange, STATUS_PAYLOAD_TOO_LARGE,
+                        String.format("Images larger than %d bytes are not accepted",
+                                maxUploadSize));
+                return;
+            }
+            if (size == 0)
+                throw new IllegalArgumentException("No image in the request body");
+
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI());
+            if (parameters.containsKey(BatchRunner.IMAGE_PARAMETER)
+                    || parameters.containsKey(BatchRunner.OUTPUT_PARAMETER))
+                throw new IllegalArgumentException("Image and output cannot be set");
+            parameters.put(BatchRunner.IMAGE_PARAMETER, image.toString());
+            // ignored: the model is written to the response
+            parameters.put(BatchRunner.OUTPUT_PARAMETER, image.toString());
+            Lithophanizer lithophanizer = factory.create(parameters);
+            lithophanizer.setAngleTableCache(angleTableCache);
+            lithophanizer.setVerbose(false);
+
+            long heap = lithophanizer.estimateHeapBytes();
+            if (heap > heapBudget)
+            {
+                sendError(exchange, STATUS_PAYLOAD_TOO_LARGE, String.format(
+                        "Image too large: about %d MB of heap needed", heap >> 20));
+                return;
+            }
+            if ( ! reserveHeap(heap))
+            {
+                exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                sendError(exchange, STATUS_UNAVAILABLE, "Not enough memory, retry later");
+                return;
+            }
+            reserved = heap;
+
+            String extension = lithophanizer.getFormat().getExtension();
+            if (lithophanizer.isCompressed())
+            {
+                extension += ".gz";
+                exchange.getResponseHeaders().set("Content-Type", "application/gzip");
+            }
+            else
+            {
+                exchange.getResponseHeaders().set("Content-Type",
+                        lithophanizer.getFormat().getMediaType());
+            }
+            exchange.getResponseHeaders().set("Content-Disposition",
+                    "attachment; filename=\"lithophane." + extension + "\"");
+            BufferedOutputStream buffered = new BufferedOutputStream(response, BUFFER_SIZE);
+            lithophanizer.generateLithophane(buffered);
+            buffered.flush();
+            response.close();
+            if (lithophanizer.isCacheHit())
+                log("OK %s: taken from cache in %.1f s", exchange.getRemoteAddress(),
+                        (System.nanoTime() - start) / 1e9);
+            else
+                log("OK %s: %d triangles in %.1f s", exchange.getRemoteAddress(),
+                        lithophanizer.getTriangleCount(), (System.nanoTime() - start) / 1e9);
+        }
+        catch (Exception | OutOfMemoryError e)
+        {
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            log("FAILED %s: %s", exchange.getRemoteAddress(), message);
+            // once the model has started, the status cannot change: the connection is dropped
+            // before the end of the chunked body, so that the client sees an incomplete response
+            if (response.isCommitted())
+                throw new AbortedResponseException(e);
+            sendError(exchange,
+                    e instanceof IllegalArgumentException ? STATUS_BAD_REQUEST
+                            : STATUS_INTERNAL_ERROR,
+                    message);
+        }
+        finally
+        {
+            releaseHeap(reserved);
+            Files.deleteIfExists(image);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Copies the uploaded image to a file.
+     * @param body request body.
+     * @param image destination file.
+     * @return size of the image, or -1 if larger than the maximum upload size.
+     * @throws IOException error reading the request or writing the file.
+     */
+    private long upload(final InputStream body, final Path image) throws IOException
+    {
+        try (OutputStream file = Files.newOutputStream(image))
+        {
+            byte [] buffer = new byte [BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = body.read(buffer)) >= 0)
+            {
+                total += read;
+                if (total > maxUploadSize)
+                    return -1;
+                file.write(buffer, 0, read);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Reserves heap for a request.
+     * @param bytes estimated heap of the request.
+     * @return false if it does not fit in the heap left by the other requests.
+     */
+    private synchronized boolean reserveHeap(final long bytes)
+    {
+        if ((reservedHeap + bytes) > heapBudget)
+            return false;
+        reservedHeap += bytes;
+        return true;
+    }
+
+    /**
+     * Releases the heap reserved for a request.
+     * @param bytes reserved heap.
+     */
+    private synchronized void releaseHeap(final long bytes)
+    {
+        reservedHeap -= bytes;
+    }
+
+    /**
+     * Parses the query parameters of a request.
+     * @param uri request URI.
+     * @return parameters, by name.
+     */
+    private static Map<String, String> parseQuery(final URI uri)
+    {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        String query = uri.getRawQuery();
+        if ((query == null) || query.isEmpty())
+            return parameters;
+        for (String pair : query.split("&"))
+        {
+            if (pair.isEmpty())
+                continue;
+            int equals = pair.indexOf('=');
+            // parameters without value are flags
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? Boolean.TRUE.toString() : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * Sends an error response with a text message.
+     * @param exchange request and response.
+     * @param status HTTP status.
+     * @param message error message.
+     * @throws IOException error writing the response.
+     */
+    private static void sendError(final HttpExchange exchange, final int status,
+            final String message) throws IOException
+    {
+        byte [] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream stream = exchange.getResponseBody())
+        {
+            stream.write(body);
+        }
+    }
+
+    /**
+     * Prints a line about a request.
+     * @param format format string.
+     * @param args format arguments.
+     */
+    private static void log(final String format, final Object... args)
+    {
+        System.out.format(Locale.US, format + "%n", args);
+    }
+
+    /**
+     * Response body that sends the headers (status 200, chunked) at the first write, so that
+     * errors found before any output can still be reported with an error status.
+     */
+    private static final class CommittingOutputStream extends OutputStream
+    {
+        private final HttpExchange exchange;
+
+        private OutputStream body;
+
+        /**
+         * Constructor.
+         * @param exchange request and response.
+         */
+        CommittingOutputStream(final HttpExchange exchange)
+        {
+            this.exchange = exchange;
+        }
+
+        /**
+         * Tells whether the headers have been sent.
+         * @return true if the response has started.
+         */
+        boolean isCommitted()
+        {
+            return body != null;
+        }
+
+        /**
+         * Sends the headers, if not sent yet.
+         * @return response body.
+         * @throws IOException error writing the headers.
+         */
+        private OutputStream commit() throws IOException
+        {
+            if (body == null)
+            {
+                exchange.sendResponseHeaders(STATUS_OK, 0);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            commit().write(b);
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len) throws IOException
+        {
+            commit().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (body != null)
+                body.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            commit().close();
+        }
+    }
+
+    /**
+     * Thrown out of the handler when a response cannot be completed, so that the HTTP server
+     * closes the connection without ending the response.
+     */
+    private static final class AbortedResponseException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         * @param cause failure that stopped the response.
+         */
+        AbortedResponseException(final Throwable cause)
+        {
+            super("Response aborted", cause);
+        }
+    }
+}
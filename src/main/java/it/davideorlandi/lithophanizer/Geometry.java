@@ -0,0 +1,47 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.BitSet;
+
+/**
+ * Maps image columns and thickness to the points of the model for a given shape and rough face.
+ * <p>
+ * Each implementation fills the whole perimeters of a layer in a single loop, with the shape and
+ * the rough face fixed at construction, so the loop has no branches and a generation only ever
+ * sees one implementation.
+ * </p>
+ */
+public interface Geometry
+{
+    /**
+     * Tells whether the perimeters are closed: if they are, the last point is joined to the first
+     * one; if not, the ends are closed by vertical walls between the outer and inner points.
+     * @return true for closed perimeters.
+     */
+    boolean isClosed();
+
+    /**
+     * Sets the outer and inner points of a layer.
+     * @param layer destination layer; its Z coordinate and size are not changed.
+     * @param thickness thickness of each column.
+     * @param columns columns whose points are set, in order; null for all the columns.
+     * @return number of points set.
+     */
+    int setPoints(Layer layer, double [] thickness, BitSet columns);
+
+    /**
+     * Returns the X component of the normal of the outer face between a column and the next one,
+     * where the face is at the same distance from the base surface in both columns; the normal of
+     * the inner face is the opposite.
+     * @param column column.
+     * @return X component of the normal.
+     */
+    float getNormalX(int column);
+
+    /**
+     * Returns the Y component of the normal of the outer face between a column and the next one;
+     * see {@link #getNormalX(int)}.
+     * @param column column.
+     * @return Y component of the normal.
+     */
+    float getNormalY(int column);
+}
@@ -0,0 +1,331 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Filters applied to the brightness of an image before the mesh is generated: a tone curve
+ * (gamma and contrast), Gaussian blur and unsharp mask.
+ * <p>
+ * The image is split in square tiles, processed in parallel; each tile reads the source pixels
+ * around it, so the result does not depend on the number of threads. The Gaussian kernel is
+ * separable: each tile is blurred horizontally into a buffer covering the tile and the kernel
+ * radius above and below it, then vertically. Beyond the top and bottom edges the edge rows are
+ * repeated; horizontally the image either wraps around (for images wrapped on a cylinder) or the
+ * edge columns are repeated.
+ * </p>
+ */
+public final class ImageFilter
+{
+    /** Size of the tiles, in pixels. */
+    private static final int TILE_SIZE = 256;
+
+    /** Radius of the Gaussian kernel, in standard deviations. */
+    private static final double KERNEL_SIGMAS = 3.0;
+
+    private final BrightnessSource source;
+
+    private final WritableBrightness destination;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Constructor.
+     * @param source source image.
+     * @param mapped true to store the result in a memory mapped file instead of the heap.
+     * @throws IOException error creating the temporary file.
+     */
+    private ImageFilter(final BrightnessSource source, final boolean mapped) throws IOException
+    {
+        this.source = source;
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.destination = mapped ? MappedBrightness.create(width, height)
+                : new BrightnessPlane(width, height);
+    }
+
+    /**
+     * Applies a tone curve: a gamma correction, then a contrast change around middle gray.
+     * @param source source image.
+     * @param gamma gamma; values greater than 1 brighten the midtones, 1 leaves them unchanged.
+     * @param contrast contrast factor; 1 leaves the contrast unchanged.
+     * @param mapped true to store the result in a memory mapped file instead of the heap.
+     * @param threads number of threads; tiles are split between them.
+     * @return filtered image.
+     * @throws IOException error creating the result, or interrupted.
+     */
+    public static WritableBrightness applyToneCurve(final BrightnessSource source,
+            final double gamma, final double contrast, final boolean mapped, final int threads)
+            throws IOException
+    {
+        if ( ! (gamma > 0.0))
+            throw new IllegalArgumentException("Gamma must be greater than zero");
+        if (contrast < 0.0)
+            throw new IllegalArgumentException("Contrast cannot be negative");
+        int [] curve = new int [BrightnessSource.MAX_BRIGHTNESS + 1];
+        for (int b = 0; b <= BrightnessSource.MAX_BRIGHTNESS; b++)
+        {
+            double value = Math.pow((double) b / BrightnessSource.MAX_BRIGHTNESS, 1.0 / gamma);
+            value = ((value - 0.5) * contrast) + 0.5;
+            curve[b] = (int) Math.round(
+                    Math.max(0.0, Math.min(1.0, value)) * BrightnessSource.MAX_BRIGHTNESS);
+        }
+
+        ImageFilter filter = new ImageFilter(source, mapped);
+        filter.processTiles(threads, (x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y++)
+            {
+                for (int x = x0; x < x1; x++)
+                {
+                    filter.destination.set(x, y, curve[source.get(x, y)]);
+                }
+            }
+        });
+        return filter.destination;
+    }
+
+    /**
+     * Applies a Gaussian blur.
+     * @param source source image.
+     * @param sigma standard deviation of the kernel, in pixels.
+     * @param wrap true if the image wraps around horizontally.
+     * @param mapped true to store the result in a memory mapped file instead of the heap.
+     * @param threads number of threads; tiles are split between them.
+     * @return filtered image.
+     * @throws IOException error creating the result, or interrupted.
+     */
+    public static WritableBrightness blur(final BrightnessSource source, final double sigma,
+            final boolean wrap, final boolean mapped, final int threads) throws IOException
+    {
+        // original + (-1) * (original - blurred) = blurred
+        return convolve(source, sigma, -1.0, wrap, mapped, threads);
+    }
+
+    /**
+     * Applies an unsharp mask: the difference between the image and its blurred copy is
+     * amplified.
+     * @param source source image.
+     * @param sigma standard deviation of the blur, in pixels.
+     * @param amount amplification of the difference; 1 doubles it.
+     * @param wrap true if the image wraps around horizontally.
+     * @param mapped true to store the result in a memory mapped file instead of the heap.
+     * @param threads number of threads; tiles are split between them.
+     * @return filtered image.
+     * @throws IOException error creating the result, or interrupted.
+     */
+    public static WritableBrightness sharpen(final BrightnessSource source, final double sigma,
+            final double amount, final boolean wrap, final boolean mapped, final int threads)
+            throws IOException
+    {
+        if (amount < 0.0)
+            throw new IllegalArgumentException("Sharpening amount cannot be negative");
+        return convolve(source, sigma, amount, wrap, mapped, threads);
+    }
+
+    /**
+     * Blurs the image and sets each pixel to original + amount * (original - blurred).
+     * @param source source image.
+     * @param sigma standard deviation of the blur, in pixels.
+     * @param amount weight of the difference from the blurred image.
+     * @param wrap true if the image wraps around horizontally.
+     * @param mapped true to store the result in a memory mapped file instead of the heap.
+     * @param threads number of threads; tiles are split between them.
+     * @return filtered image.
+     * @throws IOException error creating the result, or interrupted.
+     */
+    private static WritableBrightness convolve(final BrightnessSource source, final double sigma,
+            final double amount, final boolean wrap, final boolean mapped, final int threads)
+            throws IOException
+    {
+        if ( ! (sigma > 0.0))
+            throw new IllegalArgumentException("Blur radius must be greater than zero");
+        double [] kernel = createKernel(sigma);
+        ImageFilter filter = new ImageFilter(source, mapped);
+        filter.processTiles(threads,
+                (x0, y0, x1, y1) -> filter.convolveTile(x0, y0, x1, y1, kernel, amount, wrap));
+        return filter.destination;
+    }
+
+    /**
+     * Calculates a normalized Gaussian kernel.
+     * @param sigma standard deviation, in pixels.
+     * @return kernel weights, from -radius to +radius.
+     */
+    private static double [] createKernel(final double sigma)
+    {
+        int radius = Math.max(1, (int) Math.ceil(sigma * KERNEL_SIGMAS));
+        double [] kernel = new double [(2 * radius) + 1];
+        double sum = 0.0;
+        for (int i = -radius; i <= radius; i++)
+        {
+            double weight = Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            kernel[i + radius] = weight;
+            sum += weight;
+        }
+        for (int i = 0; i < kernel.length; i++)
+        {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    /**
+     * Filters a tile.
+     * @param x0 first column.
+     * @param y0 first row.
+     * @param x1 column after the last one.
+     * @param y1 row after the last one.
+     * @param kernel kernel weights.
+     * @param amount weight of the difference from the blurred image.
+     * @param wrap true if the image wraps around horizontally.
+     */
+    private void convolveTile(final int x0, final int y0, final int x1, final int y1,
+            final double [] kernel, final double amount, final boolean wrap)
+    {
+        int radius = kernel.length / 2;
+        int tileWidth = x1 - x0;
+        int rows = (y1 - y0) + (2 * radius);
+
+        // horizontal pass, on the rows of the tile and those around it
+        float [] horizontal = new float [rows * tileWidth];
+        int [] row = new int [tileWidth + (2 * radius)];
+        for (int j = 0; j < rows; j++)
+        {
+            int y = Math.max(0, Math.min(height - 1, (y0 - radius) + j));
+            for (int i = 0; i < row.length; i++)
+            {
+                row[i] = source.get(getColumn((x0 - radius) + i, wrap), y);
+            }
+            int offset = j * tileWidth;
+            for (int i = 0; i < tileWidth; i++)
+            {
+                double sum = 0.0;
+                for (int k = 0; k < kernel.length; k++)
+                {
+                    sum += kernel[k] * row[i + k];
+                }
+                horizontal[offset + i] = (float) sum;
+            }
+        }
+
+        // vertical pass, one row at a time
+        double [] blurred = new double [tileWidth];
+        for (int y = y0; y < y1; y++)
+        {
+            Arrays.fill(blurred, 0.0);
+            for (int k = 0; k < kernel.length; k++)
+            {
+                double weight = kernel[k];
+                int offset = ((y - y0) + k) * tileWidth;
+                for (int i = 0; i < tileWidth; i++)
+                {
+                    blurred[i] += weight * horizontal[offset + i];
+                }
+            }
+            for (int i = 0; i < tileWidth; i++)
+            {
+                int original = source.get(x0 + i, y);
+                double value = original + (amount * (original - blurred[i]));
+                destination.set(x0 + i, y, (int) Math.max(0,
+                        Math.min(BrightnessSource.MAX_BRIGHTNESS, Math.round(value))));
+            }
+        }
+    }
+
+    /**
+     * Returns the column read for a column that may be beyond the image edges.
+     * @param x column.
+     * @param wrap true if the image wraps around horizontally.
+     * @return column inside the image.
+     */
+    private int getColumn(final int x, final boolean wrap)
+    {
+        if (wrap)
+            return Math.floorMod(x, width);
+        return Math.max(0, Math.min(width - 1, x));
+    }
+
+    /**
+     * Processes all the tiles of the image.
+     * @param threads number of threads; tiles are split between them.
+     * @param task processing of a tile.
+     * @throws IOException interrupted while waiting for the threads.
+     */
+    private void processTiles(final int threads, final TileTask task) throws IOException
+    {
+        List<int []> tiles = new ArrayList<>();
+        for (int y = 0; y < height; y += TILE_SIZE)
+        {
+            for (int x = 0; x < width; x += TILE_SIZE)
+            {
+                tiles.add(new int [] {x, y, Math.min(width, x + TILE_SIZE),
+                        Math.min(height, y + TILE_SIZE)});
+            }
+        }
+        if ((threads <= 1) || (tiles.size() == 1))
+        {
+            for (int [] tile : tiles)
+            {
+                task.process(tile[0], tile[1], tile[2], tile[3]);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tiles.size()));
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>(tiles.size());
+            for (int [] tile : tiles)
+            {
+                futures.add(executor.submit(
+                        () -> task.process(tile[0], tile[1], tile[2], tile[3])));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            if (e.getCause() instanceof Error error)
+                throw error;
+            throw new IOException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Filtering interrupted");
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Processing of a tile.
+     */
+    @FunctionalInterface
+    private interface TileTask
+    {
+        /**
+         * Processes a tile.
+         * @param x0 first column.
+         * @param y0 first row.
+         * @param x1 column after the last one.
+         * @param y1 row after the last one.
+         */
+        void process(int x0, int y0, int x1, int y1);
+    }
+}
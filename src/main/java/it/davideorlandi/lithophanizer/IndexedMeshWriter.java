@@ -0,0 +1,118 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+
+/**
+ * Writer of mesh formats where each vertex is written once and faces reference vertices by index.
+ * <p>
+ * All the vertices must be written before the first face; the index of a vertex is the position
+ * in which it was written (starting from 0), so perimeters must have their
+ * {@link Perimeter#firstVertex() first vertex} set accordingly before faces are added.
+ * </p>
+ */
+public abstract class IndexedMeshWriter implements MeshSink
+{
+    /** Number of vertices declared in the header. */
+    private final long vertexCount;
+
+    /** Number of faces declared in the header. */
+    private final long faceCount;
+
+    /** Number of vertices written so far. */
+    private long writtenVertices;
+
+    /** Number of faces written so far. */
+    private long writtenFaces;
+
+    /**
+     * Constructor.
+     * @param vertexCount number of vertices that will be written.
+     * @param faceCount number of faces that will be written.
+     */
+    protected IndexedMeshWriter(final long vertexCount, final long faceCount)
+    {
+        this.vertexCount = vertexCount;
+        this.faceCount = faceCount;
+    }
+
+    /**
+     * Writes all the points of a perimeter as vertices.
+     * @param perimeter points to write.
+     * @throws IOException error while writing.
+     */
+    public void addVertices(final Perimeter perimeter) throws IOException
+    {
+        if ((writtenVertices + perimeter.size()) > vertexCount)
+            throw new IllegalStateException(
+                    String.format("More than %d vertices added to the mesh", vertexCount));
+        float [] x = perimeter.x();
+        float [] y = perimeter.y();
+        float z = perimeter.z();
+        int size = perimeter.size();
+        for (int i = 0; i < size; i++)
+        {
+            writeVertex(x[i], y[i], z);
+        }
+        writtenVertices += size;
+    }
+
+    /**
+     * Writes a face referencing the vertices by index.
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
+     * @throws IOException error while writing.
+     */
+    @Override
+    public void addTriangle(final Perimeter p1, final int i1, final Perimeter p2, final int i2,
+            final Perimeter p3, final int i3) throws IOException
+    {
+        if (writtenVertices != vertexCount)
+            throw new IllegalStateException("Faces must be added after all the vertices");
+        if (writtenFaces >= faceCount)
+            throw new IllegalStateException(
+                    String.format("More than %d faces added to the mesh", faceCount));
+        writeFace(p1.firstVertex() + i1, p2.firstVertex() + i2, p3.firstVertex() + i3);
+        writtenFaces++;
+    }
+
+    /**
+     * Checks that all the declared vertices and faces have been written and flushes the output.
+     * @throws IOException error while writing.
+     */
+    public void finish() throws IOException
+    {
+        if ((writtenVertices != vertexCount) || (writtenFaces != faceCount))
+            throw new IllegalStateException(String.format(
+                    "%d vertices and %d faces declared but %d and %d written", vertexCount,
+                    faceCount, writtenVertices, writtenFaces));
+        flush();
+    }
+
+    /**
+     * Writes a vertex.
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @param z Z coordinate.
+     * @throws IOException error while writing.
+     */
+    protected abstract void writeVertex(float x, float y, float z) throws IOException;
+
+    /**
+     * Writes a triangular face.
+     * @param v1 index of the first vertex.
+     * @param v2 index of the second vertex.
+     * @param v3 index of the third vertex.
+     * @throws IOException error while writing.
+     */
+    protected abstract void writeFace(int v1, int v2, int v3) throws IOException;
+
+    /**
+     * Writes any buffered data to the destination stream and flushes it.
+     * @throws IOException error while writing.
+     */
+    protected abstract void flush() throws IOException;
+}
@@ -2,10 +2,57 @@ package it.davideorlandi.lithophanizer;
 
 /**
  * A single model layer, with an outer and an inner perimeter.
- * @param outerPerimeter Points of the outer perimeter. Each point is a 3 float vector.
- * @param innerPerimeter Points of the inner perimeter. Each point is a 3 float vector.
+ * @param outerPerimeter Points of the outer perimeter.
+ * @param innerPerimeter Points of the inner perimeter.
  */
-public record Layer(double [] [] outerPerimeter, double [] [] innerPerimeter)
+public record Layer(Perimeter outerPerimeter, Perimeter innerPerimeter)
 {
-    // nessun metodo
+    /**
+     * Creates a layer with empty perimeters.
+     * @param size number of points of each perimeter.
+     */
+    public Layer(final int size)
+    {
+        this(new Perimeter(size), new Perimeter(size));
+    }
+
+    /**
+     * Returns the Z coordinate of the layer.
+     * @return Z coordinate.
+     */
+    public float z()
+    {
+        return innerPerimeter.z();
+    }
+
+    /**
+     * Sets the Z coordinate of both perimeters.
+     * @param z Z coordinate.
+     */
+    public void setZ(final float z)
+    {
+        outerPerimeter.setZ(z);
+        innerPerimeter.setZ(z);
+    }
+
+    /**
+     * Sets the number of points of both perimeters.
+     * @param size number of points.
+     */
+    public void setSize(final int size)
+    {
+        outerPerimeter.setSize(size);
+        innerPerimeter.setSize(size);
+    }
+
+    /**
+     * Sets the index of the first point of both perimeters in an indexed mesh, where the points of
+     * the outer perimeter are followed by those of the inner one.
+     * @param firstVertex index of the first point of the outer perimeter.
+     */
+    public void setFirstVertex(final int firstVertex)
+    {
+        outerPerimeter.setFirstVertex(firstVertex);
+        innerPerimeter.setFirstVertex(firstVertex + outerPerimeter.size());
+    }
 }
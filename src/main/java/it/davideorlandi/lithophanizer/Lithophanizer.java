@@ -1,14 +1,36 @@
 package it.davideorlandi.lithophanizer;
 
-import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * Generates a cylindrical lithophane .stl file.
@@ -16,7 +38,31 @@ import javax.imageio.ImageIO;
 public class Lithophanizer
 {
     /** Outoput buffer size in bytes */
-    private static final int BUFFER_SIZE = 2 * 1024 * 1024;
+    static final int BUFFER_SIZE = 2 * 1024 * 1024;
+
+    /** Approximate size in bytes of the serialized triangles of a row band. */
+    static final int BAND_SIZE = 4 * 1024 * 1024;
+
+    /** Number of bands queued for each thread, to keep all of them busy. */
+    static final int BANDS_PER_THREAD = 2;
+
+    /** Size in bytes of the header of a binary STL file. */
+    static final int STL_HEADER_SIZE = 80 + 4;
+
+    /** Suffix of the files being written, renamed when complete. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Version of the generated models: change it whenever the same parameters produce a different
+     * output, so that cached models are not used any more.
+     */
+    private static final int OUTPUT_VERSION = 3;
+
+    /** Default angle of an arc, in degrees. */
+    public static final double DEFAULT_ARC_ANGLE = 180.0;
+
+    /** Minimum width of a resampled image. */
+    private static final int MIN_WIDTH = 3;
 
     private File imagePath;
 
@@ -34,242 +80,1989 @@ public class Lithophanizer
 
     private double topBorderHeight;
 
-    private double topBorderTransition;
+    private double topBorderTransition;
+
+    private double bottomBorderThickness;
+
+    private double bottomBorderHeight;
+
+    private double bottomBorderTransition;
+
+    private RoughFace roughFace;
+
+    private Shape shape = Shape.CYLINDER;
+
+    private double arcAngle = DEFAULT_ARC_ANGLE;
+
+    private double panelWidth;
+
+    private int partCount;
+
+    private double maxPartHeight;
+
+    private double gamma = 1.0;
+
+    private double contrast = 1.0;
+
+    private double blurRadius;
+
+    private double sharpenRadius;
+
+    private double sharpenAmount;
+
+    private int threads = 1;
+
+    private MeshFormat format = MeshFormat.STL;
+
+    private double decimationTolerance;
+
+    private AngleTables.Cache angleTableCache;
+
+    private boolean verbose = true;
+
+    private boolean tiledDecoding;
+
+    private boolean compressed;
+
+    private double pixelsPerMillimeter;
+
+    private int maxResolution;
+
+    private int previewWidth;
+
+    private File metricsOutput;
+
+    private ResultCache resultCache;
+
+    private boolean validation;
+
+    private long memoryBudget;
+
+    /** Result of the validation of the last generated model, or null. */
+    private MeshValidator.Report validationReport;
+
+    private ProgressListener progressListener;
+
+    private CancellationToken cancellationToken;
+
+    /** Number of triangles of the bands completed so far. */
+    private long completedTriangles;
+
+    /** Metrics of the current or last generation. */
+    private GenerationMetrics metrics;
+
+    /** Threads of the current generation: the configured ones, or fewer to fit the budget. */
+    private int generationThreads;
+
+    /** Whether the current generation decodes the image in strips. */
+    private boolean generationTiledDecoding;
+
+    private int imageWidthPixels;
+
+    private int imageHeightPixels;
+
+    private double imageHeightMillimeters;
+
+    private BrightnessSource brightness;
+
+    /** Raw (before border transitions) thickness for each brightness value. */
+    private double [] thicknessTable;
+
+    private double angleStep;
+
+    private double pixelStep;
+
+    /** Position of the points of each column. */
+    private Geometry geometry;
+
+    /** All the layers of the model, from the bottom; borders included. */
+    private List<LayerSpec> layers;
+
+    /** Parts of the model, from the bottom, each written to its own file. */
+    private List<Part> parts;
+
+    /**
+     * Costruttore.
+     * @param imagePath path of the source png image.
+     * @param outputPath path of the destination .stl file.
+     * @param diameter diameter of the lithophane (measured on the flat face).
+     * @param minThickness minimum (lighttest) thickness.
+     * @param maxThickness maximum (darkest) thickness.
+     * @param topBorderThickness thickness of the top border.
+     * @param topBorderHeight height of the top border; if 0 there will be no top border.
+     * @param topBorderTransition length of the top border transition band; ignored if
+     *        topBorderHeight<=0.
+     * @param bottomBorderThickness thickness of the bottom border.
+     * @param bottomBorderHeight height of the nottom border; if 0 there will be no bottom border.
+     * @param bottomBorderTransition length of the bottom border transition band; ignored if
+     *        bottomBorderHeight<=0.
+     * @param roughFace where the rough face should be.
+     */
+    public Lithophanizer(final File imagePath, final File outputPath, final double diameter,
+            final double minThickness, final double maxThickness, final double topBorderThickness,
+            final double topBorderHeight, final double topBorderTransition,
+            final double bottomBorderThickness, final double bottomBorderHeight,
+            final double bottomBorderTransition, final RoughFace roughFace)
+    {
+        this.imagePath = imagePath;
+        this.outputPath = outputPath;
+        this.diameter = diameter;
+        this.radius = this.diameter / 2.0;
+        this.minThickness = minThickness;
+        this.maxThickness = maxThickness;
+        this.topBorderThickness = topBorderThickness;
+        this.topBorderHeight = topBorderHeight;
+        this.topBorderTransition = topBorderTransition;
+        this.bottomBorderThickness = bottomBorderThickness;
+        this.bottomBorderHeight = bottomBorderHeight;
+        this.bottomBorderTransition = bottomBorderTransition;
+        this.roughFace = roughFace;
+    }
+
+    /**
+     * Sets the number of threads used to generate the lithophane body; the generated file does not
+     * depend on it.
+     * @param threads number of threads (1 = generate everything in the calling thread).
+     */
+    public void setThreads(final int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1");
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the shape of the surface the image is laid on.
+     * @param shape shape; default is {@link Shape#CYLINDER}. For an arc the diameter is that of
+     *        the whole cylinder and the angle is set with {@link #setArcAngle}; for a flat panel
+     *        the width is set with {@link #setPanelWidth} and the diameter is ignored.
+     */
+    public void setShape(final Shape shape)
+    {
+        this.shape = shape;
+    }
+
+    /**
+     * Sets the angle spanned by the image on an arc.
+     * @param arcAngle angle in degrees, greater than 0 and less than 360; default is
+     *        {@value #DEFAULT_ARC_ANGLE}.
+     */
+    public void setArcAngle(final double arcAngle)
+    {
+        if ( ! ((arcAngle > 0.0) && (arcAngle < 360.0)))
+            throw new IllegalArgumentException("Arc angle must be between 0 and 360 degrees");
+        this.arcAngle = arcAngle;
+    }
+
+    /**
+     * Sets the width of a flat panel.
+     * @param panelWidth width in millimeters.
+     */
+    public void setPanelWidth(final double panelWidth)
+    {
+        if (panelWidth < 0.0)
+            throw new IllegalArgumentException("Panel width cannot be negative");
+        this.panelWidth = panelWidth;
+    }
+
+    /**
+     * Splits the model into parts stacked vertically, each closed at both ends and written to its
+     * own file, with ".part&lt;n&gt;" before the extension; parts are generated concurrently.
+     * The cut between two parts is at the layer nearest to equal heights.
+     * @param partCount number of parts (0 or 1 = no split).
+     */
+    public void setPartCount(final int partCount)
+    {
+        if (partCount < 0)
+            throw new IllegalArgumentException("Number of parts cannot be negative");
+        this.partCount = partCount;
+    }
+
+    /**
+     * Splits the model into the fewest parts not taller than a maximum height (see
+     * {@link #setPartCount(int)}).
+     * @param maxPartHeight maximum height of each part, in millimeters (0 = no split).
+     */
+    public void setMaxPartHeight(final double maxPartHeight)
+    {
+        if (maxPartHeight < 0.0)
+            throw new IllegalArgumentException("Maximum part height cannot be negative");
+        this.maxPartHeight = maxPartHeight;
+    }
+
+    /**
+     * Sets the tone curve applied to the image: a gamma correction, then a contrast change around
+     * middle gray.
+     * @param gamma gamma; values greater than 1 brighten the midtones. Default is 1 (unchanged).
+     * @param contrast contrast factor. Default is 1 (unchanged).
+     */
+    public void setToneCurve(final double gamma, final double contrast)
+    {
+        if ( ! (gamma > 0.0))
+            throw new IllegalArgumentException("Gamma must be greater than zero");
+        if (contrast < 0.0)
+            throw new IllegalArgumentException("Contrast cannot be negative");
+        this.gamma = gamma;
+        this.contrast = contrast;
+    }
+
+    /**
+     * Sets the Gaussian blur applied to the image, after the tone curve.
+     * @param blurRadius standard deviation of the blur, in millimeters on the model; 0 disables
+     *        the blur.
+     */
+    public void setBlurRadius(final double blurRadius)
+    {
+        if (blurRadius < 0.0)
+            throw new IllegalArgumentException("Blur radius cannot be negative");
+        this.blurRadius = blurRadius;
+    }
+
+    /**
+     * Sets the unsharp mask applied to the image, after the blur.
+     * @param sharpenRadius standard deviation of the blur of the mask, in millimeters on the
+     *        model; 0 disables sharpening.
+     * @param sharpenAmount amplification of the details; 1 doubles them.
+     */
+    public void setSharpening(final double sharpenRadius, final double sharpenAmount)
+    {
+        if ((sharpenRadius < 0.0) || (sharpenAmount < 0.0))
+            throw new IllegalArgumentException("Sharpening radius and amount cannot be negative");
+        this.sharpenRadius = sharpenRadius;
+        this.sharpenAmount = sharpenAmount;
+    }
+
+    /**
+     * Sets the format of the output file.
+     * @param format output format; default is {@link MeshFormat#STL}.
+     */
+    public void setFormat(final MeshFormat format)
+    {
+        this.format = format;
+    }
+
+    /**
+     * Enables adaptive triangulation: points that can be interpolated from their neighbours (along
+     * the perimeter or across rows) within the tolerance are left out, so flat areas are covered
+     * by fewer, larger triangles. The mesh stays watertight.
+     * @param decimationTolerance maximum distance in millimeters between a left out point and the
+     *        mesh; 0 disables adaptive triangulation (one quad per pixel).
+     */
+    public void setDecimationTolerance(final double decimationTolerance)
+    {
+        if (decimationTolerance < 0.0)
+            throw new IllegalArgumentException("Decimation tolerance cannot be negative");
+        this.decimationTolerance = decimationTolerance;
+    }
+
+    /**
+     * Shares the precalculated cosine and sine tables with other lithophanes.
+     * @param angleTableCache cache of the tables; null to calculate them for each generation.
+     */
+    public void setAngleTableCache(final AngleTables.Cache angleTableCache)
+    {
+        this.angleTableCache = angleTableCache;
+    }
+
+    /**
+     * Enables tiled decoding: the image is decoded a strip of rows at a time into a memory mapped
+     * temporary file, instead of being loaded whole in the heap. Slower for formats that cannot
+     * skip to a region, but needed for images too large for the heap.
+     * @param tiledDecoding true to decode the image in strips.
+     */
+    public void setTiledDecoding(final boolean tiledDecoding)
+    {
+        this.tiledDecoding = tiledDecoding;
+    }
+
+    /**
+     * Enables gzip compression of the output, using all the threads; the uncompressed content is
+     * the same. Not available for 3MF, which is already compressed.
+     * @param compressed true to compress the output.
+     */
+    public void setCompressed(final boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Limits the mesh resolution: the image is downsampled (never upsampled) so that there are
+     * at most this many pixels per millimeter around the cylinder.
+     * @param pixelsPerMillimeter maximum resolution; 0 to keep the image resolution.
+     */
+    public void setPixelsPerMillimeter(final double pixelsPerMillimeter)
+    {
+        if (pixelsPerMillimeter < 0.0)
+            throw new IllegalArgumentException("Pixels per millimeter cannot be negative");
+        this.pixelsPerMillimeter = pixelsPerMillimeter;
+    }
+
+    /**
+     * Limits the mesh resolution: the image is downsampled (never upsampled) so that it is at
+     * most this many pixels wide, keeping its proportions.
+     * @param maxResolution maximum width in pixels; 0 to keep the image width.
+     */
+    public void setMaxResolution(final int maxResolution)
+    {
+        if (maxResolution < 0)
+            throw new IllegalArgumentException("Maximum resolution cannot be negative");
+        this.maxResolution = maxResolution;
+    }
+
+    /**
+     * Enables or disables the messages printed on the standard output.
+     * @param verbose if true (the default), the size of the model and the completion are printed.
+     */
+    public void setVerbose(final boolean verbose)
+    {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Writes the metrics of each generation (time of each phase, size of the model, peak heap) to
+     * a JSON file.
+     * @param metricsOutput destination file; null to disable.
+     */
+    public void setMetricsOutput(final File metricsOutput)
+    {
+        this.metricsOutput = metricsOutput;
+    }
+
+    /**
+     * Generates a quick preview: only every Nth row and column of the image is read, with N
+     * chosen so that the image is at most this wide; the model is built as usual from the
+     * smaller image.
+     * @param previewWidth maximum width of the preview in pixels; 0 to use the whole image.
+     */
+    public void setPreviewWidth(final int previewWidth)
+    {
+        if (previewWidth < 0)
+            throw new IllegalArgumentException("Preview width cannot be negative");
+        this.previewWidth = previewWidth;
+    }
+
+    /**
+     * Uses a cache of generated models: a model generated before with the same image content and
+     * parameters is copied from the cache instead of being generated again.
+     * @param resultCache cache; null to always generate the model.
+     */
+    public void setResultCache(final ResultCache resultCache)
+    {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Sets a limit to the heap used by a generation: before generating, the fastest strategy
+     * whose estimated peak heap fits the limit is chosen (see {@link #planExecution()}), and the
+     * number of threads and tiled decoding are set accordingly.
+     * @param memoryBudget maximum heap, in bytes (0 = no limit).
+     */
+    public void setMemoryBudget(final long memoryBudget)
+    {
+        if (memoryBudget < 0)
+            throw new IllegalArgumentException("Memory budget cannot be negative");
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Enables the validation of the generated models: after writing a file, or copying it from the
+     * cache, the file is read back and its mesh checked to be closed and consistently oriented
+     * (see {@link MeshValidator}). Models written to a stream are not validated.
+     * @param validation true to validate the models.
+     */
+    public void setValidation(final boolean validation)
+    {
+        this.validation = validation;
+    }
+
+    /**
+     * Sets a listener notified each time a band of layers has been generated.
+     * @param progressListener listener; null for none.
+     */
+    public void setProgressListener(final ProgressListener progressListener)
+    {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sets a token to cancel the generation from another thread: the generation stops before the
+     * next band of layers with a {@link CancellationException}, leaving no incomplete file.
+     * @param cancellationToken token; null to never cancel.
+     */
+    public void setCancellationToken(final CancellationToken cancellationToken)
+    {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Returns the result of the validation of the last generated file.
+     * @return validation result, or null if validation is disabled.
+     */
+    public MeshValidator.Report getValidationReport()
+    {
+        return validationReport;
+    }
+
+    /**
+     * Tells whether the last model was taken from the cache.
+     * @return true if the model was not generated.
+     */
+    public boolean isCacheHit()
+    {
+        return (metrics != null) && metrics.isCacheHit();
+    }
+
+    /**
+     * Returns the format of the output file.
+     * @return output format.
+     */
+    public MeshFormat getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Tells whether the output is compressed with gzip.
+     * @return true if the output is compressed.
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * Returns the metrics of the last generation.
+     * @return metrics, or null if no model has been generated yet.
+     */
+    public GenerationMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of triangles of the last generated model, summed over its parts.
+     * @return number of triangles, or 0 if no model has been generated yet.
+     */
+    public long getTriangleCount()
+    {
+        if (parts == null)
+            return 0;
+        long triangles = 0;
+        for (Part part : parts)
+        {
+            triangles += part.getTriangleCount();
+        }
+        return triangles;
+    }
+
+    /**
+     * Estimates the heap needed to generate the model with the strategy chosen by
+     * {@link #planExecution()}, reading only the size of the image.
+     * @return estimated heap size in bytes.
+     * @throws IOException error reading the image.
+     */
+    public long estimateHeapBytes() throws IOException
+    {
+        return planExecution().heapBytes();
+    }
+
+    /**
+     * Chooses how to generate the model, reading only the size of the image (see
+     * {@link ExecutionPlan#choose}).
+     * @return execution strategy, with its estimated heap usage and output size.
+     * @throws IOException error reading the image.
+     * @throws IllegalArgumentException if no strategy fits the memory budget.
+     */
+    public ExecutionPlan planExecution() throws IOException
+    {
+        checkParameters();
+        return ExecutionPlan.choose(getWorkload(), threads, tiledDecoding, memoryBudget);
+    }
+
+    /**
+     * Describes the work of a generation for its estimates, reading only the size of the image.
+     * @return workload.
+     * @throws IOException error reading the image.
+     */
+    private ExecutionPlan.Workload getWorkload() throws IOException
+    {
+        Dimension source = getSourceSize();
+        Dimension target = getResampledSize(source.width, source.height);
+        long layerCount = (bottomBorderHeight > 0.0 ? 2 : 1)
+                + (topBorderHeight > 0.0 ? target.height : target.height - 1);
+        return new ExecutionPlan.Workload(source, target, previewWidth > 0, hasFilters(),
+                decimationTolerance > 0.0, compressed, format, layerCount);
+    }
+
+    /**
+     * Returns the size of the image as decoded: the whole image, or the subsampled preview.
+     * @return size in pixels.
+     * @throws IOException error reading the image.
+     */
+    private Dimension getSourceSize() throws IOException
+    {
+        Dimension size = readImageSize();
+        if (previewWidth <= 0)
+            return size;
+        int step = Math.max(1, ((size.width - 1) / previewWidth) + 1);
+        return new Dimension(((size.width - 1) / step) + 1, ((size.height - 1) / step) + 1);
+    }
+
+    /**
+     * Reads the size of the image from its header, without decoding it.
+     * @return width and height in pixels.
+     * @throws IOException error reading the image.
+     */
+    private Dimension readImageSize() throws IOException
+    {
+        return readImage(reader -> new Dimension(reader.getWidth(0), reader.getHeight(0)));
+    }
+
+    /**
+     * Reads every Nth row and column of the image, with N chosen so that the result is at most
+     * the preview width wide; skipped pixels are not converted, so this is much faster than
+     * reading the whole image.
+     * @return subsampled image.
+     * @throws IOException error reading the image.
+     */
+    private BufferedImage readPreviewImage() throws IOException
+    {
+        return readImage(reader -> {
+            int step = Math.max(1, ((reader.getWidth(0) - 1) / previewWidth) + 1);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        });
+    }
+
+    /**
+     * Reads the image with an image reader for its format.
+     * @param <T> result type.
+     * @param action reads from the reader.
+     * @return result of the action.
+     * @throws IOException error reading the image.
+     */
+    private <T> T readImage(final ImageReaderAction<T> action) throws IOException
+    {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(imagePath))
+        {
+            Iterator<ImageReader> readers = stream == null ? null
+                    : ImageIO.getImageReaders(stream);
+            if ((readers == null) || ! readers.hasNext())
+                throw new IllegalArgumentException(
+                        String.format("Image \"%s\" has an unsupported format.", imagePath));
+            ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(stream, true, true);
+                return action.read(reader);
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads from an image reader.
+     * @param <T> result type.
+     */
+    @FunctionalInterface
+    private interface ImageReaderAction<T>
+    {
+        /**
+         * Reads from an image reader.
+         * @param reader reader, with the image as input.
+         * @return result.
+         * @throws IOException error reading the image.
+         */
+        T read(ImageReader reader) throws IOException;
+    }
+
+    /**
+     * Generates a sequence of previews with increasing detail, starting from the preview width
+     * and doubling it at each level, up to the image width. Each preview is written as soon as it
+     * is complete, to the output path with ".lod&lt;level&gt;" before the extension.
+     * @param levels maximum number of previews.
+     * @return written files, from the coarsest.
+     * @throws IOException error reading the image or writing a preview.
+     */
+    public List<File> generatePreviews(final int levels) throws IOException
+    {
+        if (previewWidth <= 0)
+            throw new IllegalArgumentException("Previews need a preview width");
+        if (levels < 1)
+            throw new IllegalArgumentException("Number of preview levels must be at least 1");
+        checkParameters();
+
+        File finalOutputPath = outputPath;
+        int firstWidth = previewWidth;
+        List<File> files = new ArrayList<>();
+        try
+        {
+            int imageWidth = readImageSize().width;
+            for (int level = 0; level < levels; level++)
+            {
+                this.previewWidth = (int) Math.min(imageWidth, (long) firstWidth << level);
+                this.outputPath = getSuffixedPath(finalOutputPath, ".lod" + level);
+                generateLithophane();
+                files.add(outputPath);
+                if (previewWidth >= imageWidth)
+                    break;
+            }
+        }
+        finally
+        {
+            this.outputPath = finalOutputPath;
+            this.previewWidth = firstWidth;
+        }
+        return files;
+    }
+
+    /**
+     * Returns the output path of a preview level or of a part.
+     * @param path output path.
+     * @param suffix suffix to add.
+     * @return path with the suffix before the extension.
+     */
+    private File getSuffixedPath(final File path, final String suffix)
+    {
+        String name = path.getName();
+        String extension = "." + format.getExtension() + (compressed ? ".gz" : "");
+        if ( ! name.toLowerCase(Locale.ROOT).endsWith(extension))
+        {
+            int dot = name.lastIndexOf('.');
+            extension = dot > 0 ? name.substring(dot) : "";
+        }
+        String base = name.substring(0, name.length() - extension.length());
+        return new File(path.getParentFile(), base + suffix + extension);
+    }
+
+    /**
+     * Generates the .stl file.
+     * <p>
+     * When using more than one thread, row bands are written directly to their final position in
+     * the file, in whatever order they are completed. Each file is written to a temporary file
+     * next to it and renamed when the whole model is complete, so that a failed generation leaves
+     * the previous file, if any, and no incomplete one. Split models are not cached.
+     * </p>
+     * @throws IOException errore di lettura o scrittura.
+     */
+    public void generateLithophane() throws IOException
+    {
+        this.metrics = new GenerationMetrics();
+        String cacheKey = null;
+        if ((resultCache != null) && ! isSplit())
+        {
+            checkParameters();
+            cacheKey = getCacheKey();
+            if (resultCache.fetch(cacheKey, outputPath))
+            {
+                finishCacheHit();
+                if (validation)
+                    validateModel(List.of(outputPath), false);
+                return;
+            }
+        }
+        prepare();
+
+        List<File> files = getPartPaths();
+        List<File> temporaryFiles = new ArrayList<>(files.size());
+        for (File file : files)
+        {
+            temporaryFiles.add(new File(file.getPath() + TEMPORARY_SUFFIX));
+        }
+        boolean written = false;
+        try
+        {
+            writeParts(temporaryFiles);
+            for (int i = 0; i < files.size(); i++)
+            {
+                ResultCache.move(temporaryFiles.get(i).toPath(), files.get(i).toPath());
+            }
+            written = true;
+        }
+        finally
+        {
+            if ( ! written)
+            {
+                for (File file : temporaryFiles)
+                {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+        if (cacheKey != null)
+            resultCache.store(cacheKey, outputPath);
+        finishMetrics();
+
+        if (verbose)
+        {
+            if (parts.size() > 1)
+                System.out.format("Lithophane split in %d parts.%n", parts.size());
+            System.out.println("Lithophane generation complete.");
+        }
+        if (validation)
+            validateModel(files, true);
+    }
+
+    /**
+     * Tells whether the model is split into several parts.
+     * @return true if a number of parts or a maximum part height has been set.
+     */
+    private boolean isSplit()
+    {
+        return (partCount > 1) || (maxPartHeight > 0.0);
+    }
+
+    /**
+     * Returns the files the parts of the model are written to.
+     * @return output path if there is a single part, otherwise one path for each part.
+     */
+    private List<File> getPartPaths()
+    {
+        if (parts.size() == 1)
+            return List.of(outputPath);
+        List<File> files = new ArrayList<>(parts.size());
+        for (int i = 0; i < parts.size(); i++)
+        {
+            files.add(getSuffixedPath(outputPath, ".part" + (i + 1)));
+        }
+        return files;
+    }
+
+    /**
+     * Writes the parts of the model, each to its own file; with more than one thread, the parts
+     * are written concurrently, sharing the threads.
+     * @param files destination files, one for each part.
+     * @throws IOException error writing the model.
+     */
+    private void writeParts(final List<File> files) throws IOException
+    {
+        int poolSize = Math.min(generationThreads, parts.size());
+        if (poolSize == 1)
+        {
+            for (int i = 0; i < parts.size(); i++)
+            {
+                writeFile(parts.get(i), files.get(i), generationThreads);
+            }
+            return;
+        }
+
+        int partThreads = Math.max(1, generationThreads / parts.size());
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++)
+            {
+                Part part = parts.get(i);
+                File file = files.get(i);
+                futures.add(executor.submit(() -> {
+                    writeFile(part, file, partThreads);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures)
+            {
+                waitFor(future);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a part of the model to a file.
+     * @param part part to write.
+     * @param file destination file.
+     * @param threads number of threads.
+     * @throws IOException error writing the model.
+     */
+    private void writeFile(final Part part, final File file, final int threads)
+            throws IOException
+    {
+        if ((threads > 1) && (format == MeshFormat.STL) && ! compressed)
+        {
+            long start = System.nanoTime();
+            try (PositionalStlWriter writer = new PositionalStlWriter(file, getModelName(),
+                    countTriangles(part)))
+            {
+                metrics.addWrite(STL_HEADER_SIZE, System.nanoTime() - start);
+                createBandsInParallel(writer, part, threads);
+                start = System.nanoTime();
+                writer.finish();
+            }
+            metrics.addWrite(0, System.nanoTime() - start);
+        }
+        else
+        {
+            try (BufferedOutputStream stream = new BufferedOutputStream(
+                    new MeteredOutputStream(new FileOutputStream(file), metrics),
+                    BUFFER_SIZE))
+            {
+                writeLithophane(stream, part, threads);
+            }
+        }
+    }
+
+    /**
+     * Reads back the files of the model and checks that each is closed and consistently oriented;
+     * the report kept is that of the first invalid file, or of the last file.
+     * @param files files of the model, one for each part.
+     * @param generated true if the files have just been generated from {@link #parts}, false if
+     *        copied from the cache.
+     * @throws IOException error reading a file, or file truncated or not readable.
+     */
+    private void validateModel(final List<File> files, final boolean generated)
+            throws IOException
+    {
+        this.validationReport = null;
+        for (int i = 0; i < files.size(); i++)
+        {
+            long start = System.nanoTime();
+            MeshValidator validator = new MeshValidator();
+            try (InputStream file = new BufferedInputStream(new FileInputStream(files.get(i)),
+                    BUFFER_SIZE);
+                    InputStream model = compressed ? new GZIPInputStream(file, BUFFER_SIZE)
+                            : file)
+            {
+                MeshReader.read(model, format, validator);
+            }
+            MeshValidator.Report report = validator.getReport();
+            if ((validationReport == null) || validationReport.isValid())
+                this.validationReport = report;
+            if ( ! verbose)
+                continue;
+
+            System.out.format(Locale.US, "Validation of %s (%.1f s): %s%n", files.get(i),
+                    (System.nanoTime() - start) / 1e9, report);
+            if (generated && ! report.isValid())
+            {
+                Part part = parts.get(i);
+                int layer = 0;
+                while (part.getFirstTriangle(layer + 1) <= report.firstProblemTriangle())
+                {
+                    layer++;
+                }
+                System.out.format(Locale.US, "First problem at layer %d of %d (z = %.3f mm)%n",
+                        layer, part.layers().size(), part.layers().get(layer).z());
+            }
+        }
+    }
+
+    /**
+     * Generates the lithophane and writes it to a stream in the selected format; the output path
+     * is ignored. Split models can only be written to files.
+     * @param stream destination stream (buffered is better); it is flushed but not closed.
+     * @throws IOException errore di lettura o scrittura.
+     */
+    public void generateLithophane(final OutputStream stream) throws IOException
+    {
+        checkNotSplit();
+        this.metrics = new GenerationMetrics();
+        if (resultCache == null)
+        {
+            prepare();
+            writeLithophane(new MeteredOutputStream(stream, metrics), parts.get(0),
+                    generationThreads);
+            finishMetrics();
+            return;
+        }
+
+        checkParameters();
+        String cacheKey = getCacheKey();
+        if (resultCache.fetch(cacheKey, stream))
+        {
+            finishCacheHit();
+            return;
+        }
+        try (ResultCache.Writer entry = resultCache.startEntry(cacheKey))
+        {
+            prepare();
+            writeLithophane(new MeteredOutputStream(new TeeOutputStream(stream, entry), metrics),
+                    parts.get(0), generationThreads);
+            entry.commit();
+        }
+        finishMetrics();
+    }
+
+    /**
+     * Generates the lithophane, passing its triangles to a sink instead of writing a file; the
+     * output path, format, compression, cache and validation settings are ignored.
+     * <p>
+     * Triangles are passed in the same order as in an STL file, one band of layers at a time, on
+     * the calling thread; vertex indices (see {@link Perimeter#firstVertex()}) are those of an
+     * indexed mesh containing the outer and inner perimeter of each layer. Split models can only
+     * be written to files.
+     * </p>
+     * @param sink destination of the triangles.
+     * @throws IOException error reading the image or thrown by the sink.
+     */
+    public void generateLithophane(final MeshSink sink) throws IOException
+    {
+        checkNotSplit();
+        this.metrics = new GenerationMetrics();
+        prepare();
+        createBandsSequentially(sink, parts.get(0));
+        metrics.finish(getTriangleCount());
+    }
+
+    /**
+     * Checks that the model is not split, for outputs other than files.
+     */
+    private void checkNotSplit()
+    {
+        if (isSplit())
+            throw new IllegalArgumentException("Split models can only be written to files");
+    }
+
+    /**
+     * Returns the cache key of the model: the hash of the image content and of all the
+     * parameters that affect the output (the number of threads does not).
+     * @return cache key.
+     * @throws IOException error reading the image.
+     */
+    private String getCacheKey() throws IOException
+    {
+        String parameters = String.join("\n",
+                "version=" + OUTPUT_VERSION,
+                "name=" + getModelName(),
+                "diameter=" + diameter,
+                "minThickness=" + minThickness,
+                "maxThickness=" + maxThickness,
+                "topBorderThickness=" + topBorderThickness,
+                "topBorderHeight=" + topBorderHeight,
+                "topBorderTransition=" + topBorderTransition,
+                "bottomBorderThickness=" + bottomBorderThickness,
+                "bottomBorderHeight=" + bottomBorderHeight,
+                "bottomBorderTransition=" + bottomBorderTransition,
+                "roughFace=" + roughFace,
+                "shape=" + shape,
+                "arcAngle=" + arcAngle,
+                "panelWidth=" + panelWidth,
+                "gamma=" + gamma,
+                "contrast=" + contrast,
+                "blurRadius=" + blurRadius,
+                "sharpenRadius=" + sharpenRadius,
+                "sharpenAmount=" + sharpenAmount,
+                "format=" + format,
+                "compressed=" + compressed,
+                "decimationTolerance=" + decimationTolerance,
+                "pixelsPerMillimeter=" + pixelsPerMillimeter,
+                "maxResolution=" + maxResolution,
+                "previewWidth=" + previewWidth);
+        return ResultCache.computeKey(imagePath, parameters);
+    }
+
+    /**
+     * Completes a generation whose model was taken from the cache.
+     * @throws IOException error writing the metrics.
+     */
+    private void finishCacheHit() throws IOException
+    {
+        this.parts = null;
+        metrics.setCacheHit();
+        finishMetrics();
+        if (verbose)
+            System.out.println("Lithophane taken from cache.");
+    }
+
+    /**
+     * Completes the metrics of the generation and writes them, if requested.
+     * @throws IOException error writing the metrics.
+     */
+    private void finishMetrics() throws IOException
+    {
+        metrics.finish(getTriangleCount());
+        if (metricsOutput != null)
+            metrics.writeJson(metricsOutput, imagePath, outputPath, format,
+                    generationThreads);
+    }
+
+    /**
+     * Checks the parameters.
+     */
+    private void checkParameters()
+    {
+        if ( ! imagePath.exists())
+            throw new IllegalArgumentException(
+                    String.format("Image path \"%s\" not found.", imagePath));
+        if ( ! imagePath.isFile())
+            throw new IllegalArgumentException(
+                    String.format("Image path \"%s\" is not a file.", imagePath));
+        if ((shape != Shape.FLAT) && ! (diameter > 0.0))
+            throw new IllegalArgumentException("Diameter must be greater than zero");
+        if ((shape == Shape.FLAT) && ! (panelWidth > 0.0))
+            throw new IllegalArgumentException("Panel width must be greater than zero");
+        if ((shape != Shape.CYLINDER) && (decimationTolerance > 0.0))
+            throw new IllegalArgumentException(
+                    "Adaptive triangulation is only available for cylinders");
+        if ( ! (minThickness > 0.0))
+            throw new IllegalArgumentException("Minimum thickness must be greater than zero");
+        if ( ! (maxThickness > minThickness))
+            throw new IllegalArgumentException(
+                    "Mmaximum thickness must be greater than minimum thickness");
+        if (compressed && (format == MeshFormat.THREE_MF))
+            throw new IllegalArgumentException("3MF files are already compressed");
+    }
+
+    /**
+     * Checks the parameters, reads the image and precalculates everything needed to generate the
+     * layers.
+     * @throws IOException error reading the image.
+     */
+    private void prepare() throws IOException
+    {
+        checkParameters();
+        // the plan only applies to this generation: the next one starts from the configuration
+        this.generationThreads = threads;
+        this.generationTiledDecoding = tiledDecoding;
+        if (memoryBudget > 0)
+        {
+            ExecutionPlan plan = planExecution();
+            this.generationThreads = plan.threads();
+            this.generationTiledDecoding = plan.tiledDecoding();
+            if (verbose)
+                System.out.println("Execution plan: " + plan);
+        }
+
+        GenerationMetrics.PhaseTimer timer = metrics.startPhase(GenerationMetrics.Phase.DECODE);
+        if (previewWidth > 0)
+        {
+            this.brightness = BrightnessPlane.fromImage(readPreviewImage());
+            if (verbose)
+                System.out.format("Preview from %dx%d pixels%n", brightness.getWidth(),
+                        brightness.getHeight());
+        }
+        else if (generationTiledDecoding)
+        {
+            this.brightness = MappedBrightness.decode(imagePath);
+        }
+        else
+        {
+            BufferedImage image = ImageIO.read(imagePath);
+            if (image == null)
+                throw new IllegalArgumentException(
+                        String.format("Image \"%s\" has an unsupported format.", imagePath));
+            this.brightness = BrightnessPlane.fromImage(image);
+        }
+        timer.stop();
+        resampleImage();
+        this.imageWidthPixels = brightness.getWidth();
+        this.imageHeightPixels = brightness.getHeight();
+        metrics.setImageSize(imageWidthPixels, imageHeightPixels);
+
+        this.angleStep = (2.0 * Math.PI) / imageWidthPixels;
+        this.pixelStep = getImageWidthMillimeters() / imageWidthPixels;
+        this.imageHeightMillimeters = imageHeightPixels * pixelStep;
+        filterImage();
+
+        if (verbose)
+            System.out.format(Locale.US,
+                    "%s: %.1f mm; height: %.1f mm; pixel size: %.2f mm; pixels per mm: %.1f%n",
+                    shape == Shape.FLAT ? "Width" : "Diameter",
+                    shape == Shape.FLAT ? panelWidth : diameter,
+                    (imageHeightPixels * pixelStep) + bottomBorderHeight + topBorderHeight,
+                    pixelStep, 1.0 / pixelStep);
+
+        timer = metrics.startPhase(GenerationMetrics.Phase.TRIG);
+
+        // precalculate thickness: brighter = thinner
+        this.thicknessTable = new double [BrightnessSource.MAX_BRIGHTNESS + 1];
+        for (int b = 0; b <= BrightnessSource.MAX_BRIGHTNESS; b++)
+        {
+            thicknessTable[b] = ((1 - ((double) b / BrightnessSource.MAX_BRIGHTNESS))
+                    * (maxThickness - minThickness)) + minThickness;
+        }
+
+        this.geometry = createGeometry();
+        timer.stop();
+
+        timer = metrics.startPhase(GenerationMetrics.Phase.PLAN);
+        this.layers = planLayers();
+        if (decimationTolerance > 0.0)
+            this.layers = decimateLayers(layers);
+        this.parts = planParts();
+        this.completedTriangles = 0;
+        timer.stop();
+    }
+
+    /**
+     * Returns the length of the image along the base surface, around the cylinder or across the
+     * panel.
+     * @return length in millimeters.
+     */
+    private double getImageWidthMillimeters()
+    {
+        switch (shape)
+        {
+            case CYLINDER:
+                return Math.PI * diameter;
+
+            case ARC:
+                return Math.toRadians(arcAngle) * radius;
+
+            case FLAT:
+                return panelWidth;
+
+            default:
+                throw new UnsupportedOperationException("shape " + shape + " is not supported");
+        }
+    }
+
+    /**
+     * Creates the geometry of the selected shape, precalculating the position of each column.
+     * @return geometry.
+     */
+    private Geometry createGeometry()
+    {
+        switch (shape)
+        {
+            case CYLINDER:
+                AngleTables angleTables = angleTableCache != null
+                        ? angleTableCache.get(imageWidthPixels)
+                        : AngleTables.calculate(imageWidthPixels);
+                return new CylinderGeometry(angleTables, radius, roughFace, true);
+
+            case ARC:
+                // points at the center of the pixels, centered on the negative Y axis like a
+                // flat panel
+                double arcStep = Math.toRadians(arcAngle) / imageWidthPixels;
+                double startAngle = (-Math.PI / 2.0) - (arcStep * ((imageWidthPixels - 1) / 2.0));
+                return new CylinderGeometry(
+                        AngleTables.calculate(imageWidthPixels, startAngle, arcStep), radius,
+                        roughFace, false);
+
+            case FLAT:
+                return new FlatGeometry(imageWidthPixels, pixelStep, roughFace);
+
+            default:
+                throw new UnsupportedOperationException("shape " + shape + " is not supported");
+        }
+    }
+
+    /**
+     * Calculates the size of the image after resampling to the requested resolution.
+     * @param width width of the image, in pixels.
+     * @param height height of the image, in pixels.
+     * @return size after resampling; the same size if the image is not resampled.
+     */
+    private Dimension getResampledSize(final int width, final int height)
+    {
+        int targetWidth = width;
+        if (pixelsPerMillimeter > 0.0)
+            targetWidth = (int) Math.min(targetWidth,
+                    Math.floor(getImageWidthMillimeters() * pixelsPerMillimeter));
+        if (maxResolution > 0)
+            targetWidth = Math.min(targetWidth, maxResolution);
+        // a perimeter needs at least 3 points
+        targetWidth = Math.max(Math.min(width, MIN_WIDTH), targetWidth);
+        if (targetWidth == width)
+            return new Dimension(width, height);
+        return new Dimension(targetWidth,
+                (int) Math.max(1, Math.round(((double) height * targetWidth) / width)));
+    }
+
+    /**
+     * Downsamples the image if it is wider than the maximum resolution.
+     * @throws IOException interrupted while resampling.
+     */
+    private void resampleImage() throws IOException
+    {
+        int width = brightness.getWidth();
+        int height = brightness.getHeight();
+        Dimension target = getResampledSize(width, height);
+        int targetWidth = target.width;
+        int targetHeight = target.height;
+        if (targetWidth == width)
+            return;
+
+        GenerationMetrics.PhaseTimer timer = metrics.startPhase(
+                GenerationMetrics.Phase.RESAMPLE);
+        this.brightness = AreaResampler.resample(brightness, targetWidth, targetHeight,
+                generationThreads);
+        timer.stop();
+        if (verbose)
+            System.out.format("Image resampled from %dx%d to %dx%d pixels%n", width, height,
+                    targetWidth, targetHeight);
+    }
+
+    /**
+     * Tells whether any filter is applied to the image.
+     * @return true if a tone curve, blur or sharpening is set.
+     */
+    private boolean hasFilters()
+    {
+        return (gamma != 1.0) || (contrast != 1.0) || (blurRadius > 0.0)
+                || ((sharpenRadius > 0.0) && (sharpenAmount > 0.0));
+    }
+
+    /**
+     * Applies the tone curve, blur and sharpening, if requested, in this order.
+     * @throws IOException error creating the filtered image, or interrupted.
+     */
+    private void filterImage() throws IOException
+    {
+        if ( ! hasFilters())
+            return;
+        boolean toneCurve = (gamma != 1.0) || (contrast != 1.0);
+        boolean sharpen = (sharpenRadius > 0.0) && (sharpenAmount > 0.0);
+
+        GenerationMetrics.PhaseTimer timer = metrics.startPhase(GenerationMetrics.Phase.FILTER);
+        // a cylinder has no seam: the filters wrap around it
+        boolean wrap = shape == Shape.CYLINDER;
+        boolean mapped = brightness instanceof MappedBrightness;
+        if (toneCurve)
+            this.brightness = ImageFilter.applyToneCurve(brightness, gamma, contrast, mapped,
+                    generationThreads);
+        if (blurRadius > 0.0)
+            this.brightness = ImageFilter.blur(brightness, blurRadius / pixelStep, wrap, mapped,
+                    generationThreads);
+        if (sharpen)
+            this.brightness = ImageFilter.sharpen(brightness, sharpenRadius / pixelStep,
+                    sharpenAmount, wrap, mapped, generationThreads);
+        timer.stop();
+    }
+
+    /**
+     * Returns the name of the model written in the STL header.
+     * @return model name.
+     */
+    private String getModelName()
+    {
+        switch (shape)
+        {
+            case ARC:
+                return String.format("Arc lithophane from %s", imagePath.getName());
+
+            case FLAT:
+                return String.format("Flat lithophane from %s", imagePath.getName());
+
+            default:
+                return String.format("Cylindrical lithophane from %s", imagePath.getName());
+        }
+    }
+
+    /**
+     * Lists all the layers of the model, from the bottom.
+     * @return layers.
+     */
+    private List<LayerSpec> planLayers()
+    {
+        List<LayerSpec> specs = new ArrayList<>();
+
+        final int startLithophaneRow;
+        final double lithophaneVerticalOffset;
+        if (bottomBorderHeight > 0.0)
+        {
+            specs.add(new LayerSpec(0.0, LayerSpec.BORDER, bottomBorderThickness));
+            specs.add(new LayerSpec(bottomBorderHeight, LayerSpec.BORDER, bottomBorderThickness));
+            startLithophaneRow = 1;
+            lithophaneVerticalOffset = bottomBorderHeight;
+        }
+        else
+        {
+            specs.add(new LayerSpec(0.0, 0, 0.0));
+            startLithophaneRow = 1;
+            lithophaneVerticalOffset = 0.0;
+        }
+
+        final int lastLithophaneRow;
+        if (topBorderHeight > 0.0)
+        {
+            lastLithophaneRow = imageHeightPixels - 2;
+        }
+        else
+        {
+            lastLithophaneRow = imageHeightPixels - 1;
+        }
+
+        for (int row = startLithophaneRow; row <= lastLithophaneRow; row++)
+        {
+            specs.add(new LayerSpec((row * pixelStep) + lithophaneVerticalOffset, row, 0.0));
+        }
+
+        if (topBorderHeight > 0.0)
+        {
+            double lastLayerZ = (lastLithophaneRow * pixelStep) + lithophaneVerticalOffset;
+            specs.add(new LayerSpec(lastLayerZ + pixelStep, LayerSpec.BORDER, topBorderThickness));
+            specs.add(new LayerSpec(lastLayerZ + pixelStep + topBorderHeight, LayerSpec.BORDER,
+                    topBorderThickness));
+        }
+
+        return specs;
+    }
+
+    /**
+     * Leaves out the layers and the columns that can be interpolated within the decimation
+     * tolerance.
+     * @param all all the layers.
+     * @return kept layers, each with its kept columns.
+     */
+    private List<LayerSpec> decimateLayers(final List<LayerSpec> all)
+    {
+        double maxRadius = radius
+                + Math.max(maxThickness, Math.max(topBorderThickness, bottomBorderThickness));
+        Decimator decimator = new Decimator(decimationTolerance, maxRadius, angleStep);
+
+        // thickness of the layers from the current anchor on, by index modulo the cache size
+        int cacheSize = Decimator.MAX_LAYER_SPAN + 1;
+        double [] [] thicknessCache = new double [cacheSize] [imageWidthPixels];
+        int [] cachedLayers = new int [cacheSize];
+        Arrays.fill(cachedLayers, -1);
+
+        List<Integer> keptLayers = new ArrayList<>();
+        keptLayers.add(0);
+        int anchor = 0;
+        while (anchor < (all.size() - 1))
+        {
+            int end = anchor + 1;
+            while (((end + 1) < all.size()) && (((end + 1) - anchor) <= Decimator.MAX_LAYER_SPAN)
+                    && canSkipLayers(decimator, all, anchor, end + 1, thicknessCache,
+                            cachedLayers))
+            {
+                end++;
+            }
+            keptLayers.add(end);
+            anchor = end;
+        }
+
+        List<LayerSpec> kept = new ArrayList<>(keptLayers.size());
+        double [] thickness = new double [imageWidthPixels];
+        for (int index : keptLayers)
+        {
+            LayerSpec spec = all.get(index);
+            getLayerThickness(spec, thickness);
+            kept.add(new LayerSpec(spec.z(), spec.row(), spec.borderThickness(),
+                    decimator.selectColumns(thickness)));
+        }
+        return kept;
+    }
+
+    /**
+     * Checks whether all the layers between two layers can be left out.
+     * @param decimator decimator.
+     * @param all all the layers.
+     * @param lower index of the lower layer.
+     * @param upper index of the upper layer.
+     * @param thicknessCache thickness of recently used layers.
+     * @param cachedLayers index of the layer stored in each element of the cache.
+     * @return true if all the layers in between can be interpolated.
+     */
+    private boolean canSkipLayers(final Decimator decimator, final List<LayerSpec> all,
+            final int lower, final int upper, final double [] [] thicknessCache,
+            final int [] cachedLayers)
+    {
+        double lowerZ = all.get(lower).z();
+        double upperZ = all.get(upper).z();
+        if ( ! (upperZ > lowerZ))
+            return false;
+        double [] lowerThickness = getCachedThickness(all, lower, thicknessCache, cachedLayers);
+        double [] upperThickness = getCachedThickness(all, upper, thicknessCache, cachedLayers);
+        for (int i = lower + 1; i < upper; i++)
+        {
+            double fraction = (all.get(i).z() - lowerZ) / (upperZ - lowerZ);
+            if ( ! decimator.isLayerWithinTolerance(lowerThickness, upperThickness,
+                    getCachedThickness(all, i, thicknessCache, cachedLayers), fraction))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the thickness of each column of a layer, calculating it only if it is not cached.
+     * @param all all the layers.
+     * @param index index of the layer.
+     * @param thicknessCache thickness of recently used layers.
+     * @param cachedLayers index of the layer stored in each element of the cache.
+     * @return thickness of each column.
+     */
+    private double [] getCachedThickness(final List<LayerSpec> all, final int index,
+            final double [] [] thicknessCache, final int [] cachedLayers)
+    {
+        int slot = index % thicknessCache.length;
+        if (cachedLayers[slot] != index)
+        {
+            getLayerThickness(all.get(index), thicknessCache[slot]);
+            cachedLayers[slot] = index;
+        }
+        return thicknessCache[slot];
+    }
+
+    /**
+     * Returns the number of points of each perimeter of a layer.
+     * @param spec layer.
+     * @return number of points.
+     */
+    private int getPointCount(final LayerSpec spec)
+    {
+        return spec.columns() == null ? imageWidthPixels : spec.columns().cardinality();
+    }
+
+    /**
+     * Splits the layers into the parts written to separate files, with cuts at the layers nearest
+     * to equal heights; consecutive parts share the layer at the cut, which closes both.
+     * @return parts, from the bottom.
+     */
+    private List<Part> planParts()
+    {
+        int lastLayer = layers.size() - 1;
+        double bottom = layers.get(0).z();
+        double height = layers.get(lastLayer).z() - bottom;
+        int count = Math.max(1, partCount);
+        if (maxPartHeight > 0.0)
+            count = Math.max(count, (int) Math.ceil(height / maxPartHeight));
+
+        // the nearest layers may make a part too tall: try again with one more part
+        while (true)
+        {
+            if (count > lastLayer)
+                throw new IllegalArgumentException(String.format(
+                        "The model cannot be split in %d parts: it has %d layers", count,
+                        layers.size()));
+            int [] cuts = new int [count + 1];
+            cuts[count] = lastLayer;
+            boolean fits = true;
+            for (int k = 1; k <= count; k++)
+            {
+                if (k < count)
+                    cuts[k] = getNearestLayer(bottom + ((height * k) / count), cuts[k - 1] + 1,
+                            lastLayer - (count - k));
+                double partHeight = layers.get(cuts[k]).z() - layers.get(cuts[k - 1]).z();
+                if ((maxPartHeight > 0.0) && (partHeight > (maxPartHeight * (1.0 + 1e-9))))
+                    fits = false;
+            }
+            if (fits)
+            {
+                List<Part> planned = new ArrayList<>(count);
+                for (int k = 1; k <= count; k++)
+                {
+                    planned.add(createPart(layers.subList(cuts[k - 1], cuts[k] + 1)));
+                }
+                return planned;
+            }
+            count++;
+        }
+    }
+
+    /**
+     * Finds the layer nearest to a height.
+     * @param z vertical absolute coordinate.
+     * @param min index of the first eligible layer.
+     * @param max index of the last eligible layer.
+     * @return index of the layer.
+     */
+    private int getNearestLayer(final double z, final int min, final int max)
+    {
+        int nearest = min;
+        for (int i = min + 1; (i <= max) && (layers.get(i - 1).z() < z); i++)
+        {
+            if (Math.abs(layers.get(i).z() - z) < Math.abs(layers.get(nearest).z() - z))
+                nearest = i;
+        }
+        return nearest;
+    }
 
-    private double bottomBorderThickness;
+    /**
+     * Calculates the position of the triangles and vertices of each layer of a part.
+     * <p>
+     * The bottom surface comes first, then each vertical surface, then the top surface; horizontal
+     * surfaces have 2 triangles per point (one point less for open perimeters), vertical surfaces
+     * 2 triangles per point of each of the two layers (for open perimeters, the missing ones are
+     * the walls closing the ends).
+     * </p>
+     * @param partLayers layers of the part, from the bottom.
+     * @return part.
+     */
+    private Part createPart(final List<LayerSpec> partLayers)
+    {
+        int n = partLayers.size();
+        long [] firstTriangles = new long [n + 1];
+        long [] firstVertices = new long [n + 1];
+        int previousPoints = getPointCount(partLayers.get(0));
+        long triangle = getHorizontalTriangleCount(previousPoints);
+        firstVertices[1] = 2L * previousPoints;
+        for (int i = 1; i < n; i++)
+        {
+            int points = getPointCount(partLayers.get(i));
+            triangle += 2L * (previousPoints + points);
+            firstTriangles[i] = triangle;
+            firstVertices[i + 1] = firstVertices[i] + (2L * points);
+            previousPoints = points;
+        }
+        firstTriangles[n] = triangle + getHorizontalTriangleCount(previousPoints);
+        return new Part(partLayers, firstTriangles, firstVertices);
+    }
 
-    private double bottomBorderHeight;
+    /**
+     * Returns the number of triangles of a horizontal surface.
+     * @param points number of points of each perimeter.
+     * @return number of triangles.
+     */
+    private long getHorizontalTriangleCount(final int points)
+    {
+        return geometry.isClosed() ? 2L * points : 2L * (points - 1);
+    }
 
-    private double bottomBorderTransition;
+    /**
+     * Calculates the number of triangles of a part, so that it can be written before the
+     * triangles themselves.
+     * @param part part.
+     * @return number of triangles.
+     */
+    private int countTriangles(final Part part)
+    {
+        long count = part.getTriangleCount();
+        if (count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(
+                    String.format("Image too big: %d triangles exceed the STL limit", count));
+        return (int) count;
+    }
 
-    private RoughFace roughFace;
+    /**
+     * Writes a part of the model to a stream in the selected format, compressed if requested.
+     * @param stream destination stream.
+     * @param part part to write.
+     * @param threads number of threads.
+     * @throws IOException error writing the model.
+     */
+    private void writeLithophane(final OutputStream stream, final Part part, final int threads)
+            throws IOException
+    {
+        if ( ! compressed)
+        {
+            writeModel(stream, part, threads);
+            return;
+        }
 
-    private int imageWidthPixels;
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(stream, threads);
+        try
+        {
+            writeModel(gzip, part, threads);
+            gzip.finish();
+        }
+        finally
+        {
+            gzip.shutdown();
+        }
+    }
 
-    private int imageHeightPixels;
+    /**
+     * Writes a part of the model to a stream in the selected format.
+     * @param stream destination stream.
+     * @param part part to write.
+     * @param threads number of threads.
+     * @throws IOException error writing the model.
+     */
+    private void writeModel(final OutputStream stream, final Part part, final int threads)
+            throws IOException
+    {
+        switch (format)
+        {
+            case STL:
+                writeStl(stream, part, threads);
+                break;
+
+            case PLY:
+                writeIndexedMesh(new PlyWriter(stream, getModelName(), countVertices(part),
+                        countTriangles(part)), part);
+                break;
+
+            case OBJ:
+                writeIndexedMesh(new ObjWriter(stream, getModelName(), countVertices(part),
+                        countTriangles(part)), part);
+                break;
+
+            case THREE_MF:
+                ThreeMfWriter threeMf = new ThreeMfWriter(stream, getModelName(),
+                        countVertices(part), countTriangles(part), threads);
+                try
+                {
+                    writeIndexedMesh(threeMf, part);
+                }
+                finally
+                {
+                    threeMf.shutdown();
+                }
+                break;
 
-    private double imageHeightMillimeters;
+            default:
+                throw new UnsupportedOperationException("format " + format + " is not supported");
+        }
+    }
 
-    private BufferedImage image;
+    /**
+     * Returns the number of vertices of a part as an indexed mesh: each layer has an outer and an
+     * inner perimeter.
+     * @param part part.
+     * @return number of vertices.
+     */
+    private int countVertices(final Part part)
+    {
+        long count = part.firstVertices()[part.layers().size()];
+        if (count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(
+                    String.format("Image too big: %d vertices cannot be indexed", count));
+        return (int) count;
+    }
 
-    private double angleStep;
+    /**
+     * Writes a part of the model as an indexed mesh: first the points of all the layers, then the
+     * faces referencing them.
+     * <p>
+     * Faces only depend on the topology, but they are generated by the same code used for STL
+     * files, so layers are generated twice.
+     * </p>
+     * @param writer destination mesh.
+     * @param part part to write.
+     * @throws IOException error writing the model.
+     */
+    private void writeIndexedMesh(final IndexedMeshWriter writer, final Part part)
+            throws IOException
+    {
+        GenerationMetrics.PhaseClock clock = metrics.startClock();
+        Layer layer = new Layer(imageWidthPixels);
+        double [] thickness = new double [imageWidthPixels];
+        for (LayerSpec spec : part.layers())
+        {
+            checkCancelled();
+            createLayer(layer, spec, thickness);
+            writer.addVertices(layer.outerPerimeter());
+            writer.addVertices(layer.innerPerimeter());
+            clock.lap(getPhase(spec));
+        }
+        createBandsSequentially(writer, part);
+        writer.finish();
+    }
 
-    private double pixelStep;
+    /**
+     * Writes a part of the model to a stream in binary STL format.
+     * @param stream destination stream.
+     * @param part part to write.
+     * @param threads number of threads.
+     * @throws IOException error writing the model.
+     */
+    private void writeStl(final OutputStream stream, final Part part, final int threads)
+            throws IOException
+    {
+        StreamingStl stl = new StreamingStl(getModelName(), stream, countTriangles(part));
+        if (threads > 1)
+        {
+            createBandsInOrder(stl, part, threads);
+        }
+        else
+        {
+            createBandsSequentially(stl, part);
+        }
+        stl.finish();
+    }
 
-    private Stl stl;
+    /**
+     * Adds a range of layers of a part to the STL model: the vertical surfaces between each layer
+     * and the next one, the bottom surface if the range starts at the first layer of the part and
+     * the top surface if it ends at the last one.
+     * @param stl destination model.
+     * @param part part containing the layers.
+     * @param firstLayer index of the first layer in the part.
+     * @param lastLayer index of the last layer in the part (inclusive).
+     * @param buffers layers and thickness overwritten while generating.
+     * @throws IOException error writing the model.
+     */
+    private void createLayers(final MeshSink stl, final Part part, final int firstLayer,
+            final int lastLayer, final LayerBuffers buffers) throws IOException
+    {
+        List<LayerSpec> partLayers = part.layers();
+        GenerationMetrics.BandEvent event = metrics.startBand();
+        GenerationMetrics.PhaseClock clock = metrics.startClock();
+
+        // only two layers are needed: they are swapped and overwritten at each step
+        Layer previousLayer = buffers.first();
+        Layer currentLayer = buffers.second();
+        double [] thickness = buffers.thickness();
+
+        LayerSpec previousSpec = partLayers.get(firstLayer);
+        createLayer(previousLayer, previousSpec, thickness);
+        previousLayer.setFirstVertex((int) part.firstVertices()[firstLayer]);
+        if (firstLayer == 0)
+            writeHorizontalSurface(stl, previousLayer, previousSpec.columns(), false);
+        clock.lap(getPhase(previousSpec));
+
+        for (int i = firstLayer + 1; i <= lastLayer; i++)
+        {
+            LayerSpec currentSpec = partLayers.get(i);
+            createLayer(currentLayer, currentSpec, thickness);
+            currentLayer.setFirstVertex((int) part.firstVertices()[i]);
+            writeVerticalSurface(stl, previousLayer, previousSpec, currentLayer, currentSpec);
+            clock.lap(getPhase(currentSpec));
+            Layer swap = previousLayer;
+            previousLayer = currentLayer;
+            currentLayer = swap;
+            previousSpec = currentSpec;
+        }
 
-    /** Precalculated cosine for each column. */
-    private double [] cos;
+        boolean top = lastLayer == part.getLastLayer();
+        if (top)
+            writeHorizontalSurface(stl, previousLayer, previousSpec.columns(), true);
+        clock.lap(getPhase(previousSpec));
 
-    /** Precalculated sine for each column. */
-    private double [] sin;
+        metrics.endBand(event, firstLayer, lastLayer, part.getFirstTriangle(
+                top ? partLayers.size() : lastLayer) - part.getFirstTriangle(firstLayer));
+    }
 
     /**
-     * Costruttore.
-     * @param imagePath path of the source png image.
-     * @param outputPath path of the destination .stl file.
-     * @param diameter diameter of the lithophane (measured on the flat face).
-     * @param minThickness minimum (lighttest) thickness.
-     * @param maxThickness maximum (darkest) thickness.
-     * @param topBorderThickness thickness of the top border.
-     * @param topBorderHeight height of the top border; if 0 there will be no top border.
-     * @param topBorderTransition length of the top border transition band; ignored if
-     *        topBorderHeight<=0.
-     * @param bottomBorderThickness thickness of the bottom border.
-     * @param bottomBorderHeight height of the nottom border; if 0 there will be no bottom border.
-     * @param bottomBorderTransition length of the bottom border transition band; ignored if
-     *        bottomBorderHeight<=0.
-     * @param roughFace where the rough face should be.
+     * Returns the phase a layer is measured in.
+     * @param spec layer.
+     * @return border or body phase.
      */
-    public Lithophanizer(final File imagePath, final File outputPath, final double diameter,
-            final double minThickness, final double maxThickness, final double topBorderThickness,
-            final double topBorderHeight, final double topBorderTransition,
-            final double bottomBorderThickness, final double bottomBorderHeight,
-            final double bottomBorderTransition, final RoughFace roughFace)
+    private static GenerationMetrics.Phase getPhase(final LayerSpec spec)
     {
-        this.imagePath = imagePath;
-        this.outputPath = outputPath;
-        this.diameter = diameter;
-        this.radius = this.diameter / 2.0;
-        this.minThickness = minThickness;
-        this.maxThickness = maxThickness;
-        this.topBorderThickness = topBorderThickness;
-        this.topBorderHeight = topBorderHeight;
-        this.topBorderTransition = topBorderTransition;
-        this.bottomBorderThickness = bottomBorderThickness;
-        this.bottomBorderHeight = bottomBorderHeight;
-        this.bottomBorderTransition = bottomBorderTransition;
-        this.roughFace = roughFace;
+        return spec.row() == LayerSpec.BORDER ? GenerationMetrics.Phase.BORDER
+                : GenerationMetrics.Phase.BODY;
     }
 
     /**
-     * Generates the .stl file.
-     * @throws IOException errore di lettura o scrittura.
+     * Splits the layers of a part in bands of about {@link #BAND_SIZE} bytes; each band starts
+     * with the last layer of the previous one.
+     * @param part part.
+     * @return bands.
      */
-    public void generateLithophane() throws IOException
+    private List<Band> planBands(final Part part)
     {
-        if ( ! imagePath.exists())
-            throw new IllegalArgumentException(
-                    String.format("Image path \"%s\" not found.", imagePath));
-        if ( ! imagePath.isFile())
-            throw new IllegalArgumentException(
-                    String.format("Image path \"%s\" is not a file.", imagePath));
-        if ( ! (diameter > 0.0))
-            throw new IllegalArgumentException("Diameter must be greater than zero");
-        if ( ! (minThickness > 0.0))
-            throw new IllegalArgumentException("Minimum thickness must be greater than zero");
-        if ( ! (maxThickness > minThickness))
-            throw new IllegalArgumentException(
-                    "Mmaximum thickness must be greater than minimum thickness");
-
-        this.image = ImageIO.read(imagePath);
-        this.imageWidthPixels = image.getWidth();
-        this.imageHeightPixels = image.getHeight();
-
-        this.angleStep = (2.0 * Math.PI) / imageWidthPixels;
-        this.pixelStep = (Math.PI * diameter) / imageWidthPixels;
-        this.imageHeightMillimeters = imageHeightPixels * pixelStep;
+        int layersPerBand = Math.max(1,
+                BAND_SIZE / (4 * imageWidthPixels * Triangle.BINARY_SIZE));
+        List<Band> bands = new ArrayList<>();
+        int lastLayer = part.getLastLayer();
+        for (int first = 0; first < lastLayer; first += layersPerBand)
+        {
+            bands.add(new Band(first, Math.min(lastLayer, first + layersPerBand)));
+        }
+        return bands;
+    }
 
-        System.out.format(Locale.US,
-                "Diameter: %.1f mm; height: %.1f mm; pixel size: %.2f mm; pixels per mm: %.1f%n",
-                diameter, (imageHeightPixels * pixelStep) + bottomBorderHeight + topBorderHeight,
-                pixelStep, 1.0 / pixelStep);
+    /**
+     * Generates a band of layers in a separate model.
+     * @param part part containing the band.
+     * @param band band to generate.
+     * @return model containing the triangles of the band.
+     * @throws IOException error serializing the triangles.
+     */
+    private Stl createBand(final Part part, final Band band) throws IOException
+    {
+        checkCancelled();
+        Stl stl = new Stl("band", (int) (part.getTriangleCount(band) * Triangle.BINARY_SIZE));
+        createLayers(stl, part, band.firstLayer(), band.lastLayer(),
+                new LayerBuffers(imageWidthPixels));
+        return stl;
+    }
 
-        // precalculate cos and sin
-        this.cos = new double [imageWidthPixels];
-        this.sin = new double [imageWidthPixels];
-        for (int col = 0; col < imageWidthPixels; col++)
+    /**
+     * Generates the layers of a part in bands on the current thread, in order; the layers are
+     * allocated once for all the bands.
+     * @param sink destination model.
+     * @param part part to generate.
+     * @throws IOException error writing the model.
+     */
+    private void createBandsSequentially(final MeshSink sink, final Part part)
+            throws IOException
+    {
+        LayerBuffers buffers = new LayerBuffers(imageWidthPixels);
+        for (Band band : planBands(part))
         {
-            double a = col * angleStep;
-            cos[col] = Math.cos(a);
-            sin[col] = Math.sin(a);
+            checkCancelled();
+            createLayers(sink, part, band.firstLayer(), band.lastLayer(), buffers);
+            bandCompleted(part, band);
         }
+    }
 
-        stl = new Stl(String.format("Cylindrical lithophane from %s", imagePath.getName()));
+    /**
+     * Throws an exception if the generation has been cancelled.
+     * @throws CancellationException if cancelled.
+     */
+    private void checkCancelled()
+    {
+        if (cancellationToken != null)
+            cancellationToken.throwIfCancelled();
+    }
 
-        final int startLithophaneRow;
-        final int lastLithophaneRow;
-        final double lithophaneVerticalOffset;
-        final Layer previousLayer;
+    /**
+     * Notifies the progress listener of a completed band.
+     * @param part part containing the band.
+     * @param band completed band.
+     */
+    private synchronized void bandCompleted(final Part part, final Band band)
+    {
+        completedTriangles += part.getTriangleCount(band);
+        if (progressListener != null)
+            progressListener.bandCompleted(completedTriangles, getTriangleCount());
+    }
 
-        if (bottomBorderHeight > 0.0)
+    /**
+     * Generates the layers of a part in bands on a pool of threads, writing each band at its
+     * position in the file as soon as it is complete.
+     * @param writer destination file.
+     * @param part part to generate.
+     * @param threads number of threads.
+     * @throws IOException error writing the model.
+     */
+    private void createBandsInParallel(final PositionalStlWriter writer, final Part part,
+            final int threads) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
         {
-            Layer borderLayer1 = createBorderLayer(0.0, bottomBorderThickness);
-            Layer borderLayer2 = createBorderLayer(bottomBorderHeight, bottomBorderThickness);
-            writeHorizontalSurface(borderLayer1, false);
-            writeVerticalSurface(borderLayer1, borderLayer2);
-            previousLayer = borderLayer2;
-            startLithophaneRow = 1;
-            lithophaneVerticalOffset = bottomBorderHeight;
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Band band : planBands(part))
+            {
+                futures.add(executor.submit(() -> {
+                    Stl stl = createBand(part, band);
+                    long start = System.nanoTime();
+                    writer.write(stl, part.getFirstTriangle(band.firstLayer()));
+                    metrics.addWrite((long) stl.getTriangleCount() * Triangle.BINARY_SIZE,
+                            System.nanoTime() - start);
+                    bandCompleted(part, band);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures)
+            {
+                waitFor(future);
+            }
         }
-        else
+        finally
         {
-            Layer bottomLayer = createLithophaneLayer(0, 0.0);
-            writeHorizontalSurface(bottomLayer, false);
-            previousLayer = bottomLayer;
-            startLithophaneRow = 0;
-            lithophaneVerticalOffset = 0.0;
+            executor.shutdownNow();
         }
+    }
 
-        if (topBorderHeight > 0.0)
+    /**
+     * Generates the layers of a part in bands on a pool of threads, appending them to a stream in
+     * order.
+     * <p>
+     * Only a limited number of bands is queued at any time, to keep memory usage bounded.
+     * </p>
+     * @param stl destination model.
+     * @param part part to generate.
+     * @param threads number of threads.
+     * @throws IOException error writing the model.
+     */
+    private void createBandsInOrder(final StreamingStl stl, final Part part, final int threads)
+            throws IOException
+    {
+        int maxQueuedBands = threads * BANDS_PER_THREAD;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
         {
-            lastLithophaneRow = imageHeightPixels - 2;
+            Deque<Band> bands = new ArrayDeque<>();
+            Deque<Future<Stl>> queue = new ArrayDeque<>();
+            for (Band band : planBands(part))
+            {
+                if (queue.size() >= maxQueuedBands)
+                {
+                    stl.addTriangles(waitFor(queue.remove()));
+                    bandCompleted(part, bands.remove());
+                }
+                bands.add(band);
+                queue.add(executor.submit(() -> createBand(part, band)));
+            }
+            while ( ! queue.isEmpty())
+            {
+                stl.addTriangles(waitFor(queue.remove()));
+                bandCompleted(part, bands.remove());
+            }
         }
-        else
+        finally
         {
-            lastLithophaneRow = imageHeightPixels - 1;
+            executor.shutdownNow();
         }
+    }
 
-        Layer lastLithophaneLayer = createLithophaneBody(previousLayer, startLithophaneRow,
-                lastLithophaneRow, lithophaneVerticalOffset);
-
-        double lastLayerZ = lastLithophaneLayer.innerPerimeter()[0][2];
-        if (topBorderHeight > 0.0)
+    /**
+     * Waits for a task to complete, unwrapping any exception thrown by it.
+     * @param <T> result type.
+     * @param future task.
+     * @return result of the task.
+     * @throws IOException error thrown by the task or thread interrupted.
+     */
+    private static <T> T waitFor(final Future<T> future) throws IOException
+    {
+        try
         {
-            Layer borderLayer1 = createBorderLayer(lastLayerZ + pixelStep, topBorderThickness);
-            Layer borderLayer2 = createBorderLayer(lastLayerZ + pixelStep + bottomBorderHeight,
-                    topBorderThickness);
-
-            writeVerticalSurface(lastLithophaneLayer, borderLayer1);
-            writeVerticalSurface(borderLayer1, borderLayer2);
-            writeHorizontalSurface(borderLayer2, true);
+            return future.get();
         }
-        else
+        catch (InterruptedException e)
         {
-            writeHorizontalSurface(lastLithophaneLayer, true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while generating the lithophane");
         }
-
-        try (BufferedOutputStream stream = new BufferedOutputStream(
-                new FileOutputStream(outputPath), BUFFER_SIZE))
+        catch (ExecutionException e)
         {
-            stl.writeBinary(stream);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException)
+                throw ioException;
+            if (cause instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            if (cause instanceof Error error)
+                throw error;
+            throw new IOException(cause);
         }
-
-        System.out.println("Lithophane generation complete.");
     }
 
     /**
-     * Adds lithophane layers for the specified image rows to the STL model.
-     * @param previousLayer previous layer to build up from.
-     * @param firstRow index of the first row of the image to generate.
-     * @param lastRow index of the last row of the image to generate (inclusive).
-     * @param rowZeroVerticalOffset vertical absolute coordinate of row 0 (not the current row).
-     * @return the last generated layer.
+     * Creates a layer; if the layer has a subset of the columns, the perimeters will only contain
+     * the points of those columns.
+     * @param layer destination layer, whose content will be overwritten.
+     * @param spec layer to create.
+     * @param thickness work array, with one element per column.
      */
-    private Layer createLithophaneBody(final Layer previousLayer, final int firstRow,
-            final int lastRow, final double rowZeroVerticalOffset)
+    private void createLayer(final Layer layer, final LayerSpec spec, final double [] thickness)
     {
-        Layer lastLayer = previousLayer;
-        for (int i = firstRow; i <= lastRow; i++)
-        {
-            Layer currentLayer = createLithophaneLayer(i, rowZeroVerticalOffset);
-            writeVerticalSurface(lastLayer, currentLayer);
-            lastLayer = currentLayer;
-        }
-        return lastLayer;
+        getLayerThickness(spec, thickness);
+        layer.setZ((float) spec.z());
+        layer.setSize(geometry.setPoints(layer, thickness, spec.columns()));
     }
 
     /**
-     * Returns the B component of the HSB model from a pixel in 0-1 scale.
-     * @param x pixel x coordinate.
-     * @param y pixel y coordinate.
-     * @return brighntss (0-1)
+     * Calculates the thickness of each column of a layer.
+     * @param spec layer.
+     * @param thickness destination array, with one element per column.
      */
-    private float getPixelBrighness(final int x, final int y)
+    private void getLayerThickness(final LayerSpec spec, final double [] thickness)
     {
-        Color c = new Color(image.getRGB(x, imageHeightPixels - 1 - y));
-        return Color.RGBtoHSB(c.getRed(), c.getGreen(), c.getBlue(), null)[2];
+        if (spec.row() == LayerSpec.BORDER)
+        {
+            Arrays.fill(thickness, spec.borderThickness());
+        }
+        else
+        {
+            getLithophaneThickness(spec.row(), thickness);
+        }
     }
 
     /**
-     * Creates a lithphane layer.
+     * Calculates the thickness of each column of a lithophane layer.
      * @param row image row.
-     * @param rowZeroVerticalOffset vertical absolute coordinate of row 0 (not the current row).
-     * @return created layer.
+     * @param thickness destination array, with one element per column.
      */
-    private Layer createLithophaneLayer(final int row, final double rowZeroVerticalOffset)
+    private void getLithophaneThickness(final int row, final double [] thickness)
     {
         double transitionProportion = getTransitionProportion(row);
         double transitionBorderThickness = getCurrentTransitionBorderThickness(row);
 
-        double [] [] outer = new double [imageWidthPixels] [];
-        double [] [] inner = new double [imageWidthPixels] [];
+        // image rows go from the top, layers from the bottom
+        int imageRow = imageHeightPixels - 1 - row;
+
         for (int col = 0; col < imageWidthPixels; col++)
         {
-            double brightness = getPixelBrighness(col, row);
-
-            // brighter = thinner
-            double rawThickness = ((1 - brightness) * (maxThickness - minThickness)) + minThickness;
+            double rawThickness = thicknessTable[brightness.get(col, imageRow)];
 
             // adjust for border transitions
-            double thickness = (rawThickness * transitionProportion)
+            thickness[col] = (rawThickness * transitionProportion)
                     + (transitionBorderThickness * (1 - transitionProportion));
-
-            inner[col] = innerPoint(col, (row * pixelStep) + rowZeroVerticalOffset, thickness);
-            outer[col] = outerPoint(col, (row * pixelStep) + rowZeroVerticalOffset, thickness);
         }
-
-        return new Layer(outer, inner);
     }
 
     /**
@@ -324,127 +2117,332 @@ public class Lithophanizer
     }
 
     /**
-     * Creates a "border" (fixed thickness) layer.
-     * @param z vertical absolute coordinate.
-     * @param borderThickness thickness of the border.
-     * @return created layer.
+     * Writes an horizontal surface to sìthe Stl stream.
+     * @param stl destination model.
+     * @param layer outer and inner perimeters.
+     * @param columns columns of the points of the layer; null if all the columns are present.
+     * @param top if true a top surface is written, if false a bottom surface.
+     * @throws IOException error writing the model.
      */
-    private Layer createBorderLayer(final double z, final double borderThickness)
+    private void writeHorizontalSurface(final MeshSink stl, final Layer layer,
+            final BitSet columns, final boolean top) throws IOException
     {
-        double [] [] outer = new double [imageWidthPixels] [];
-        double [] [] inner = new double [imageWidthPixels] [];
-        for (int col = 0; col < imageWidthPixels; col++)
+        float normalZ = top ? 1.0f : -1.0f;
+        if (columns != null)
         {
-            inner[col] = innerPoint(col, z, borderThickness);
-            outer[col] = outerPoint(col, z, borderThickness);
+            stitchPerimeters(stl, layer.innerPerimeter(), columns, layer.outerPerimeter(),
+                    columns, top, normalZ);
+            return;
         }
 
-        return new Layer(outer, inner);
+        Perimeter outer = layer.outerPerimeter();
+        Perimeter inner = layer.innerPerimeter();
+        int l = inner.size();
+        int end = geometry.isClosed() ? l : l - 1;
+        for (int i = 0; i < end; i++)
+        {
+            // j = next point (may wrap)
+            int j = (i + 1) % l;
+
+            // a bottom surface by default, vertices (and so normal) inverted if top
+            if (top)
+            {
+                stl.addTriangle(outer, i, outer, j, inner, i, 0.0f, 0.0f, normalZ);
+                stl.addTriangle(outer, j, inner, j, inner, i, 0.0f, 0.0f, normalZ);
+            }
+            else
+            {
+                stl.addTriangle(inner, i, outer, j, outer, i, 0.0f, 0.0f, normalZ);
+                stl.addTriangle(inner, i, inner, j, outer, j, 0.0f, 0.0f, normalZ);
+            }
+        }
     }
 
     /**
-     * Calculates an outer shell point.
-     * @param col column of the point in image coordinates.
-     * @param z vertical absolute coordinate.
-     * @param thickness radial displacement from the base radius.
-     * @return point vector.
+     * Writes a vertical mesh for the outer surface and one for the inner surface
+     * <p>
+     * Where all the points of a surface have the same distance from the base surface (the smooth
+     * face, or two borders with the same thickness), each quad is a vertical rectangle whose
+     * normal is known from the geometry instead of being calculated from the vertices. Open
+     * perimeters are closed at the ends by walls between the outer and inner points.
+     * </p>
+     * @param stl destination model.
+     * @param layer1 lower layer points.
+     * @param spec1 lower layer.
+     * @param layer2 higher level points.
+     * @param spec2 higher layer.
+     * @throws IOException error writing the model.
      */
-    private double [] outerPoint(final int col, final double z, final double thickness)
+    private void writeVerticalSurface(final MeshSink stl, final Layer layer1,
+            final LayerSpec spec1, final Layer layer2, final LayerSpec spec2) throws IOException
     {
-        switch (roughFace)
+        if ((spec1.columns() != null) && (spec2.columns() != null))
         {
-            case OUTSIDE:
-                return new double [] { cos[col] * (radius + thickness),
-                        sin[col] * (radius + thickness), z };
+            stitchPerimeters(stl, layer1.outerPerimeter(), spec1.columns(),
+                    layer2.outerPerimeter(), spec2.columns(), false, 0.0f);
+            stitchPerimeters(stl, layer1.innerPerimeter(), spec1.columns(),
+                    layer2.innerPerimeter(), spec2.columns(), true, 0.0f);
+            return;
+        }
 
-            case INSIDE:
-                return new double [] { cos[col] * radius, sin[col] * radius, z };
+        boolean sameBorder = (spec1.row() == LayerSpec.BORDER)
+                && (spec2.row() == LayerSpec.BORDER)
+                && (spec1.borderThickness() == spec2.borderThickness());
+        boolean smoothOuter = sameBorder || (roughFace == RoughFace.INSIDE);
+        boolean smoothInner = sameBorder || (roughFace == RoughFace.OUTSIDE);
+
+        Perimeter outer1 = layer1.outerPerimeter();
+        Perimeter outer2 = layer2.outerPerimeter();
+        Perimeter inner1 = layer1.innerPerimeter();
+        Perimeter inner2 = layer2.innerPerimeter();
+        int l = inner1.size();
+        int end = geometry.isClosed() ? l : l - 1;
+        for (int i = 0; i < end; i++)
+        {
+            // j = next point (may wrap)
+            int j = (i + 1) % l;
 
-            case BOTH:
-                return new double [] { cos[col] * (radius + (thickness / 2.0)),
-                        sin[col] * (radius + (thickness / 2.0)), z };
+            // outer surface
+            if (smoothOuter)
+            {
+                float nx = geometry.getNormalX(i);
+                float ny = geometry.getNormalY(i);
+                stl.addTriangle(outer1, i, outer2, j, outer2, i, nx, ny, 0.0f);
+                stl.addTriangle(outer1, i, outer1, j, outer2, j, nx, ny, 0.0f);
+            }
+            else
+            {
+                stl.addTriangle(outer1, i, outer2, j, outer2, i);
+                stl.addTriangle(outer1, i, outer1, j, outer2, j);
+            }
 
-            default:
-                throw new UnsupportedOperationException(
-                        "rough face " + roughFace + " is not supported");
+            // inner surface
+            if (smoothInner)
+            {
+                float nx = -geometry.getNormalX(i);
+                float ny = -geometry.getNormalY(i);
+                stl.addTriangle(inner1, i, inner2, i, inner2, j, nx, ny, 0.0f);
+                stl.addTriangle(inner1, i, inner2, j, inner1, j, nx, ny, 0.0f);
+            }
+            else
+            {
+                stl.addTriangle(inner1, i, inner2, i, inner2, j);
+                stl.addTriangle(inner1, i, inner2, j, inner1, j);
+            }
+        }
+
+        if ( ! geometry.isClosed())
+        {
+            // walls at the first and last point, facing away from the perimeter
+            int last = l - 1;
+            stl.addTriangle(inner1, 0, outer1, 0, outer2, 0);
+            stl.addTriangle(inner1, 0, outer2, 0, inner2, 0);
+            stl.addTriangle(outer1, last, inner1, last, inner2, last);
+            stl.addTriangle(outer1, last, inner2, last, outer2, last);
         }
     }
 
     /**
-     * Calculates an inner shell point.
-     * @param col column of the point in image coordinates.
-     * @param z vertical absolute coordinate.
-     * @param thickness radial displacement from the base radius.
-     * @return point vector.
+     * Writes a strip of triangles between two perimeters that may contain points of different
+     * columns, advancing along the perimeter whose next point comes first; column 0 must be
+     * present in both perimeters.
+     * <p>
+     * With the default orientation the strip faces outside when the first perimeter is the lower
+     * one (or the inner one, for horizontal surfaces); if reversed it faces the other way. If the
+     * two perimeters have the same columns, the triangles are the same as a regular strip.
+     * </p>
+     * @param stl destination model.
+     * @param a first perimeter.
+     * @param columnsA columns of the points of the first perimeter.
+     * @param b second perimeter.
+     * @param columnsB columns of the points of the second perimeter.
+     * @param reversed if true, the orientation of the triangles is reversed.
+     * @param normalZ Z of the normal of a horizontal strip (1 or -1); 0 if the strip is not
+     *        horizontal, so the normals are calculated from the vertices.
+     * @throws IOException error writing the model.
      */
-    private double [] innerPoint(final int col, final double z, final double thickness)
+    private void stitchPerimeters(final MeshSink stl, final Perimeter a, final BitSet columnsA,
+            final Perimeter b, final BitSet columnsB, final boolean reversed, final float normalZ)
+            throws IOException
     {
-        switch (roughFace)
+        int countA = a.size();
+        int countB = b.size();
+        int ia = 0;
+        int ib = 0;
+        int nextColumnA = getNextColumn(columnsA, 0);
+        int nextColumnB = getNextColumn(columnsB, 0);
+        while ((ia < countA) || (ib < countB))
         {
-            case OUTSIDE:
-                return new double [] { cos[col] * radius, sin[col] * radius, z };
-
-            case INSIDE:
-                return new double [] { cos[col] * (radius - thickness),
-                        sin[col] * (radius - thickness), z };
+            int pointA = ia % countA;
+            int pointB = ib % countB;
+            if ((ib < countB) && ((ia >= countA) || (nextColumnB <= nextColumnA)))
+            {
+                int nextB = (ib + 1) % countB;
+                if (reversed)
+                {
+                    addTriangle(stl, a, pointA, b, pointB, b, nextB, normalZ);
+                }
+                else
+                {
+                    addTriangle(stl, a, pointA, b, nextB, b, pointB, normalZ);
+                }
+                ib++;
+                nextColumnB = getNextColumn(columnsB, nextColumnB);
+            }
+            else
+            {
+                int nextA = (ia + 1) % countA;
+                if (reversed)
+                {
+                    addTriangle(stl, a, pointA, b, pointB, a, nextA, normalZ);
+                }
+                else
+                {
+                    addTriangle(stl, a, pointA, a, nextA, b, pointB, normalZ);
+                }
+                ia++;
+                nextColumnA = getNextColumn(columnsA, nextColumnA);
+            }
+        }
+    }
 
-            case BOTH:
-                return new double [] { cos[col] * (radius - (thickness / 2.0)),
-                        sin[col] * (radius - (thickness / 2.0)), z };
+    /**
+     * Adds a triangle, with a vertical normal if known.
+     * @param stl destination model.
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
+     * @param normalZ Z of the normal of a horizontal triangle (1 or -1); 0 to calculate the
+     *        normal from the vertices.
+     * @throws IOException error writing the model.
+     */
+    private static void addTriangle(final MeshSink stl, final Perimeter p1, final int i1,
+            final Perimeter p2, final int i2, final Perimeter p3, final int i3,
+            final float normalZ) throws IOException
+    {
+        if (normalZ != 0.0f)
+            stl.addTriangle(p1, i1, p2, i2, p3, i3, 0.0f, 0.0f, normalZ);
+        else
+            stl.addTriangle(p1, i1, p2, i2, p3, i3);
+    }
 
-            default:
-                throw new UnsupportedOperationException(
-                        "rough face " + roughFace + " is not supported");
-        }
+    /**
+     * Returns the column of the point following a column in a perimeter.
+     * @param columns columns of the points of the perimeter.
+     * @param column current column.
+     * @return next column, or the number of columns after the last one (the perimeter wraps).
+     */
+    private int getNextColumn(final BitSet columns, final int column)
+    {
+        int next = column < imageWidthPixels ? columns.nextSetBit(column + 1) : -1;
+        return next >= 0 ? next : imageWidthPixels;
     }
 
     /**
-     * Writes an horizontal surface to sìthe Stl stream.
-     * @param layer outer and inner perimeters.
-     * @param top if true a top surface is written, if false a bottom surface.
+     * A layer of the model.
+     * @param z vertical absolute coordinate.
+     * @param row image row, or {@link #BORDER} for a border layer.
+     * @param borderThickness thickness of a border layer.
+     * @param columns columns whose points are part of the mesh; null for all the columns.
      */
-    private void writeHorizontalSurface(final Layer layer, final boolean top)
+    private record LayerSpec(double z, int row, double borderThickness, BitSet columns)
     {
-        int l = layer.innerPerimeter().length;
-        for (int i = 0; i < l; i++)
+        /** Row of border layers. */
+        static final int BORDER = -1;
+
+        /**
+         * Creates a layer with all the columns.
+         * @param z vertical absolute coordinate.
+         * @param row image row, or {@link #BORDER} for a border layer.
+         * @param borderThickness thickness of a border layer.
+         */
+        LayerSpec(final double z, final int row, final double borderThickness)
         {
-            // j = next point (may wrap)
-            int j = (i + 1) % l;
-
-            // a bottom surface by default, normal inverted if top
-            stl.addTriangle(new Triangle(layer.innerPerimeter()[i], layer.outerPerimeter()[j],
-                    layer.outerPerimeter()[i], top));
-            stl.addTriangle(new Triangle(layer.innerPerimeter()[i], layer.innerPerimeter()[j],
-                    layer.outerPerimeter()[j], top));
+            this(z, row, borderThickness, null);
         }
     }
 
     /**
-     * Writes a vertical mesh for the outer surface and one for the inner surface
-     * @param layer1 lower layer points.
-     * @param layer2 higher level points.
+     * Part of the model written to a file: a range of layers, closed at both ends.
+     * @param layers layers of the part, from the bottom.
+     * @param firstTriangles index of the first triangle of the band starting at each layer (see
+     *        {@link #getFirstTriangle(int)}), plus the number of triangles.
+     * @param firstVertices index of the first vertex of each layer in an indexed mesh, plus the
+     *        number of vertices.
      */
-    private void writeVerticalSurface(final Layer layer1, final Layer layer2)
+    private record Part(List<LayerSpec> layers, long [] firstTriangles, long [] firstVertices)
     {
-        int l = layer1.innerPerimeter().length;
-        for (int i = 0; i < l; i++)
+        /**
+         * Returns the index of the last layer.
+         * @return index of the last layer.
+         */
+        int getLastLayer()
         {
-            // j = next point (may wrap)
-            int j = (i + 1) % l;
+            return layers.size() - 1;
+        }
 
-            // outer surface
-            stl.addTriangle(new Triangle(layer1.outerPerimeter()[i], layer2.outerPerimeter()[j],
-                    layer2.outerPerimeter()[i]));
-            stl.addTriangle(new Triangle(layer1.outerPerimeter()[i], layer1.outerPerimeter()[j],
-                    layer2.outerPerimeter()[j]));
+        /**
+         * Returns the index of the first triangle generated for a band starting at a layer: the
+         * bottom surface for the first layer, the vertical surface between the layer and the
+         * next one for the others.
+         * @param layer index of the layer; if it is the number of layers, the total number of
+         *        triangles is returned.
+         * @return index of the triangle.
+         */
+        long getFirstTriangle(final int layer)
+        {
+            return firstTriangles[layer];
+        }
 
-            // inner surface
-            stl.addTriangle(new Triangle(layer1.innerPerimeter()[i], layer2.innerPerimeter()[i],
-                    layer2.innerPerimeter()[j]));
-            stl.addTriangle(new Triangle(layer1.innerPerimeter()[i], layer2.innerPerimeter()[j],
-                    layer1.innerPerimeter()[j]));
+        /**
+         * Returns the number of triangles.
+         * @return number of triangles.
+         */
+        long getTriangleCount()
+        {
+            return firstTriangles[layers.size()];
+        }
 
+        /**
+         * Returns the number of triangles of a band.
+         * @param band band.
+         * @return number of triangles.
+         */
+        long getTriangleCount(final Band band)
+        {
+            return getFirstTriangle(band.lastLayer() == getLastLayer() ? layers.size()
+                    : band.lastLayer()) - getFirstTriangle(band.firstLayer());
         }
     }
 
+    /**
+     * A band of consecutive layers, generated together.
+     * @param firstLayer index of the first layer.
+     * @param lastLayer index of the last layer (inclusive).
+     */
+    private record Band(int firstLayer, int lastLayer)
+    {
+        // nessun metodo
+    }
+
+    /**
+     * Work buffers of {@link Lithophanizer#createLayers}, reusable from a band to the next one.
+     * @param first a layer.
+     * @param second the other layer.
+     * @param thickness thickness of each column.
+     */
+    private record LayerBuffers(Layer first, Layer second, double [] thickness)
+    {
+        /**
+         * Constructor.
+         * @param width number of columns.
+         */
+        LayerBuffers(final int width)
+        {
+            this(new Layer(width), new Layer(width), new double [width]);
+        }
+    }
 }
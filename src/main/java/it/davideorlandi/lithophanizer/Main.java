@@ -1,12 +1,19 @@
 package it.davideorlandi.lithophanizer;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.jar.Manifest;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.MissingOptionException;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
@@ -38,6 +45,21 @@ public class Main
 
     private static final String DEFAULT_ROUGH_FACE = "both";
 
+    private static final String DEFAULT_SHAPE = "cylinder";
+
+    private static final String DEFAULT_SHARPEN_AMOUNT = "1.0";
+
+    private static final String DEFAULT_FORMAT = "stl";
+
+    private static final String DEFAULT_DECIMATION_TOLERANCE = "0";
+
+    private static final String DEFAULT_JOBS = "2";
+
+    /** Time an image must stay unchanged before it is generated with --watch. */
+    private static final long DEFAULT_WATCH_DELAY_MILLIS = 1000;
+
+    private static final String DEFAULT_CACHE_SIZE = "1024";
+
     // CLI options
 
     private static final String IMAGE_SHORT_OPTION = "i";
@@ -74,6 +96,66 @@ public class Main
 
     private static final String ROUGH_FACE_LONG_OPTION = "rough-face";
 
+    private static final String SHAPE_LONG_OPTION = "shape";
+
+    private static final String ARC_ANGLE_LONG_OPTION = "arc-angle";
+
+    private static final String PANEL_WIDTH_LONG_OPTION = "panel-width";
+
+    private static final String GAMMA_LONG_OPTION = "gamma";
+
+    private static final String CONTRAST_LONG_OPTION = "contrast";
+
+    private static final String BLUR_LONG_OPTION = "blur";
+
+    private static final String SHARPEN_LONG_OPTION = "sharpen";
+
+    private static final String SHARPEN_AMOUNT_LONG_OPTION = "sharpen-amount";
+
+    private static final String THREADS_SHORT_OPTION = "t";
+
+    private static final String THREADS_LONG_OPTION = "threads";
+
+    private static final String FORMAT_SHORT_OPTION = "f";
+
+    private static final String FORMAT_LONG_OPTION = "format";
+
+    private static final String DECIMATION_TOLERANCE_LONG_OPTION = "decimation-tolerance";
+
+    private static final String COMPRESS_LONG_OPTION = "compress";
+
+    private static final String TILED_DECODING_LONG_OPTION = "tiled-decoding";
+
+    private static final String MEMORY_BUDGET_LONG_OPTION = "memory-budget";
+
+    private static final String PIXELS_PER_MM_LONG_OPTION = "pixels-per-mm";
+
+    private static final String MAX_RESOLUTION_LONG_OPTION = "max-resolution";
+
+    private static final String METRICS_OUT_LONG_OPTION = "metrics-out";
+
+    private static final String SPLIT_ROWS_LONG_OPTION = "split-rows";
+
+    private static final String MAX_PART_HEIGHT_LONG_OPTION = "max-part-height";
+
+    private static final String VALIDATE_LONG_OPTION = "validate";
+
+    private static final String BATCH_LONG_OPTION = "batch";
+
+    private static final String JOBS_LONG_OPTION = "jobs";
+
+    private static final String SERVE_LONG_OPTION = "serve";
+
+    private static final String WATCH_LONG_OPTION = "watch";
+
+    private static final String PREVIEW_LONG_OPTION = "preview";
+
+    private static final String PREVIEW_LEVELS_LONG_OPTION = "preview-levels";
+
+    private static final String CACHE_DIR_LONG_OPTION = "cache-dir";
+
+    private static final String CACHE_SIZE_LONG_OPTION = "cache-size";
+
     /**
      * Entry point.
      * @param args command line arguments.
@@ -83,11 +165,11 @@ public class Main
         Options op = new Options();
 
         op.addOption(Option.builder().option(IMAGE_SHORT_OPTION).longOpt(IMAGE_LONG_OPTION).desc(
-                "Path to png image file (required).").hasArg().argName("path").required().type(
-                        String.class).build());
+                "Path to png image file (required unless --batch is used).").hasArg().argName(
+                        "path").type(String.class).build());
         op.addOption(Option.builder().option(OUTPUT_SHORT_OPTION).longOpt(OUTPUT_LONG_OPTION).desc(
-                "Path to destination .stl file (required).").hasArg().argName(
-                        "path").required().type(String.class).build());
+                "Path to destination .stl (or .ply, .obj) file (required unless --batch is used); with --batch on a directory, the destination directory.").hasArg().argName(
+                        "path").type(String.class).build());
         op.addOption(
                 Option.builder().option(DIAMETER_SHORT_OPTION).longOpt(DIAMETER_LONG_OPTION).desc(
                         "Diameter of the lithophane cylinder, in millimeters, measured on the flat surface (or the middle point between faces if --rough-face=both); default "
@@ -137,6 +219,121 @@ public class Main
                         + DEFAULT_ROUGH_FACE + ".").hasArg().argName(
                                 "inside|outside|both").build());
 
+        op.addOption(Option.builder().longOpt(SHAPE_LONG_OPTION).desc(
+                "Shape of the lithophane: cylinder, arc (part of a cylinder of the given diameter, see --arc-angle) or flat (see --panel-width). Default is "
+                        + DEFAULT_SHAPE + ".").hasArg().argName("cylinder|arc|flat").build());
+
+        op.addOption(Option.builder().longOpt(ARC_ANGLE_LONG_OPTION).desc(
+                "Angle spanned by an arc lithophane, in degrees; default "
+                        + Lithophanizer.DEFAULT_ARC_ANGLE + ".").hasArg().argName("number").type(
+                                Double.class).build());
+
+        op.addOption(Option.builder().longOpt(PANEL_WIDTH_LONG_OPTION).desc(
+                "Width of a flat lithophane, in millimeters (required with --shape=flat).").hasArg().argName(
+                        "number").type(Double.class).build());
+
+        op.addOption(Option.builder().longOpt(GAMMA_LONG_OPTION).desc(
+                "Gamma correction of the image; values greater than 1 brighten the midtones (thinner lithophane). Default 1.").hasArg().argName(
+                        "number").type(Double.class).build());
+
+        op.addOption(Option.builder().longOpt(CONTRAST_LONG_OPTION).desc(
+                "Contrast factor of the image around middle gray, applied after the gamma correction; default 1.").hasArg().argName(
+                        "number").type(Double.class).build());
+
+        op.addOption(Option.builder().longOpt(BLUR_LONG_OPTION).desc(
+                "Gaussian blur of the image, as standard deviation in millimeters on the lithophane (for example 0.2); default 0 (no blur).").hasArg().argName(
+                        "number").type(Double.class).build());
+
+        op.addOption(Option.builder().longOpt(SHARPEN_LONG_OPTION).desc(
+                "Unsharp mask of the image, as standard deviation in millimeters of its blur (for example 0.5); default 0 (no sharpening).").hasArg().argName(
+                        "number").type(Double.class).build());
+
+        op.addOption(Option.builder().longOpt(SHARPEN_AMOUNT_LONG_OPTION).desc(
+                "Strength of the unsharp mask (1 doubles the details); default "
+                        + DEFAULT_SHARPEN_AMOUNT + ".").hasArg().argName("number").type(
+                                Double.class).build());
+
+        op.addOption(Option.builder().option(THREADS_SHORT_OPTION).longOpt(THREADS_LONG_OPTION).desc(
+                "Number of threads used to generate the lithophane; default is the number of available processors.").hasArg().argName(
+                        "number").type(Integer.class).build());
+
+        op.addOption(Option.builder().option(FORMAT_SHORT_OPTION).longOpt(FORMAT_LONG_OPTION).desc(
+                "Output file format: stl (binary), ply (binary, shared vertices), obj (text, shared vertices) or 3mf (zipped XML, shared vertices). Default is "
+                        + DEFAULT_FORMAT + ".").hasArg().argName("stl|ply|obj|3mf").build());
+
+        op.addOption(Option.builder().longOpt(COMPRESS_LONG_OPTION).desc(
+                "Compresses the output file with gzip, using all the threads; not available for 3mf, which is already compressed.").build());
+
+        op.addOption(Option.builder().longOpt(DECIMATION_TOLERANCE_LONG_OPTION).desc(
+                "Leave out points that can be interpolated within this distance, using fewer triangles in flat areas; 0 disables. Default is "
+                        + DEFAULT_DECIMATION_TOLERANCE + ".").hasArg().argName("mm").type(
+                                Double.class).build());
+
+        op.addOption(Option.builder().longOpt(TILED_DECODING_LONG_OPTION).desc(
+                "Decodes the image a strip of rows at a time into a temporary file instead of loading it in memory; for images too large for the heap.").build());
+
+        op.addOption(Option.builder().longOpt(MEMORY_BUDGET_LONG_OPTION).desc(
+                "Maximum heap used by a generation: the number of threads is reduced and tiled decoding enabled as needed to stay within it, estimating the memory from the image size; fails before starting if even a single thread does not fit. With --batch and --watch, it is shared equally between the jobs running at the same time.").hasArg().argName(
+                        "MB").type(Long.class).build());
+
+        op.addOption(Option.builder().longOpt(PIXELS_PER_MM_LONG_OPTION).desc(
+                "Downsamples the image so that there are at most this many pixels per millimeter around the cylinder; a printer cannot reproduce details much smaller than its nozzle. Default is no limit.").hasArg().argName(
+                        "number").type(Double.class).build());
+
+        op.addOption(Option.builder().longOpt(MAX_RESOLUTION_LONG_OPTION).desc(
+                "Downsamples the image so that it is at most this many pixels wide, keeping its proportions. Default is no limit.").hasArg().argName(
+                        "pixels").type(Integer.class).build());
+
+        op.addOption(Option.builder().longOpt(METRICS_OUT_LONG_OPTION).desc(
+                "Writes a JSON report with the time of each phase, the number of triangles, the bytes written and the peak heap.").hasArg().argName(
+                        "path").type(String.class).build());
+
+        op.addOption(Option.builder().longOpt(BATCH_LONG_OPTION).desc(
+                "Generates many lithophanes: a CSV manifest (header with option long names, one image per line), a JSON lines manifest (.jsonl, one object per line) or a directory of images. The other options are defaults for every job.").hasArg().argName(
+                        "path").type(String.class).build());
+
+        op.addOption(Option.builder().longOpt(JOBS_LONG_OPTION).desc(
+                "Number of lithophanes generated at the same time with --batch, --serve or --watch; default "
+                        + DEFAULT_JOBS + ".").hasArg().argName("number").type(
+                                Integer.class).build());
+
+        op.addOption(Option.builder().longOpt(SERVE_LONG_OPTION).desc(
+                "Runs an HTTP server on localhost: POST the image to " + GenerationServer.PATH
+                        + " with the other options as query parameters (for example ?diameter=80) and the model is streamed back. The other options are defaults for every request.").hasArg().argName(
+                                "port").type(Integer.class).build());
+
+        op.addOption(Option.builder().longOpt(WATCH_LONG_OPTION).desc(
+                "Watches a directory and generates a lithophane for each image created or modified in it, until stopped; images missing their lithophane are generated at start. Parameters can be set for an image by a JSON object in a file with the same name and extension .json. The output (-o) is the destination directory; the other options are defaults for every image.").hasArg().argName(
+                        "path").type(String.class).build());
+
+        op.addOption(Option.builder().longOpt(PREVIEW_LONG_OPTION).desc(
+                "Generates a quick preview from every Nth row and column of the image, with N chosen so that it is at most this many pixels wide (for example 200).").hasArg().argName(
+                        "pixels").type(Integer.class).build());
+
+        op.addOption(Option.builder().longOpt(PREVIEW_LEVELS_LONG_OPTION).desc(
+                "With --preview, writes up to this many previews doubling the width each time, named like the output with .lod0, .lod1... before the extension.").hasArg().argName(
+                        "number").type(Integer.class).build());
+
+        op.addOption(Option.builder().longOpt(SPLIT_ROWS_LONG_OPTION).desc(
+                "Splits the lithophane into this many parts stacked vertically, each closed at both ends and written to its own file, named like the output with .part1, .part2... before the extension; parts are generated concurrently.").hasArg().argName(
+                        "number").type(Integer.class).build());
+
+        op.addOption(Option.builder().longOpt(MAX_PART_HEIGHT_LONG_OPTION).desc(
+                "Splits the lithophane into the fewest parts not taller than this, in millimeters (see --split-rows).").hasArg().argName(
+                        "number").type(Double.class).build());
+
+        op.addOption(Option.builder().longOpt(VALIDATE_LONG_OPTION).desc(
+                "Reads back the written file and checks that its mesh is closed and consistently oriented (every edge shared by exactly two triangles in opposite directions, vertices matched by position) and reports the problems found; exits with an error if the mesh is not valid.").build());
+
+        op.addOption(Option.builder().longOpt(CACHE_DIR_LONG_OPTION).desc(
+                "Keeps the generated models in this directory and copies them instead of generating them again for the same image and parameters; the directory can be shared by several processes.").hasArg().argName(
+                        "path").type(String.class).build());
+
+        op.addOption(Option.builder().longOpt(CACHE_SIZE_LONG_OPTION).desc(
+                "Maximum size of the cache directory; the least recently used models are deleted. Default is "
+                        + DEFAULT_CACHE_SIZE + ".").hasArg().argName("MB").type(
+                                Long.class).build());
+
         try
         {
             if (args.length == 0)
@@ -157,34 +354,45 @@ public class Main
                 CommandLineParser parser = new DefaultParser();
                 CommandLine cmd = parser.parse(op, args);
 
-                File imagePath = new File(cmd.getOptionValue(IMAGE_LONG_OPTION));
-                File outputPath = new File(cmd.getOptionValue(OUTPUT_LONG_OPTION));
-                double diameter = Double.valueOf(
-                        cmd.getOptionValue(DIAMETER_LONG_OPTION, DEFAULT_DIAMETER));
-                double minThickness = Double.valueOf(
-                        cmd.getOptionValue(MIN_THICKNESS_LONG_OPTION, DEFAULT_MIN_THICKNESS));
-                double maxThickness = Double.valueOf(
-                        cmd.getOptionValue(MAX_THICKNESS_LONG_OPTION, DEFAULT_MAX_THICKNESS));
-                double topBorderThickness = Double.valueOf(cmd.getOptionValue(
-                        TOP_BORDER_THICKNESS_LONG_OPTION, DEFAULT_TOP_BORDER_THICKNESS));
-                double topBorderHeight = Double.valueOf(cmd.getOptionValue(
-                        TOP_BORDER_HEIGHT_LONG_OPTION, DEFAULT_TOP_BORDER_HEIGHT));
-                double topBorderTransition = Double.valueOf(cmd.getOptionValue(
-                        TOP_BORDER_TRANSITION_LONG_OPTION, DEFAULT_TOP_BORDER_TRANSITION));
-                double bottomBorderThickness = Double.valueOf(cmd.getOptionValue(
-                        BOTTOM_BORDER_THICKNESS_LONG_OPTION, DEFAULT_BOTTOM_BORDER_THICKNESS));
-                double bottomBorderHeight = Double.valueOf(cmd.getOptionValue(
-                        BOTTOM_BORDER_HEIGHT_LONG_OPTION, DEFAULT_BOTTOM_BORDER_HEIGHT));
-                double bottomBorderTransition = Double.valueOf(cmd.getOptionValue(
-                        BOTTOM_BORDER_TRANSITION_LONG_OPTION, DEFAULT_BOTTOM_BORDER_TRANSITION));
-                RoughFace roughFace = RoughFace.valueOf(cmd.getOptionValue(ROUGH_FACE_LONG_OPTION,
-                        DEFAULT_ROUGH_FACE).toUpperCase());
-
-                Lithophanizer lithophanizer = new Lithophanizer(imagePath, outputPath, diameter,
-                        minThickness, maxThickness, topBorderThickness, topBorderHeight,
-                        topBorderTransition, bottomBorderThickness, bottomBorderHeight,
-                        bottomBorderTransition, roughFace);
-                lithophanizer.generateLithophane();
+                if (cmd.hasOption(BATCH_LONG_OPTION))
+                {
+                    if (runBatch(op, cmd) > 0)
+                        System.exit(1);
+                }
+                else if (cmd.hasOption(SERVE_LONG_OPTION))
+                {
+                    runServer(op, cmd);
+                }
+                else if (cmd.hasOption(WATCH_LONG_OPTION))
+                {
+                    runWatch(op, cmd);
+                }
+                else
+                {
+                    List<String> missing = new ArrayList<>();
+                    if ( ! cmd.hasOption(IMAGE_LONG_OPTION))
+                        missing.add(IMAGE_SHORT_OPTION);
+                    if ( ! cmd.hasOption(OUTPUT_LONG_OPTION))
+                        missing.add(OUTPUT_SHORT_OPTION);
+                    if ( ! missing.isEmpty())
+                        throw new MissingOptionException(missing);
+
+                    Lithophanizer lithophanizer = createLithophanizer(
+                            name -> getCommandLineValue(cmd, name),
+                            String.valueOf(Runtime.getRuntime().availableProcessors()),
+                            createResultCache(cmd));
+                    if (cmd.hasOption(PREVIEW_LEVELS_LONG_OPTION))
+                        lithophanizer.generatePreviews(
+                                Integer.valueOf(cmd.getOptionValue(PREVIEW_LEVELS_LONG_OPTION)));
+                    else
+                        lithophanizer.generateLithophane();
+                    MeshValidator.Report report = lithophanizer.getValidationReport();
+                    if ((report != null) && ! report.isValid())
+                    {
+                        System.err.println("Invalid mesh: " + report);
+                        System.exit(1);
+                    }
+                }
             }
         }
         catch (ParseException | IllegalArgumentException simpleException)
@@ -196,4 +404,298 @@ public class Main
             e.printStackTrace();
         }
     }
+
+    /**
+     * Creates a lithophanizer from the option values.
+     * @param option returns the value of an option from its long name, or null if not set.
+     * @param defaultThreads default number of threads.
+     * @param resultCache cache of generated models, or null.
+     * @return configured lithophanizer.
+     */
+    private static Lithophanizer createLithophanizer(final Function<String, String> option,
+            final String defaultThreads, final ResultCache resultCache)
+    {
+        File imagePath = new File(getOptionValue(option, IMAGE_LONG_OPTION, null));
+        File outputPath = new File(getOptionValue(option, OUTPUT_LONG_OPTION, null));
+        double diameter = Double.valueOf(
+                getOptionValue(option, DIAMETER_LONG_OPTION, DEFAULT_DIAMETER));
+        double minThickness = Double.valueOf(
+                getOptionValue(option, MIN_THICKNESS_LONG_OPTION, DEFAULT_MIN_THICKNESS));
+        double maxThickness = Double.valueOf(
+                getOptionValue(option, MAX_THICKNESS_LONG_OPTION, DEFAULT_MAX_THICKNESS));
+        double topBorderThickness = Double.valueOf(getOptionValue(option,
+                TOP_BORDER_THICKNESS_LONG_OPTION, DEFAULT_TOP_BORDER_THICKNESS));
+        double topBorderHeight = Double.valueOf(getOptionValue(option,
+                TOP_BORDER_HEIGHT_LONG_OPTION, DEFAULT_TOP_BORDER_HEIGHT));
+        double topBorderTransition = Double.valueOf(getOptionValue(option,
+                TOP_BORDER_TRANSITION_LONG_OPTION, DEFAULT_TOP_BORDER_TRANSITION));
+        double bottomBorderThickness = Double.valueOf(getOptionValue(option,
+                BOTTOM_BORDER_THICKNESS_LONG_OPTION, DEFAULT_BOTTOM_BORDER_THICKNESS));
+        double bottomBorderHeight = Double.valueOf(getOptionValue(option,
+                BOTTOM_BORDER_HEIGHT_LONG_OPTION, DEFAULT_BOTTOM_BORDER_HEIGHT));
+        double bottomBorderTransition = Double.valueOf(getOptionValue(option,
+                BOTTOM_BORDER_TRANSITION_LONG_OPTION, DEFAULT_BOTTOM_BORDER_TRANSITION));
+        RoughFace roughFace = RoughFace.valueOf(getOptionValue(option, ROUGH_FACE_LONG_OPTION,
+                DEFAULT_ROUGH_FACE).toUpperCase());
+
+        Lithophanizer lithophanizer = new Lithophanizer(imagePath, outputPath, diameter,
+                minThickness, maxThickness, topBorderThickness, topBorderHeight,
+                topBorderTransition, bottomBorderThickness, bottomBorderHeight,
+                bottomBorderTransition, roughFace);
+        lithophanizer.setShape(Shape.valueOf(
+                getOptionValue(option, SHAPE_LONG_OPTION, DEFAULT_SHAPE).toUpperCase()));
+        lithophanizer.setArcAngle(Double.valueOf(getOptionValue(option, ARC_ANGLE_LONG_OPTION,
+                String.valueOf(Lithophanizer.DEFAULT_ARC_ANGLE))));
+        lithophanizer.setPanelWidth(
+                Double.valueOf(getOptionValue(option, PANEL_WIDTH_LONG_OPTION, "0")));
+        lithophanizer.setToneCurve(Double.valueOf(getOptionValue(option, GAMMA_LONG_OPTION, "1")),
+                Double.valueOf(getOptionValue(option, CONTRAST_LONG_OPTION, "1")));
+        lithophanizer.setBlurRadius(Double.valueOf(getOptionValue(option, BLUR_LONG_OPTION, "0")));
+        lithophanizer.setSharpening(
+                Double.valueOf(getOptionValue(option, SHARPEN_LONG_OPTION, "0")),
+                Double.valueOf(getOptionValue(option, SHARPEN_AMOUNT_LONG_OPTION,
+                        DEFAULT_SHARPEN_AMOUNT)));
+        lithophanizer.setThreads(
+                Integer.valueOf(getOptionValue(option, THREADS_LONG_OPTION, defaultThreads)));
+        lithophanizer.setFormat(MeshFormat.fromName(
+                getOptionValue(option, FORMAT_LONG_OPTION, DEFAULT_FORMAT)));
+        lithophanizer.setCompressed(Boolean.parseBoolean(
+                getOptionValue(option, COMPRESS_LONG_OPTION, "false")));
+        lithophanizer.setDecimationTolerance(Double.valueOf(getOptionValue(option,
+                DECIMATION_TOLERANCE_LONG_OPTION, DEFAULT_DECIMATION_TOLERANCE)));
+        lithophanizer.setPixelsPerMillimeter(
+                Double.valueOf(getOptionValue(option, PIXELS_PER_MM_LONG_OPTION, "0")));
+        lithophanizer.setMaxResolution(
+                Integer.valueOf(getOptionValue(option, MAX_RESOLUTION_LONG_OPTION, "0")));
+        String metricsOutput = option.apply(METRICS_OUT_LONG_OPTION);
+        if (metricsOutput != null)
+            lithophanizer.setMetricsOutput(new File(metricsOutput));
+        lithophanizer.setTiledDecoding(Boolean.parseBoolean(
+                getOptionValue(option, TILED_DECODING_LONG_OPTION, "false")));
+        lithophanizer.setMemoryBudget(
+                Long.valueOf(getOptionValue(option, MEMORY_BUDGET_LONG_OPTION, "0")) * 1024 * 1024);
+        lithophanizer.setPreviewWidth(
+                Integer.valueOf(getOptionValue(option, PREVIEW_LONG_OPTION, "0")));
+        lithophanizer.setPartCount(
+                Integer.valueOf(getOptionValue(option, SPLIT_ROWS_LONG_OPTION, "0")));
+        lithophanizer.setMaxPartHeight(
+                Double.valueOf(getOptionValue(option, MAX_PART_HEIGHT_LONG_OPTION, "0")));
+        lithophanizer.setValidation(Boolean.parseBoolean(
+                getOptionValue(option, VALIDATE_LONG_OPTION, "false")));
+        lithophanizer.setResultCache(resultCache);
+        return lithophanizer;
+    }
+
+    /**
+     * Creates the cache of generated models, shared by all the jobs.
+     * @param cmd command line.
+     * @return cache, or null if not requested.
+     * @throws IOException error creating the cache directory.
+     */
+    private static ResultCache createResultCache(final CommandLine cmd) throws IOException
+    {
+        if ( ! cmd.hasOption(CACHE_DIR_LONG_OPTION))
+            return null;
+        long size = Long.valueOf(cmd.getOptionValue(CACHE_SIZE_LONG_OPTION, DEFAULT_CACHE_SIZE));
+        return new ResultCache(new File(cmd.getOptionValue(CACHE_DIR_LONG_OPTION)),
+                size * 1024 * 1024);
+    }
+
+    /**
+     * Returns the value of an option.
+     * @param option returns the value of an option from its long name, or null if not set.
+     * @param name long name of the option.
+     * @param defaultValue value if the option is not set; if null, the option is required.
+     * @return option value.
+     */
+    private static String getOptionValue(final Function<String, String> option,
+            final String name, final String defaultValue)
+    {
+        String value = option.apply(name);
+        if (value != null)
+            return value;
+        if (defaultValue == null)
+            throw new IllegalArgumentException(String.format("Missing parameter \"%s\".", name));
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value of a command line option for one of the jobs running at the same time:
+     * the memory budget is shared equally between them.
+     * @param cmd command line.
+     * @param name long name of the option.
+     * @param jobs number of jobs running at the same time.
+     * @return option value, or null if not set.
+     */
+    private static String getJobValue(final CommandLine cmd, final String name, final int jobs)
+    {
+        String value = getCommandLineValue(cmd, name);
+        if ( ! MEMORY_BUDGET_LONG_OPTION.equals(name) || (value == null))
+            return value;
+        long budget = Long.valueOf(value);
+        // 0 is no limit: a budget too small to share stays too small
+        return String.valueOf(budget > 0 ? Math.max(1, budget / Math.max(1, jobs)) : budget);
+    }
+
+    /**
+     * Returns the value of a command line option; options without argument are "true" if set.
+     * @param cmd command line.
+     * @param name long name of the option.
+     * @return option value, or null if not set.
+     */
+    private static String getCommandLineValue(final CommandLine cmd, final String name)
+    {
+        if ( ! cmd.hasOption(name))
+            return null;
+        String value = cmd.getOptionValue(name);
+        return value != null ? value : Boolean.TRUE.toString();
+    }
+
+    /**
+     * Runs a batch of jobs from a manifest or a directory of images; the job parameters override
+     * the command line options.
+     * @param op all the options.
+     * @param cmd command line.
+     * @return number of failed jobs.
+     * @throws Exception error reading the jobs.
+     */
+    private static int runBatch(final Options op, final CommandLine cmd) throws Exception
+    {
+        File batch = new File(cmd.getOptionValue(BATCH_LONG_OPTION));
+        int jobs = Integer.valueOf(cmd.getOptionValue(JOBS_LONG_OPTION, DEFAULT_JOBS));
+        // share the processors between the jobs running at the same time
+        String defaultThreads = String.valueOf(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, jobs)));
+
+        List<Map<String, String>> parameters;
+        if (batch.isDirectory())
+        {
+            File outputDirectory = cmd.hasOption(OUTPUT_LONG_OPTION)
+                    ? new File(cmd.getOptionValue(OUTPUT_LONG_OPTION))
+                    : batch;
+            parameters = BatchRunner.listDirectory(batch, outputDirectory,
+                    getOutputExtension(cmd));
+        }
+        else if (batch.isFile())
+        {
+            parameters = BatchRunner.readManifest(batch);
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                    String.format("Batch path \"%s\" not found.", batch));
+        }
+
+        ResultCache resultCache = createResultCache(cmd);
+        return new BatchRunner(jobs).run(parameters, jobParameters -> {
+            checkJobParameters(op, jobParameters);
+            return createLithophanizer(name -> jobParameters.containsKey(name)
+                    ? jobParameters.get(name)
+                    : getJobValue(cmd, name, jobs), defaultThreads, resultCache);
+        });
+    }
+
+    /**
+     * Returns the extension of the output files of a directory of images.
+     * @param cmd command line.
+     * @return extension, without dot.
+     */
+    private static String getOutputExtension(final CommandLine cmd)
+    {
+        String extension = MeshFormat.fromName(
+                cmd.getOptionValue(FORMAT_LONG_OPTION, DEFAULT_FORMAT)).getExtension();
+        if (cmd.hasOption(COMPRESS_LONG_OPTION))
+            extension += ".gz";
+        return extension;
+    }
+
+    /**
+     * Watches a directory, generating its images as they change, until the JVM is stopped.
+     * @param op all the options.
+     * @param cmd command line.
+     * @throws Exception error watching the directory.
+     */
+    private static void runWatch(final Options op, final CommandLine cmd) throws Exception
+    {
+        File directory = new File(cmd.getOptionValue(WATCH_LONG_OPTION));
+        File outputDirectory = cmd.hasOption(OUTPUT_LONG_OPTION)
+                ? new File(cmd.getOptionValue(OUTPUT_LONG_OPTION))
+                : directory;
+        int jobs = Integer.valueOf(cmd.getOptionValue(JOBS_LONG_OPTION, DEFAULT_JOBS));
+        String defaultThreads = String.valueOf(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, jobs)));
+
+        ResultCache resultCache = createResultCache(cmd);
+        DirectoryWatcher watcher = new DirectoryWatcher(directory, outputDirectory,
+                getOutputExtension(cmd), jobs, jobParameters -> {
+                    checkJobParameters(op, jobParameters);
+                    return createLithophanizer(name -> jobParameters.containsKey(name)
+                            ? jobParameters.get(name)
+                            : getJobValue(cmd, name, jobs), defaultThreads, resultCache);
+                }, DEFAULT_WATCH_DELAY_MILLIS);
+        Runtime.getRuntime().addShutdownHook(new Thread(watcher::stop));
+        System.out.format("Watching %s%n", directory);
+        watcher.run();
+    }
+
+    /**
+     * Runs the HTTP server until the JVM is stopped; the request parameters override the command
+     * line options.
+     * @param op all the options.
+     * @param cmd command line.
+     * @throws Exception error starting the server.
+     */
+    private static void runServer(final Options op, final CommandLine cmd) throws Exception
+    {
+        int port = Integer.valueOf(cmd.getOptionValue(SERVE_LONG_OPTION));
+        int jobs = Integer.valueOf(cmd.getOptionValue(JOBS_LONG_OPTION, DEFAULT_JOBS));
+        String defaultThreads = String.valueOf(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, jobs)));
+
+        ResultCache resultCache = createResultCache(cmd);
+        GenerationServer server = new GenerationServer(port, jobs, requestParameters -> {
+            // requests must not write files on the server, and get a single model
+            checkJobParameters(op, requestParameters, METRICS_OUT_LONG_OPTION,
+                    VALIDATE_LONG_OPTION, SPLIT_ROWS_LONG_OPTION, MAX_PART_HEIGHT_LONG_OPTION);
+            return createLithophanizer(name -> requestParameters.containsKey(name)
+                    ? requestParameters.get(name)
+                    : getCommandLineValue(cmd, name), defaultThreads, resultCache);
+        });
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try
+            {
+                server.stop(1);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        System.out.format("Listening on http://localhost:%d%s%n", server.getPort(),
+                GenerationServer.PATH);
+    }
+
+    /**
+     * Checks that the parameters of a job are option long names that make sense for a single
+     * lithophane.
+     * @param op all the options.
+     * @param parameters job parameters.
+     * @param excluded other options not allowed.
+     */
+    private static void checkJobParameters(final Options op, final Map<String, String> parameters,
+            final String... excluded)
+    {
+        for (String name : parameters.keySet())
+        {
+            if ( ! op.hasLongOption(name) || BATCH_LONG_OPTION.equals(name)
+                    || JOBS_LONG_OPTION.equals(name) || SERVE_LONG_OPTION.equals(name)
+                    || WATCH_LONG_OPTION.equals(name)
+                    || CACHE_DIR_LONG_OPTION.equals(name) || CACHE_SIZE_LONG_OPTION.equals(name)
+                    || PREVIEW_LEVELS_LONG_OPTION.equals(name)
+                    || Arrays.asList(excluded).contains(name))
+                throw new IllegalArgumentException(
+                        String.format("Unknown parameter \"%s\".", name));
+        }
+    }
 }
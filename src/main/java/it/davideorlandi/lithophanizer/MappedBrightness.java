@@ -0,0 +1,202 @@
+package it.davideorlandi.lithophanizer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Brightness of an image decoded one strip of rows at a time and stored in a memory mapped
+ * temporary file, so that the heap used for image data depends on the strip height and not on
+ * the image size.
+ * <p>
+ * Each strip is decoded with a source region of the image reader; for formats that cannot skip to
+ * a region (such as PNG), the reader decodes the rows before the strip again for each strip, so
+ * decoding is slower than reading the whole image at once.
+ * </p>
+ */
+public final class MappedBrightness implements WritableBrightness
+{
+    /** Minimum heap size of a decoded strip, in bytes. */
+    private static final long MIN_STRIP_SIZE = 8L * 1024 * 1024;
+
+    /** Maximum heap size of a decoded strip, in bytes. */
+    private static final long MAX_STRIP_SIZE = 256L * 1024 * 1024;
+
+    /** Fraction of the maximum heap size used for a decoded strip. */
+    private static final int HEAP_FRACTION = 8;
+
+    /** Bytes per pixel assumed when sizing strips (16 bit RGBA). */
+    private static final int DECODED_PIXEL_SIZE = 8;
+
+    /** Maximum size of a mapped segment, in bytes. */
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final int width;
+
+    private final int height;
+
+    /** Number of rows of each segment. */
+    private final int segmentRows;
+
+    /** Brightness of the pixels, row by row from the top of the image, split in segments. */
+    private final ShortBuffer [] segments;
+
+    /**
+     * Constructor; all the pixels are black.
+     * @param width width in pixels.
+     * @param height height in pixels.
+     * @throws IOException error creating the temporary file.
+     */
+    private MappedBrightness(final int width, final int height) throws IOException
+    {
+        this.width = width;
+        this.height = height;
+        this.segmentRows = Math.max(1, SEGMENT_SIZE / (2 * width));
+        this.segments = new ShortBuffer [((height - 1) / segmentRows) + 1];
+
+        Path file = Files.createTempFile("lithophanizer", ".brightness");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                FileChannel channel = raf.getChannel())
+        {
+            for (int i = 0; i < segments.length; i++)
+            {
+                long firstRow = (long) i * segmentRows;
+                int rows = (int) Math.min(segmentRows, height - firstRow);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                        firstRow * width * 2, (long) rows * width * 2);
+                segments[i] = buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+            }
+        }
+        finally
+        {
+            // the mapping stays valid after the file is deleted, except on Windows
+            try
+            {
+                Files.delete(file);
+            }
+            catch (IOException e)
+            {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Decodes an image one strip at a time.
+     * @param imagePath image file.
+     * @return brightness of the image.
+     * @throws IOException error reading the image.
+     */
+    public static MappedBrightness decode(final File imagePath) throws IOException
+    {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(imagePath))
+        {
+            Iterator<ImageReader> readers = stream == null ? null
+                    : ImageIO.getImageReaders(stream);
+            if ((readers == null) || ! readers.hasNext())
+                throw new IllegalArgumentException(
+                        String.format("Image \"%s\" has an unsupported format.", imagePath));
+            ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(stream, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                MappedBrightness brightness = new MappedBrightness(width, height);
+
+                int stripHeight = (int) Math.max(1,
+                        Math.min(height, getStripSize() / ((long) width * DECODED_PIXEL_SIZE)));
+                ImageReadParam param = reader.getDefaultReadParam();
+                for (int y = 0; y < height; y += stripHeight)
+                {
+                    int rows = Math.min(stripHeight, height - y);
+                    param.setSourceRegion(new Rectangle(0, y, width, rows));
+                    BufferedImage strip = reader.read(0, param);
+                    brightness.setRows(y, BrightnessPlane.fromImage(strip));
+                }
+                return brightness;
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Creates an image whose pixels are all black.
+     * @param width width in pixels.
+     * @param height height in pixels.
+     * @return brightness of the image.
+     * @throws IOException error creating the temporary file.
+     */
+    public static MappedBrightness create(final int width, final int height) throws IOException
+    {
+        return new MappedBrightness(width, height);
+    }
+
+    /**
+     * Returns the heap size of a decoded strip; larger strips mean fewer passes over the rows that
+     * cannot be skipped.
+     * @return size in bytes.
+     */
+    static long getStripSize()
+    {
+        return Math.max(MIN_STRIP_SIZE,
+                Math.min(MAX_STRIP_SIZE, Runtime.getRuntime().maxMemory() / HEAP_FRACTION));
+    }
+
+    /**
+     * Copies a strip of rows.
+     * @param firstRow image row of the first row of the strip.
+     * @param strip brightness of the strip.
+     */
+    private void setRows(final int firstRow, final BrightnessPlane strip)
+    {
+        short [] row = new short [width];
+        for (int y = 0; y < strip.getHeight(); y++)
+        {
+            strip.getRow(y, row);
+            int imageRow = firstRow + y;
+            segments[imageRow / segmentRows].put((imageRow % segmentRows) * width, row);
+        }
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public int get(final int x, final int y)
+    {
+        return segments[y / segmentRows].get(((y % segmentRows) * width) + x) & 0xFFFF;
+    }
+
+    @Override
+    public void set(final int x, final int y, final int value)
+    {
+        segments[y / segmentRows].put(((y % segmentRows) * width) + x, (short) value);
+    }
+}
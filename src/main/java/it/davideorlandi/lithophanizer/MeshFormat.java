@@ -0,0 +1,72 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.Locale;
+
+/**
+ * Output file format.
+ */
+public enum MeshFormat
+{
+    /** Binary STL: every triangle has its own copy of its vertices. */
+    STL("stl", "model/stl"),
+
+    /** Binary little endian PLY: vertices are written once and referenced by index. */
+    PLY("ply", "application/octet-stream"),
+
+    /** Wavefront OBJ (text): vertices are written once and referenced by index. */
+    OBJ("obj", "model/obj"),
+
+    /** 3D Manufacturing Format: a zip container with an XML model with indexed vertices. */
+    THREE_MF("3mf", "model/3mf");
+
+    /** Name used on the command line and as file extension. */
+    private final String extension;
+
+    /** MIME type of the files. */
+    private final String mediaType;
+
+    /**
+     * Constructor.
+     * @param extension name used on the command line and as file extension.
+     * @param mediaType MIME type of the files.
+     */
+    MeshFormat(final String extension, final String mediaType)
+    {
+        this.extension = extension;
+        this.mediaType = mediaType;
+    }
+
+    /**
+     * Returns the usual file extension, also used as format name on the command line.
+     * @return extension, without dot.
+     */
+    public String getExtension()
+    {
+        return extension;
+    }
+
+    /**
+     * Returns the MIME type of the files.
+     * @return media type.
+     */
+    public String getMediaType()
+    {
+        return mediaType;
+    }
+
+    /**
+     * Returns the format with a name.
+     * @param name format name, as returned by {@link #getExtension()} (case insensitive).
+     * @return format.
+     */
+    public static MeshFormat fromName(final String name)
+    {
+        String lowerCaseName = name.toLowerCase(Locale.ROOT);
+        for (MeshFormat format : values())
+        {
+            if (format.extension.equals(lowerCaseName))
+                return format;
+        }
+        throw new IllegalArgumentException(String.format("Unknown format \"%s\".", name));
+    }
+}
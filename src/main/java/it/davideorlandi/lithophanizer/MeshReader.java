@@ -0,0 +1,499 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the triangles of a model file back into a {@link MeshValidator}, so that the file
+ * actually written is checked.
+ * <p>
+ * The files are read as written by {@link Stl}, {@link PlyWriter}, {@link ObjWriter} and
+ * {@link ThreeMfWriter}: binary STL, binary little endian PLY with float coordinates and int
+ * indices, OBJ with triangular faces, and 3MF with a single mesh. Indexed formats keep all the
+ * vertices in memory, 12 bytes each.
+ * </p>
+ */
+public final class MeshReader
+{
+    /** Size of the STL header before the number of triangles. */
+    private static final int STL_HEADER_SIZE = 80;
+
+    /** Number of triangles or vertices read at a time. */
+    private static final int ELEMENTS_PER_READ = 4096;
+
+    /** Size of a vertex in a PLY file. */
+    private static final int PLY_VERTEX_SIZE = 3 * Float.BYTES;
+
+    /** Size of a triangular face in a PLY file. */
+    private static final int PLY_FACE_SIZE = 1 + (3 * Integer.BYTES);
+
+    /** Header of the PLY files without comments, capturing the number of vertices and faces. */
+    private static final Pattern PLY_HEADER = Pattern.compile("ply\nformat binary_little_endian "
+            + "1\\.0\nelement vertex (\\d+)\nproperty float x\nproperty float y\n"
+            + "property float z\nelement face (\\d+)\nproperty list uchar int vertex_indices\n"
+            + "end_header\n");
+
+    /** End of the header of the PLY files. */
+    private static final String PLY_HEADER_END = "end_header\n";
+
+    /** Name of the model entry of a 3MF file. */
+    private static final String THREE_MF_MODEL = "3D/3dmodel.model";
+
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    /** Size of a zip local header before the entry name. */
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+
+    /** General purpose flag of a zip entry: sizes and CRC are in the data descriptor. */
+    private static final int ZIP_FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    private static final int ZIP_METHOD_STORED = 0;
+
+    private static final int ZIP_METHOD_DEFLATED = 8;
+
+    /** Size of the buffer of the decompressed 3MF model. */
+    private static final int INFLATER_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Private constructor: only static methods.
+     */
+    private MeshReader()
+    {
+        // no instances
+    }
+
+    /**
+     * Reads all the triangles of a model.
+     * @param stream model, uncompressed; it is read to the end but not closed.
+     * @param format format of the model.
+     * @param validator destination of the triangles.
+     * @throws IOException error reading the model, or model truncated or not readable.
+     */
+    public static void read(final InputStream stream, final MeshFormat format,
+            final MeshValidator validator) throws IOException
+    {
+        switch (format)
+        {
+            case STL:
+                readStl(stream, validator);
+                break;
+
+            case PLY:
+                readPly(stream, validator);
+                break;
+
+            case OBJ:
+                readObj(stream, validator);
+                break;
+
+            case THREE_MF:
+                readThreeMf(stream, validator);
+                break;
+
+            default:
+                throw new UnsupportedOperationException("format " + format + " is not supported");
+        }
+    }
+
+    /**
+     * Reads a binary STL model.
+     * @param stream model.
+     * @param validator destination of the triangles.
+     * @throws IOException error reading the model, or model truncated.
+     */
+    private static void readStl(final InputStream stream, final MeshValidator validator)
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.wrap(readFully(stream, STL_HEADER_SIZE + Integer.BYTES))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        long count = Integer.toUnsignedLong(header.getInt(STL_HEADER_SIZE));
+        ByteBuffer buffer = ByteBuffer.allocate(ELEMENTS_PER_READ * Triangle.BINARY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        long read = 0;
+        while (read < count)
+        {
+            int batch = (int) Math.min(ELEMENTS_PER_READ, count - read);
+            int length = batch * Triangle.BINARY_SIZE;
+            if (stream.readNBytes(buffer.array(), 0, length) < length)
+                throw new IOException(String.format(Locale.US,
+                        "STL file truncated: %d triangles declared, fewer written", count));
+            for (int i = 0; i < batch; i++)
+            {
+                // skip the normal, recalculated from the vertices
+                int offset = (i * Triangle.BINARY_SIZE) + (3 * Float.BYTES);
+                validator.addTriangle(buffer.getFloat(offset), buffer.getFloat(offset + 4),
+                        buffer.getFloat(offset + 8), buffer.getFloat(offset + 12),
+                        buffer.getFloat(offset + 16), buffer.getFloat(offset + 20),
+                        buffer.getFloat(offset + 24), buffer.getFloat(offset + 28),
+                        buffer.getFloat(offset + 32));
+            }
+            read += batch;
+        }
+        checkEnd(stream, "STL");
+    }
+
+    /**
+     * Reads a binary little endian PLY model.
+     * @param stream model.
+     * @param validator destination of the triangles.
+     * @throws IOException error reading the model, or model truncated or with other properties.
+     */
+    private static void readPly(final InputStream stream, final MeshValidator validator)
+            throws IOException
+    {
+        StringBuilder header = new StringBuilder();
+        while ((header.length() < PLY_HEADER_END.length()) || ! PLY_HEADER_END.equals(
+                header.substring(header.length() - PLY_HEADER_END.length())))
+        {
+            int c = stream.read();
+            if (c < 0)
+                throw new EOFException("PLY header truncated");
+            header.append((char) c);
+        }
+        Matcher matcher = PLY_HEADER.matcher(header.toString().replaceAll("(?m)^comment .*\n",
+                ""));
+        if ( ! matcher.matches())
+            throw new IOException("Unsupported PLY header: " + header);
+        long vertexCount = Long.parseLong(matcher.group(1));
+        long faceCount = Long.parseLong(matcher.group(2));
+
+        Vertices vertices = new Vertices(vertexCount);
+        ByteBuffer buffer = ByteBuffer.allocate(ELEMENTS_PER_READ * PLY_FACE_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int verticesPerRead = buffer.capacity() / PLY_VERTEX_SIZE;
+        for (long read = 0; read < vertexCount; read += verticesPerRead)
+        {
+            int batch = (int) Math.min(verticesPerRead, vertexCount - read);
+            buffer.clear().limit(batch * PLY_VERTEX_SIZE);
+            readFully(stream, buffer, "PLY");
+            for (int i = 0; i < batch; i++)
+            {
+                vertices.add(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            }
+        }
+        for (long read = 0; read < faceCount; read += ELEMENTS_PER_READ)
+        {
+            int batch = (int) Math.min(ELEMENTS_PER_READ, faceCount - read);
+            buffer.clear().limit(batch * PLY_FACE_SIZE);
+            readFully(stream, buffer, "PLY");
+            for (int i = 0; i < batch; i++)
+            {
+                if (buffer.get() != 3)
+                    throw new IOException("PLY face " + (read + i) + " is not a triangle");
+                vertices.addTriangle(validator, buffer.getInt(), buffer.getInt(),
+                        buffer.getInt());
+            }
+        }
+        checkEnd(stream, "PLY");
+    }
+
+    /**
+     * Reads an OBJ model; lines other than vertices and faces are ignored.
+     * @param stream model.
+     * @param validator destination of the triangles.
+     * @throws IOException error reading the model, or faces that are not triangles.
+     */
+    private static void readObj(final InputStream stream, final MeshValidator validator)
+            throws IOException
+    {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(stream, StandardCharsets.US_ASCII));
+        Vertices vertices = new Vertices(0);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+            String [] words = line.trim().split(" ");
+            try
+            {
+                if ("v".equals(words[0]))
+                {
+                    vertices.add(Float.parseFloat(words[1]), Float.parseFloat(words[2]),
+                            Float.parseFloat(words[3]));
+                }
+                else if ("f".equals(words[0]))
+                {
+                    if (words.length != 4)
+                        throw new IOException(
+                                "OBJ face at line " + lineNumber + " is not a triangle");
+                    // indices start from 1, optionally followed by texture and normal indices
+                    vertices.addTriangle(validator, getObjIndex(words[1]),
+                            getObjIndex(words[2]), getObjIndex(words[3]));
+                }
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+            {
+                throw new IOException("Invalid OBJ line " + lineNumber + ": " + line);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of a vertex of an OBJ face.
+     * @param reference vertex reference, with optional texture and normal indices.
+     * @return index from 0.
+     */
+    private static int getObjIndex(final String reference)
+    {
+        int slash = reference.indexOf('/');
+        return Integer.parseInt(slash < 0 ? reference : reference.substring(0, slash)) - 1;
+    }
+
+    /**
+     * Reads the mesh of a 3MF model.
+     * <p>
+     * The zip entries are read from their local headers up to the model, which must be the first
+     * entry whose size is not known in advance: {@link java.util.zip.ZipInputStream} expects
+     * 32 bit sizes in the data descriptor of entries smaller than 4 GB, while those written with a
+     * Zip64 local header have 64 bit sizes.
+     * </p>
+     * @param stream model.
+     * @param validator destination of the triangles.
+     * @throws IOException error reading the model, or model without a mesh.
+     */
+    private static void readThreeMf(final InputStream stream, final MeshValidator validator)
+            throws IOException
+    {
+        while (true)
+        {
+            ByteBuffer header = ByteBuffer.wrap(stream.readNBytes(ZIP_LOCAL_HEADER_SIZE))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if ((header.capacity() < ZIP_LOCAL_HEADER_SIZE)
+                    || (header.getInt(0) != ZIP_LOCAL_HEADER_SIGNATURE))
+                throw new IOException("3MF file without " + THREE_MF_MODEL);
+            int flags = Short.toUnsignedInt(header.getShort(6));
+            int method = Short.toUnsignedInt(header.getShort(8));
+            long compressedSize = Integer.toUnsignedLong(header.getInt(18));
+            String name = new String(readFully(stream, Short.toUnsignedInt(header.getShort(26))),
+                    StandardCharsets.UTF_8);
+            stream.skipNBytes(Short.toUnsignedInt(header.getShort(28)));
+
+            if (THREE_MF_MODEL.equals(name) && (method == ZIP_METHOD_DEFLATED))
+            {
+                Inflater inflater = new Inflater(true);
+                try
+                {
+                    readThreeMfModel(new InflaterInputStream(stream, inflater,
+                            INFLATER_BUFFER_SIZE), validator);
+                }
+                finally
+                {
+                    inflater.end();
+                }
+                return;
+            }
+            if (THREE_MF_MODEL.equals(name) && (method == ZIP_METHOD_STORED)
+                    && ((flags & ZIP_FLAG_DATA_DESCRIPTOR) == 0))
+            {
+                readThreeMfModel(stream, validator);
+                return;
+            }
+            if (THREE_MF_MODEL.equals(name) || ((flags & ZIP_FLAG_DATA_DESCRIPTOR) != 0))
+                throw new IOException("Unsupported 3MF entry " + name);
+            stream.skipNBytes(compressedSize);
+        }
+    }
+
+    /**
+     * Reads the vertices and triangles of a 3MF model entry.
+     * @param stream model entry.
+     * @param validator destination of the triangles.
+     * @throws IOException error reading the model, or invalid XML.
+     */
+    private static void readThreeMfModel(final InputStream stream,
+            final MeshValidator validator) throws IOException
+    {
+        Vertices vertices = new Vertices(0);
+        try
+        {
+            XMLInputFactory factory = XMLInputFactory.newFactory();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            while (reader.hasNext())
+            {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                switch (reader.getLocalName())
+                {
+                    case "vertex":
+                        vertices.add(Float.parseFloat(getAttribute(reader, "x")),
+                                Float.parseFloat(getAttribute(reader, "y")),
+                                Float.parseFloat(getAttribute(reader, "z")));
+                        break;
+
+                    case "triangle":
+                        vertices.addTriangle(validator,
+                                Integer.parseInt(getAttribute(reader, "v1")),
+                                Integer.parseInt(getAttribute(reader, "v2")),
+                                Integer.parseInt(getAttribute(reader, "v3")));
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+            reader.close();
+        }
+        catch (XMLStreamException | NumberFormatException e)
+        {
+            throw new IOException("Invalid 3MF model: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns a required attribute of the current element of a 3MF model.
+     * @param reader reader, on a start element.
+     * @param name attribute name.
+     * @return attribute value.
+     * @throws IOException if the attribute is missing.
+     */
+    private static String getAttribute(final XMLStreamReader reader, final String name)
+            throws IOException
+    {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null)
+            throw new IOException(String.format("3MF %s without attribute %s",
+                    reader.getLocalName(), name));
+        return value;
+    }
+
+    /**
+     * Reads a number of bytes.
+     * @param stream source.
+     * @param length number of bytes.
+     * @return bytes read.
+     * @throws EOFException if the stream ends first.
+     * @throws IOException error reading the stream.
+     */
+    private static byte [] readFully(final InputStream stream, final int length)
+            throws IOException
+    {
+        byte [] bytes = stream.readNBytes(length);
+        if (bytes.length < length)
+            throw new EOFException("Model file truncated");
+        return bytes;
+    }
+
+    /**
+     * Fills a buffer from its position to its limit, then flips it.
+     * @param stream source.
+     * @param buffer destination, backed by an array.
+     * @param format name of the format, for error messages.
+     * @throws IOException error reading the stream, or stream ending first.
+     */
+    private static void readFully(final InputStream stream, final ByteBuffer buffer,
+            final String format) throws IOException
+    {
+        int length = buffer.remaining();
+        if (stream.readNBytes(buffer.array(), buffer.position(), length) < length)
+            throw new EOFException(format + " file truncated");
+        buffer.position(buffer.limit()).flip();
+    }
+
+    /**
+     * Checks that nothing follows the model.
+     * @param stream source.
+     * @param format name of the format, for error messages.
+     * @throws IOException error reading the stream, or data after the model.
+     */
+    private static void checkEnd(final InputStream stream, final String format)
+            throws IOException
+    {
+        if (stream.read() >= 0)
+            throw new IOException(format + " file longer than its declared triangles");
+    }
+
+    /**
+     * Vertices of an indexed model.
+     */
+    private static final class Vertices
+    {
+        /** X, Y and Z of each vertex. */
+        private float [] coordinates;
+
+        private int count;
+
+        /**
+         * Constructor.
+         * @param expected number of vertices expected (0 if unknown).
+         * @throws IOException if the vertices cannot be held in an array.
+         */
+        Vertices(final long expected) throws IOException
+        {
+            if (expected > (Integer.MAX_VALUE / 3))
+                throw new IOException("Too many vertices to validate: " + expected);
+            this.coordinates = new float [Math.max(3 * 1024, 3 * (int) expected)];
+        }
+
+        /**
+         * Adds a vertex.
+         * @param x X coordinate.
+         * @param y Y coordinate.
+         * @param z Z coordinate.
+         * @throws IOException if the vertices cannot be held in an array.
+         */
+        void add(final float x, final float y, final float z) throws IOException
+        {
+            if ((3 * count) == coordinates.length)
+            {
+                if (count >= (Integer.MAX_VALUE / 6))
+                    throw new IOException("Too many vertices to validate");
+                coordinates = Arrays.copyOf(coordinates, 2 * coordinates.length);
+            }
+            coordinates[3 * count] = x;
+            coordinates[(3 * count) + 1] = y;
+            coordinates[(3 * count) + 2] = z;
+            count++;
+        }
+
+        /**
+         * Passes a triangle to a validator.
+         * @param validator validator.
+         * @param v1 index of the first vertex.
+         * @param v2 index of the second vertex.
+         * @param v3 index of the third vertex.
+         * @throws IOException if an index is not that of a vertex read.
+         */
+        void addTriangle(final MeshValidator validator, final int v1, final int v2, final int v3)
+                throws IOException
+        {
+            checkIndex(v1);
+            checkIndex(v2);
+            checkIndex(v3);
+            validator.addTriangle(coordinates[3 * v1], coordinates[(3 * v1) + 1],
+                    coordinates[(3 * v1) + 2], coordinates[3 * v2], coordinates[(3 * v2) + 1],
+                    coordinates[(3 * v2) + 2], coordinates[3 * v3], coordinates[(3 * v3) + 1],
+                    coordinates[(3 * v3) + 2]);
+        }
+
+        /**
+         * Checks a vertex index.
+         * @param index index.
+         * @throws IOException if the index is not that of a vertex read.
+         */
+        private void checkIndex(final int index) throws IOException
+        {
+            if ((index < 0) || (index >= count))
+                throw new IOException(String.format(Locale.US,
+                        "Vertex %d referenced, but only %d vertices read", index, count));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+
+/**
+ * Destination of the triangles of a model.
+ */
+public interface MeshSink
+{
+    /**
+     * Adds a triangle, referencing its vertices by index in their perimeters.
+     * <p>
+     * Vertices are in counter-clockwise order, seen from outside the model.
+     * </p>
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
+     * @throws IOException error while writing.
+     */
+    void addTriangle(Perimeter p1, int i1, Perimeter p2, int i2, Perimeter p3, int i3)
+            throws IOException;
+
+    /**
+     * Adds a triangle whose normal is already known, referencing its vertices by index in their
+     * perimeters; formats without normals ignore it.
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
+     * @param nx normal X.
+     * @param ny normal Y.
+     * @param nz normal Z.
+     * @throws IOException error while writing.
+     */
+    default void addTriangle(final Perimeter p1, final int i1, final Perimeter p2, final int i2,
+            final Perimeter p3, final int i3, final float nx, final float ny, final float nz)
+            throws IOException
+    {
+        addTriangle(p1, i1, p2, i2, p3, i3);
+    }
+}
@@ -0,0 +1,334 @@
+package it.davideorlandi.lithophanizer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Checks that a mesh is closed and consistently oriented: every edge must be shared by exactly
+ * two triangles, which traverse it in opposite directions, and no triangle may have zero area.
+ * <p>
+ * Vertices are identified by their position, rounded to a micrometer, as a slicer merging the
+ * vertices of an STL file would do; the triangles are usually read from the written model (see
+ * {@link MeshReader}). Edges are counted in an open addressing hash table of primitive arrays,
+ * keyed on the positions of the two vertices. When the table fills up, the edges already used by
+ * two opposite triangles are counted and dropped: a mesh written layer by layer only keeps a few
+ * layers of edges in the table, however large it is. An edge used again after being dropped is
+ * reported as open.
+ * </p>
+ */
+public final class MeshValidator
+{
+    /** Initial capacity of the edge table. */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /** Number of quantization steps in a millimeter. */
+    private static final double STEPS_PER_MILLIMETER = 1000.0;
+
+    /** Bits of each quantized coordinate in a vertex key. */
+    private static final int COORDINATE_BITS = 21;
+
+    /** Offset making the quantized coordinates positive. */
+    private static final long COORDINATE_OFFSET = 1L << (COORDINATE_BITS - 1);
+
+    /** Key of an empty slot. */
+    private static final long EMPTY = -1L;
+
+    /** Maximum count of each direction of an edge. */
+    private static final int MAX_COUNT = 0xFFFF;
+
+    /** Count of an edge used once in each direction. */
+    private static final int COMPLETE = 1 | (1 << 16);
+
+    /**
+     * Minimum squared double area of a triangle, in square millimeters: smaller triangles are
+     * considered degenerate.
+     */
+    private static final double MIN_AREA_SQUARED = 1e-16;
+
+    /** Edges: key of the lowest vertex. */
+    private long [] keys = filledKeys(INITIAL_CAPACITY);
+
+    /** Edges: key of the highest vertex. */
+    private long [] otherKeys = new long [INITIAL_CAPACITY];
+
+    /** Index of the first triangle using each edge. */
+    private long [] firstTriangles = new long [INITIAL_CAPACITY];
+
+    /**
+     * Number of triangles traversing each edge from the lowest to the highest vertex (low 16
+     * bits) and from the highest to the lowest (high 16 bits).
+     */
+    private int [] counts = new int [INITIAL_CAPACITY];
+
+    /** Number of edges in the table. */
+    private int size;
+
+    /** Number of correct edges dropped from the table. */
+    private long completeEdges;
+
+    private long triangles;
+
+    private long degenerateTriangles;
+
+    /** Index of the first degenerate triangle, or -1. */
+    private long firstDegenerateTriangle = -1;
+
+    /**
+     * Adds a triangle, with its vertices in counterclockwise order seen from outside.
+     * @param x1 X of the first vertex.
+     * @param y1 Y of the first vertex.
+     * @param z1 Z of the first vertex.
+     * @param x2 X of the second vertex.
+     * @param y2 Y of the second vertex.
+     * @param z2 Z of the second vertex.
+     * @param x3 X of the third vertex.
+     * @param y3 Y of the third vertex.
+     * @param z3 Z of the third vertex.
+     * @throws IllegalArgumentException if a vertex is more than a meter away from the origin.
+     */
+    public void addTriangle(final float x1, final float y1, final float z1, final float x2,
+            final float y2, final float z2, final float x3, final float y3, final float z3)
+    {
+        long triangle = triangles++;
+        long v1 = getVertexKey(x1, y1, z1);
+        long v2 = getVertexKey(x2, y2, z2);
+        long v3 = getVertexKey(x3, y3, z3);
+
+        double ux = (double) x2 - x1;
+        double uy = (double) y2 - y1;
+        double uz = (double) z2 - z1;
+        double vx = (double) x3 - x1;
+        double vy = (double) y3 - y1;
+        double vz = (double) z3 - z1;
+        double nx = (uy * vz) - (uz * vy);
+        double ny = (uz * vx) - (ux * vz);
+        double nz = (ux * vy) - (uy * vx);
+        if ((v1 == v2) || (v2 == v3) || (v3 == v1)
+                || (((nx * nx) + (ny * ny) + (nz * nz)) < MIN_AREA_SQUARED))
+        {
+            degenerateTriangles++;
+            if (firstDegenerateTriangle < 0)
+                firstDegenerateTriangle = triangle;
+        }
+
+        addEdge(v1, v2, triangle);
+        addEdge(v2, v3, triangle);
+        addEdge(v3, v1, triangle);
+    }
+
+    /**
+     * Checks the edges of the triangles added so far.
+     * @return result of the check.
+     */
+    public Report getReport()
+    {
+        long openEdges = 0;
+        long flippedEdges = 0;
+        long nonManifoldEdges = 0;
+        long complete = completeEdges;
+        long firstEdgeTriangle = -1;
+        for (int slot = 0; slot < keys.length; slot++)
+        {
+            if (keys[slot] == EMPTY)
+                continue;
+            int forward = counts[slot] & MAX_COUNT;
+            int backward = counts[slot] >>> 16;
+            if (counts[slot] == COMPLETE)
+            {
+                complete++;
+                continue;
+            }
+            if ((forward + backward) == 1)
+                openEdges++;
+            else if ((forward + backward) == 2)
+                flippedEdges++;
+            else
+                nonManifoldEdges++;
+            if ((firstEdgeTriangle < 0) || (firstTriangles[slot] < firstEdgeTriangle))
+                firstEdgeTriangle = firstTriangles[slot];
+        }
+        long firstProblemTriangle = firstDegenerateTriangle;
+        if ((firstProblemTriangle < 0)
+                || ((firstEdgeTriangle >= 0) && (firstEdgeTriangle < firstProblemTriangle)))
+            firstProblemTriangle = firstEdgeTriangle;
+        return new Report(triangles, complete + openEdges + flippedEdges + nonManifoldEdges,
+                openEdges, flippedEdges, nonManifoldEdges, degenerateTriangles,
+                firstProblemTriangle);
+    }
+
+    /**
+     * Returns the key of a vertex: its coordinates rounded to a micrometer, packed in a long.
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @param z Z coordinate.
+     * @return key, never negative.
+     */
+    private static long getVertexKey(final float x, final float y, final float z)
+    {
+        return (quantize(x) << (2 * COORDINATE_BITS)) | (quantize(y) << COORDINATE_BITS)
+                | quantize(z);
+    }
+
+    /**
+     * Rounds a coordinate to a micrometer.
+     * @param coordinate coordinate, in millimeters.
+     * @return number of micrometers, plus {@link #COORDINATE_OFFSET}.
+     * @throws IllegalArgumentException if the coordinate does not fit in a vertex key.
+     */
+    private static long quantize(final float coordinate)
+    {
+        long steps = Math.round(coordinate * STEPS_PER_MILLIMETER) + COORDINATE_OFFSET;
+        if ((steps < 0) || (steps >= (2 * COORDINATE_OFFSET)))
+            throw new IllegalArgumentException(
+                    String.format(Locale.US, "Coordinate %f mm too large to validate", coordinate));
+        return steps;
+    }
+
+    /**
+     * Counts a directed edge.
+     * @param from key of the start vertex.
+     * @param to key of the end vertex.
+     * @param triangle index of the triangle.
+     */
+    private void addEdge(final long from, final long to, final long triangle)
+    {
+        if (from == to)
+            return;
+        long key = Math.min(from, to);
+        long otherKey = Math.max(from, to);
+        int shift = from < to ? 0 : 16;
+        int mask = keys.length - 1;
+        int slot = hash(key, otherKey) & mask;
+        while (true)
+        {
+            long current = keys[slot];
+            if ((current == key) && (otherKeys[slot] == otherKey))
+                break;
+            if (current == EMPTY)
+            {
+                keys[slot] = key;
+                otherKeys[slot] = otherKey;
+                firstTriangles[slot] = triangle;
+                size++;
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int count = (counts[slot] >>> shift) & MAX_COUNT;
+        if (count < MAX_COUNT)
+            counts[slot] += 1 << shift;
+        if ((4L * size) > (3L * keys.length))
+            compact();
+    }
+
+    /**
+     * Drops the complete edges from the table, doubling its capacity if it is still more than
+     * half full.
+     */
+    private void compact()
+    {
+        long [] oldKeys = keys;
+        long [] oldOtherKeys = otherKeys;
+        long [] oldFirstTriangles = firstTriangles;
+        int [] oldCounts = counts;
+        int incomplete = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++)
+        {
+            if ((oldKeys[slot] != EMPTY) && (oldCounts[slot] != COMPLETE))
+                incomplete++;
+        }
+        int capacity = oldKeys.length;
+        if ((2L * incomplete) > capacity)
+        {
+            if (capacity >= (1 << 30))
+                throw new IllegalArgumentException("Mesh too big to validate");
+            capacity *= 2;
+        }
+
+        keys = filledKeys(capacity);
+        otherKeys = new long [capacity];
+        firstTriangles = new long [capacity];
+        counts = new int [capacity];
+        size = incomplete;
+        int mask = capacity - 1;
+        for (int old = 0; old < oldKeys.length; old++)
+        {
+            long key = oldKeys[old];
+            if (key == EMPTY)
+                continue;
+            if (oldCounts[old] == COMPLETE)
+            {
+                completeEdges++;
+                continue;
+            }
+            int slot = hash(key, oldOtherKeys[old]) & mask;
+            while (keys[slot] != EMPTY)
+            {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            otherKeys[slot] = oldOtherKeys[old];
+            firstTriangles[slot] = oldFirstTriangles[old];
+            counts[slot] = oldCounts[old];
+        }
+    }
+
+    /**
+     * Mixes the bits of the vertex keys of an edge, so that nearby edges spread over the table.
+     * @param key key of the lowest vertex.
+     * @param otherKey key of the highest vertex.
+     * @return hash.
+     */
+    private static int hash(final long key, final long otherKey)
+    {
+        long h = ((key * 0x9E3779B97F4A7C15L) + otherKey) * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Creates an empty key table.
+     * @param size number of slots.
+     * @return keys.
+     */
+    private static long [] filledKeys(final int size)
+    {
+        long [] array = new long [size];
+        Arrays.fill(array, EMPTY);
+        return array;
+    }
+
+    /**
+     * Result of the check.
+     * @param triangles number of triangles.
+     * @param edges number of distinct edges.
+     * @param openEdges edges used by a single triangle (holes).
+     * @param flippedEdges edges used by two triangles in the same direction (one of them faces
+     *        the wrong way).
+     * @param nonManifoldEdges edges used by more than two triangles.
+     * @param degenerateTriangles triangles with zero area.
+     * @param firstProblemTriangle index of the first triangle with a problem, or -1.
+     */
+    public record Report(long triangles, long edges, long openEdges, long flippedEdges,
+            long nonManifoldEdges, long degenerateTriangles, long firstProblemTriangle)
+    {
+        /**
+         * Tells whether the mesh is closed and consistently oriented.
+         * @return true if there are no problems.
+         */
+        public boolean isValid()
+        {
+            return firstProblemTriangle < 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            String summary = String.format(Locale.US,
+                    "%d triangles, %d edges: %d open edges, %d flipped edges, "
+                            + "%d non-manifold edges, %d degenerate triangles",
+                    triangles, edges, openEdges, flippedEdges, nonManifoldEdges,
+                    degenerateTriangles);
+            return isValid() ? summary : summary + "; first at triangle " + firstProblemTriangle;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that records the bytes written and the time spent writing them.
+ */
+final class MeteredOutputStream extends FilterOutputStream
+{
+    private final GenerationMetrics metrics;
+
+    /**
+     * Constructor.
+     * @param out destination stream.
+     * @param metrics metrics receiving the writes.
+     */
+    MeteredOutputStream(final OutputStream out, final GenerationMetrics metrics)
+    {
+        super(out);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        long start = System.nanoTime();
+        out.write(b);
+        metrics.addWrite(1, System.nanoTime() - start);
+    }
+
+    @Override
+    public void write(final byte [] b, final int off, final int len) throws IOException
+    {
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        metrics.addWrite(len, System.nanoTime() - start);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        long start = System.nanoTime();
+        out.flush();
+        metrics.addWrite(0, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,68 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer of Wavefront OBJ files.
+ */
+public class ObjWriter extends IndexedMeshWriter
+{
+    /** Size of the output buffer, in characters. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Destination. */
+    private final Writer writer;
+
+    /**
+     * Constructor; writes the model name as a comment immediately.
+     * @param stream destination stream; it is flushed but not closed.
+     * @param name model name.
+     * @param vertexCount number of vertices that will be written.
+     * @param faceCount number of faces that will be written.
+     * @throws IOException error while writing.
+     */
+    public ObjWriter(final OutputStream stream, final String name, final long vertexCount,
+            final long faceCount) throws IOException
+    {
+        super(vertexCount, faceCount);
+        this.writer = new BufferedWriter(
+                new OutputStreamWriter(stream, StandardCharsets.US_ASCII), BUFFER_SIZE);
+        writer.write("# " + name.replaceAll("[\\r\\n]", " ") + "\n");
+    }
+
+    @Override
+    protected void writeVertex(final float x, final float y, final float z) throws IOException
+    {
+        writer.write("v ");
+        writer.write(Float.toString(x));
+        writer.write(' ');
+        writer.write(Float.toString(y));
+        writer.write(' ');
+        writer.write(Float.toString(z));
+        writer.write('\n');
+    }
+
+    @Override
+    protected void writeFace(final int v1, final int v2, final int v3) throws IOException
+    {
+        // OBJ indices start from 1
+        writer.write("f ");
+        writer.write(Integer.toString(v1 + 1));
+        writer.write(' ');
+        writer.write(Integer.toString(v2 + 1));
+        writer.write(' ');
+        writer.write(Integer.toString(v3 + 1));
+        writer.write('\n');
+    }
+
+    @Override
+    protected void flush() throws IOException
+    {
+        writer.flush();
+    }
+}
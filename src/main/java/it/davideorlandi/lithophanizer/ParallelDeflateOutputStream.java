@@ -0,0 +1,307 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that compresses data in raw deflate format on several threads.
+ * <p>
+ * Data is split in blocks compressed independently, each with the last 32 KB of the previous
+ * block as dictionary so that the compression ratio is almost the same as a single stream. Every
+ * block but the last ends with a sync flush, so that the compressed blocks can simply be
+ * concatenated in order into a single valid deflate stream.
+ * </p>
+ * <p>
+ * The compressed data is written to the destination only by the thread writing to this stream;
+ * {@link #finish()} must be called to write the last block, and {@link #shutdown()} to release the
+ * threads if an error prevents it.
+ * </p>
+ */
+public class ParallelDeflateOutputStream extends OutputStream
+{
+    /** Size of the uncompressed blocks. */
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    /** Size of the dictionary passed from a block to the next one. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** Number of blocks queued for each thread, to keep all of them busy. */
+    private static final int BLOCKS_PER_THREAD = 2;
+
+    /** Size of the output buffer of the compression of a block. */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /** Destination of the compressed data. */
+    protected final OutputStream out;
+
+    private final int level;
+
+    private final int maxQueuedBlocks;
+
+    private final ExecutorService executor;
+
+    private final Deque<Future<byte []>> queue = new ArrayDeque<>();
+
+    private final CRC32 crc = new CRC32();
+
+    /** Block being filled. */
+    private byte [] block = new byte [BLOCK_SIZE];
+
+    private int blockLength;
+
+    /** Last bytes of the previous block, null for the first block. */
+    private byte [] dictionary;
+
+    private long uncompressedSize;
+
+    private long compressedSize;
+
+    private boolean finished;
+
+    /**
+     * Constructor.
+     * @param out destination of the compressed data; it is not closed by {@link #finish()}.
+     * @param threads number of compression threads.
+     * @param level compression level (0-9, or {@link Deflater#DEFAULT_COMPRESSION}).
+     */
+    public ParallelDeflateOutputStream(final OutputStream out, final int threads,
+            final int level)
+    {
+        this.out = out;
+        this.level = level;
+        this.maxQueuedBlocks = Math.max(1, threads) * BLOCKS_PER_THREAD;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "deflate");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        write(new byte [] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte [] b, final int off, final int len) throws IOException
+    {
+        if (finished)
+            throw new IOException("Stream already finished");
+        crc.update(b, off, len);
+        uncompressedSize += len;
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0)
+        {
+            int count = Math.min(remaining, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            remaining -= count;
+            if (blockLength == BLOCK_SIZE)
+                submitBlock(false);
+        }
+    }
+
+    /**
+     * Flushes the destination stream; data still in the current block is only compressed when
+     * the block is full or the stream is finished.
+     * @throws IOException error writing the data.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Compresses the last block, writes all the compressed data and stops the compression
+     * threads; the destination stream is flushed but not closed.
+     * @throws IOException error compressing or writing the data.
+     */
+    public void finish() throws IOException
+    {
+        if (finished)
+            return;
+        try
+        {
+            submitBlock(true);
+            while ( ! queue.isEmpty())
+            {
+                writeCompressed(queue.remove());
+            }
+            finished = true;
+            out.flush();
+        }
+        finally
+        {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stops the compression threads; if {@link #finish()} has not been called, the data not yet
+     * written is discarded.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Finishes the compressed data and closes the destination stream.
+     * @throws IOException error compressing or writing the data.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the CRC-32 of the uncompressed data.
+     * @return CRC-32.
+     */
+    public long getCrc()
+    {
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the number of uncompressed bytes written to this stream.
+     * @return number of bytes.
+     */
+    public long getUncompressedSize()
+    {
+        return uncompressedSize;
+    }
+
+    /**
+     * Returns the number of compressed bytes written to the destination.
+     * @return number of bytes.
+     */
+    public long getCompressedSize()
+    {
+        return compressedSize;
+    }
+
+    /**
+     * Queues the current block for compression, writing the oldest compressed block first if the
+     * queue is full.
+     * @param last true if this is the last block.
+     * @throws IOException error compressing or writing a block.
+     */
+    private void submitBlock(final boolean last) throws IOException
+    {
+        if (queue.size() >= maxQueuedBlocks)
+            writeCompressed(queue.remove());
+
+        byte [] data = block;
+        int length = blockLength;
+        byte [] blockDictionary = dictionary;
+        queue.add(executor.submit(() -> compress(data, length, blockDictionary, last)));
+
+        if ( ! last)
+        {
+            dictionary = Arrays.copyOfRange(data, Math.max(0, length - DICTIONARY_SIZE), length);
+            block = new byte [BLOCK_SIZE];
+            blockLength = 0;
+        }
+    }
+
+    /**
+     * Waits for a block to be compressed and writes it.
+     * @param future compression task.
+     * @throws IOException error compressing or writing the block.
+     */
+    private void writeCompressed(final Future<byte []> future) throws IOException
+    {
+        byte [] compressed;
+        try
+        {
+            compressed = future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            if (e.getCause() instanceof Error error)
+                throw error;
+            throw new IOException(e.getCause());
+        }
+        out.write(compressed);
+        compressedSize += compressed.length;
+    }
+
+    /**
+     * Compresses a block.
+     * @param data uncompressed data.
+     * @param length number of bytes of data.
+     * @param blockDictionary dictionary (last bytes of the previous block), or null.
+     * @param last true if this is the last block; otherwise the compressed data ends with a sync
+     *        flush.
+     * @return compressed data.
+     */
+    private byte [] compress(final byte [] data, final int length, final byte [] blockDictionary,
+            final boolean last)
+    {
+        Deflater deflater = new Deflater(level, true);
+        try
+        {
+            if (blockDictionary != null)
+                deflater.setDictionary(blockDictionary);
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream((length / 2) + 64);
+            byte [] buffer = new byte [OUTPUT_BUFFER_SIZE];
+            if (last)
+            {
+                deflater.finish();
+                while ( ! deflater.finished())
+                {
+                    int count = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, count);
+                }
+            }
+            else
+            {
+                // a full output buffer means there may be more output
+                int count;
+                do
+                {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                }
+                while (count == buffer.length);
+            }
+            return compressed.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+}
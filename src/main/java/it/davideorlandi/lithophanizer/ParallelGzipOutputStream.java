@@ -0,0 +1,62 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that writes a gzip file, compressing on several threads.
+ * <p>
+ * The result is a single gzip member, readable by any gzip implementation.
+ * </p>
+ */
+public class ParallelGzipOutputStream extends ParallelDeflateOutputStream
+{
+    /** Gzip header: magic, deflate method, no flags, no time, no extra flags, unknown OS. */
+    private static final byte [] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0,
+            0, (byte) 0xff };
+
+    private boolean trailerWritten;
+
+    /**
+     * Constructor; writes the gzip header immediately.
+     * @param out destination stream; it is not closed by {@link #finish()}.
+     * @param threads number of compression threads.
+     * @throws IOException error writing the header.
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int threads)
+            throws IOException
+    {
+        super(out, threads, Deflater.DEFAULT_COMPRESSION);
+        out.write(HEADER);
+    }
+
+    /**
+     * Compresses the remaining data and writes the gzip trailer (CRC-32 and size).
+     * @throws IOException error compressing or writing the data.
+     */
+    @Override
+    public void finish() throws IOException
+    {
+        super.finish();
+        if (trailerWritten)
+            return;
+        writeIntLE(getCrc());
+        writeIntLE(getUncompressedSize());
+        trailerWritten = true;
+        out.flush();
+    }
+
+    /**
+     * Writes the lowest 32 bits of a value in little endian order.
+     * @param value value.
+     * @throws IOException error writing the value.
+     */
+    private void writeIntLE(final long value) throws IOException
+    {
+        out.write((int) value);
+        out.write((int) (value >>> 8));
+        out.write((int) (value >>> 16));
+        out.write((int) (value >>> 24));
+    }
+}
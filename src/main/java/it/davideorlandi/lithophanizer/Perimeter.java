@@ -0,0 +1,114 @@
+package it.davideorlandi.lithophanizer;
+
+/**
+ * A closed perimeter of points lying at the same height.
+ * <p>
+ * Coordinates are stored as one float array per axis (STL files store floats anyway), so a
+ * perimeter is made of two arrays instead of one object per point. The arrays are filled in place,
+ * so a perimeter can be reused for different layers, even with a different number of points (up
+ * to the size of the arrays).
+ * </p>
+ */
+public final class Perimeter
+{
+    /** X coordinate of each point. */
+    private final float [] x;
+
+    /** Y coordinate of each point. */
+    private final float [] y;
+
+    /** Number of points. */
+    private int size;
+
+    /** Z coordinate shared by all the points. */
+    private float z;
+
+    /** Index of the first point in an indexed mesh. */
+    private int firstVertex;
+
+    /**
+     * Constructor.
+     * @param size number of points.
+     */
+    public Perimeter(final int size)
+    {
+        this.x = new float [size];
+        this.y = new float [size];
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of points.
+     * @return number of points.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Sets the number of points.
+     * @param size number of points; at most the size given to the constructor.
+     */
+    public void setSize(final int size)
+    {
+        if (size > x.length)
+            throw new IllegalArgumentException(
+                    String.format("Perimeter size %d exceeds capacity %d", size, x.length));
+        this.size = size;
+    }
+
+    /**
+     * Returns the X coordinates of the points; the returned array can be modified.
+     * @return X coordinates.
+     */
+    public float [] x()
+    {
+        return x;
+    }
+
+    /**
+     * Returns the Y coordinates of the points; the returned array can be modified.
+     * @return Y coordinates.
+     */
+    public float [] y()
+    {
+        return y;
+    }
+
+    /**
+     * Returns the Z coordinate shared by all the points.
+     * @return Z coordinate.
+     */
+    public float z()
+    {
+        return z;
+    }
+
+    /**
+     * Sets the Z coordinate shared by all the points.
+     * @param z Z coordinate.
+     */
+    public void setZ(final float z)
+    {
+        this.z = z;
+    }
+
+    /**
+     * Returns the index of the first point in an indexed mesh; the other points follow in order.
+     * @return index of the first point.
+     */
+    public int firstVertex()
+    {
+        return firstVertex;
+    }
+
+    /**
+     * Sets the index of the first point in an indexed mesh.
+     * @param firstVertex index of the first point.
+     */
+    public void setFirstVertex(final int firstVertex)
+    {
+        this.firstVertex = firstVertex;
+    }
+}
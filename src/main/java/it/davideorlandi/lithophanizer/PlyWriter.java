@@ -0,0 +1,89 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer of binary little endian PLY files.
+ * <p>
+ * Each vertex takes 12 bytes and each face 13 bytes, instead of the 50 bytes per triangle of a
+ * binary STL file.
+ * </p>
+ */
+public class PlyWriter extends IndexedMeshWriter
+{
+    /** Size of the output buffer, in bytes. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Size of the largest element (a face), in bytes. */
+    private static final int MAX_ELEMENT_SIZE = 1 + (3 * 4);
+
+    /** Destination stream. */
+    private final OutputStream stream;
+
+    /** Output buffer. */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(
+            ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Constructor; writes the PLY header immediately.
+     * @param stream destination stream; it is flushed but not closed.
+     * @param name model name, written as a comment.
+     * @param vertexCount number of vertices that will be written.
+     * @param faceCount number of faces that will be written.
+     * @throws IOException error while writing.
+     */
+    public PlyWriter(final OutputStream stream, final String name, final long vertexCount,
+            final long faceCount) throws IOException
+    {
+        super(vertexCount, faceCount);
+        this.stream = stream;
+        String header = "ply\n" + "format binary_little_endian 1.0\n" + "comment "
+                + name.replaceAll("[\\r\\n]", " ") + "\n" + "element vertex " + vertexCount
+                + "\n" + "property float x\n" + "property float y\n" + "property float z\n"
+                + "element face " + faceCount + "\n" + "property list uchar int vertex_indices\n"
+                + "end_header\n";
+        stream.write(header.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    protected void writeVertex(final float x, final float y, final float z) throws IOException
+    {
+        if (buffer.remaining() < MAX_ELEMENT_SIZE)
+            writeBuffer();
+        buffer.putFloat(x);
+        buffer.putFloat(y);
+        buffer.putFloat(z);
+    }
+
+    @Override
+    protected void writeFace(final int v1, final int v2, final int v3) throws IOException
+    {
+        if (buffer.remaining() < MAX_ELEMENT_SIZE)
+            writeBuffer();
+        buffer.put((byte) 3);
+        buffer.putInt(v1);
+        buffer.putInt(v2);
+        buffer.putInt(v3);
+    }
+
+    @Override
+    protected void flush() throws IOException
+    {
+        writeBuffer();
+        stream.flush();
+    }
+
+    /**
+     * Writes the content of the buffer to the stream and empties it.
+     * @throws IOException error while writing.
+     */
+    private void writeBuffer() throws IOException
+    {
+        stream.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+}
@@ -0,0 +1,125 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary STL file whose triangles are written at explicit positions.
+ * <p>
+ * Every triangle takes exactly 50 bytes, so once the number of triangles is known the file can be
+ * presized and each part of the model can be written directly at its final offset. Different
+ * threads can write different parts at the same time and in any order, without funnelling them
+ * through a single stream.
+ * </p>
+ */
+public class PositionalStlWriter implements Closeable
+{
+    /** Size in bytes of the binary STL header. */
+    private static final int HEADER_SIZE = 80 + 4;
+
+    /** Destination file. */
+    private final RandomAccessFile file;
+
+    /** Channel of the destination file, used for positional writes. */
+    private final FileChannel channel;
+
+    /** Number of triangles declared in the header. */
+    private final int triangleCount;
+
+    /** Number of triangles written so far. */
+    private final AtomicLong writtenTriangles = new AtomicLong();
+
+    /**
+     * Constructor; creates the file with its final size and writes the header.
+     * @param path destination file; it will be overwritten.
+     * @param name model name.
+     * @param triangleCount number of triangles of the model.
+     * @throws IOException error creating the file.
+     */
+    public PositionalStlWriter(final File path, final String name, final int triangleCount)
+            throws IOException
+    {
+        this.triangleCount = triangleCount;
+        this.file = new RandomAccessFile(path, "rw");
+        try
+        {
+            this.channel = file.getChannel();
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + ((long) triangleCount * Triangle.BINARY_SIZE));
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+            Stl.writeBinaryHeader(header, name, triangleCount);
+            write(ByteBuffer.wrap(header.toByteArray()), 0);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes all the triangles of a model at a given position; can be called by several threads
+     * at the same time.
+     * @param stl model whose triangles must be written.
+     * @param firstTriangle index of the position of the first triangle in the file.
+     * @throws IOException error while writing.
+     */
+    public void write(final Stl stl, final long firstTriangle) throws IOException
+    {
+        int count = stl.getTriangleCount();
+        if ((firstTriangle < 0) || ((firstTriangle + count) > triangleCount))
+            throw new IllegalArgumentException(String.format(
+                    "Triangles %d-%d are outside of the model (%d triangles)", firstTriangle,
+                    (firstTriangle + count) - 1, triangleCount));
+        long position = HEADER_SIZE + ((long) firstTriangle * Triangle.BINARY_SIZE);
+        for (ByteBuffer buffer : stl.getBinaryTriangles())
+        {
+            int length = buffer.remaining();
+            write(buffer, position);
+            position += length;
+        }
+        writtenTriangles.addAndGet(count);
+    }
+
+    /**
+     * Writes a whole buffer at a given position.
+     * @param buffer data to write.
+     * @param position offset in the file.
+     * @throws IOException error while writing.
+     */
+    private void write(final ByteBuffer buffer, final long position) throws IOException
+    {
+        long p = position;
+        while (buffer.hasRemaining())
+        {
+            p += channel.write(buffer, p);
+        }
+    }
+
+    /**
+     * Checks that as many triangles as declared have been written.
+     */
+    public void finish()
+    {
+        if (writtenTriangles.get() != triangleCount)
+            throw new IllegalStateException(String.format("%d triangles declared but %d written",
+                    triangleCount, writtenTriangles.get()));
+    }
+
+    /**
+     * Closes the file.
+     * @throws IOException error closing the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
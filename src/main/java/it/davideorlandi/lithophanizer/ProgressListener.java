@@ -0,0 +1,16 @@
+package it.davideorlandi.lithophanizer;
+
+/**
+ * Receives the progress of the generation of a model.
+ */
+@FunctionalInterface
+public interface ProgressListener
+{
+    /**
+     * Called each time a band of layers has been generated and written; calls are never
+     * concurrent, but they may come from different threads.
+     * @param completedTriangles number of triangles generated so far.
+     * @param totalTriangles number of triangles of the whole model.
+     */
+    void bandCompleted(long completedTriangles, long totalTriangles);
+}
@@ -0,0 +1,396 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Directory of generated models, named by a SHA-256 hash of the image content and of all the
+ * parameters that affect the output, so that the same request is not generated twice.
+ * <p>
+ * The total size is capped: when it is exceeded, the least recently used models are deleted; the
+ * modification time of a model is updated when it is used. Models are written to a temporary file
+ * and renamed when complete, and changes to the directory listing are made holding a file lock,
+ * so the directory can be shared by several processes. Use a single instance for each directory
+ * in a JVM.
+ * </p>
+ */
+public class ResultCache
+{
+    /** Prefix of the models being written. */
+    private static final String TEMPORARY_PREFIX = "tmp-";
+
+    /** Name of the lock file. */
+    private static final String LOCK_FILE = ".lock";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Age after which a temporary file is considered abandoned. */
+    private static final long ABANDONED_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    /**
+     * Constructor; creates the directory if needed.
+     * @param directory cache directory.
+     * @param maxSize maximum total size of the models, in bytes.
+     * @throws IOException error creating the directory.
+     */
+    public ResultCache(final File directory, final long maxSize) throws IOException
+    {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        this.directory = directory.toPath();
+        this.maxSize = maxSize;
+        Files.createDirectories(this.directory);
+    }
+
+    /**
+     * Calculates the key of a model.
+     * @param image source image; its content is hashed.
+     * @param parameters description of all the parameters that affect the output.
+     * @return key, as hexadecimal string.
+     * @throws IOException error reading the image.
+     */
+    public static String computeKey(final File image, final String parameters)
+            throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte [] buffer = new byte [BUFFER_SIZE];
+        try (InputStream stream = Files.newInputStream(image.toPath()))
+        {
+            int read;
+            while ((read = stream.read(buffer)) >= 0)
+            {
+                digest.update(buffer, 0, read);
+            }
+        }
+        digest.update((byte) 0);
+        digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Copies a cached model to a file.
+     * @param key model key.
+     * @param output destination file; replaced atomically if it exists.
+     * @return false if the model is not cached.
+     * @throws IOException error copying the model.
+     */
+    public boolean fetch(final String key, final File output) throws IOException
+    {
+        Path entry = getEntry(key);
+        Path outputPath = output.toPath().toAbsolutePath();
+        Path temporary = outputPath.resolveSibling(createTemporaryName());
+        try
+        {
+            Files.copy(entry, temporary, StandardCopyOption.REPLACE_EXISTING);
+            touch(entry);
+            move(temporary, outputPath);
+            return true;
+        }
+        catch (NoSuchFileException e)
+        {
+            // not cached, or evicted by another process
+            return false;
+        }
+        finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Copies a cached model to a stream.
+     * @param key model key.
+     * @param stream destination stream; it is not closed.
+     * @return false if the model is not cached; nothing has been written then.
+     * @throws IOException error copying the model.
+     */
+    public boolean fetch(final String key, final OutputStream stream) throws IOException
+    {
+        Path entry = getEntry(key);
+        InputStream input;
+        try
+        {
+            input = Files.newInputStream(entry);
+        }
+        catch (NoSuchFileException e)
+        {
+            return false;
+        }
+        // an open file can still be read after eviction
+        try (input)
+        {
+            touch(entry);
+            input.transferTo(stream);
+            return true;
+        }
+    }
+
+    /**
+     * Stores a copy of a generated model.
+     * @param key model key.
+     * @param model generated model.
+     * @throws IOException error copying the model.
+     */
+    public void store(final String key, final File model) throws IOException
+    {
+        try (Writer writer = startEntry(key))
+        {
+            Files.copy(model.toPath(), writer);
+            writer.commit();
+        }
+    }
+
+    /**
+     * Starts writing a model to the cache; it is added only when committed.
+     * @param key model key.
+     * @return stream receiving the model.
+     * @throws IOException error creating the temporary file.
+     */
+    public Writer startEntry(final String key) throws IOException
+    {
+        return new Writer(key);
+    }
+
+    /**
+     * Returns the file of a model.
+     * @param key model key.
+     * @return file path.
+     */
+    private Path getEntry(final String key)
+    {
+        if ( ! key.matches("[0-9a-f]+"))
+            throw new IllegalArgumentException(String.format("Invalid cache key \"%s\"", key));
+        return directory.resolve(key);
+    }
+
+    /**
+     * Adds a completed model, then deletes the least recently used models until the total size
+     * is within the limit.
+     * @param temporary completed model.
+     * @param entry final path of the model.
+     * @throws IOException error renaming or deleting models.
+     */
+    private synchronized void add(final Path temporary, final Path entry) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            // released when the channel is closed
+            channel.lock();
+            move(temporary, entry);
+
+            List<Cached> cached = new ArrayList<>();
+            long size = 0;
+            for (Path path : listEntries())
+            {
+                BasicFileAttributes attributes = Files.readAttributes(path,
+                        BasicFileAttributes.class);
+                cached.add(new Cached(path, attributes.lastModifiedTime(), attributes.size()));
+                size += attributes.size();
+            }
+            cached.sort(Comparator.comparing(Cached::used));
+            for (Cached model : cached)
+            {
+                if (size <= maxSize)
+                    break;
+                // the newest model is kept even if larger than the limit
+                if (model.path().equals(entry))
+                    continue;
+                Files.deleteIfExists(model.path());
+                size -= model.size();
+            }
+            deleteAbandoned();
+        }
+    }
+
+    /**
+     * Deletes the temporary files left by processes that stopped while writing a model.
+     * @throws IOException error listing the directory.
+     */
+    private void deleteAbandoned() throws IOException
+    {
+        long limit = System.currentTimeMillis() - ABANDONED_AGE_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                TEMPORARY_PREFIX + "*"))
+        {
+            for (Path path : stream)
+            {
+                try
+                {
+                    if (Files.getLastModifiedTime(path).toMillis() < limit)
+                        Files.deleteIfExists(path);
+                }
+                catch (NoSuchFileException e)
+                {
+                    // completed meanwhile
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the completed models.
+     * @return model files.
+     * @throws IOException error listing the directory.
+     */
+    private List<Path> listEntries() throws IOException
+    {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                path -> path.getFileName().toString().matches("[0-9a-f]+")))
+        {
+            for (Path path : stream)
+            {
+                entries.add(path);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns a unique name for a temporary file; unlike {@link Files#createTempFile}, files
+     * created with it get the usual permissions, which are kept by the copies.
+     * @return file name.
+     */
+    private static String createTemporaryName()
+    {
+        return TEMPORARY_PREFIX + UUID.randomUUID() + ".part";
+    }
+
+    /**
+     * Marks a model as used now.
+     * @param entry model file.
+     */
+    private static void touch(final Path entry)
+    {
+        try
+        {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e)
+        {
+            // evicted meanwhile: the copy is still complete
+        }
+    }
+
+    /**
+     * Renames a file, replacing the destination atomically where supported.
+     * @param source file to rename.
+     * @param destination new path.
+     * @throws IOException error renaming the file.
+     */
+    static void move(final Path source, final Path destination) throws IOException
+    {
+        try
+        {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * A cached model.
+     * @param path model file.
+     * @param used last time the model was used.
+     * @param size size in bytes.
+     */
+    private record Cached(Path path, FileTime used, long size)
+    {
+    }
+
+    /**
+     * Stream writing a model to a temporary file of the cache; closing it without committing
+     * discards the model.
+     */
+    public final class Writer extends OutputStream
+    {
+        private final Path entry;
+
+        private final Path temporary;
+
+        private final OutputStream stream;
+
+        private boolean committed;
+
+        /**
+         * Constructor.
+         * @param key model key.
+         * @throws IOException error creating the temporary file.
+         */
+        private Writer(final String key) throws IOException
+        {
+            this.entry = getEntry(key);
+            this.temporary = directory.resolve(createTemporaryName());
+            this.stream = new BufferedOutputStream(Files.newOutputStream(temporary,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            stream.write(b);
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len) throws IOException
+        {
+            stream.write(b, off, len);
+        }
+
+        /**
+         * Adds the written model to the cache.
+         * @throws IOException error writing the model.
+         */
+        public void commit() throws IOException
+        {
+            stream.close();
+            add(temporary, entry);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            stream.close();
+            if ( ! committed)
+                Files.deleteIfExists(temporary);
+        }
+    }
+}
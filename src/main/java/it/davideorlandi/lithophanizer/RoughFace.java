@@ -6,12 +6,48 @@ package it.davideorlandi.lithophanizer;
 public enum RoughFace
 {
     /** Rough face inside. */
-    INSIDE,
+    INSIDE(0.0, -1.0),
 
     /** Rough face outside. */
-    OUTSIDE,
+    OUTSIDE(1.0, 0.0),
 
     /** Both faces rough. */
-    BOTH
+    BOTH(0.5, -0.5);
 
+    private final double outerFactor;
+
+    private final double innerFactor;
+
+    /**
+     * Constructor.
+     * @param outerFactor displacement of the outer face from the base surface, per unit of
+     *        thickness.
+     * @param innerFactor displacement of the inner face from the base surface, per unit of
+     *        thickness.
+     */
+    RoughFace(final double outerFactor, final double innerFactor)
+    {
+        this.outerFactor = outerFactor;
+        this.innerFactor = innerFactor;
+    }
+
+    /**
+     * Returns the outward displacement of the outer face from the base surface, per unit of
+     * thickness.
+     * @return displacement factor.
+     */
+    public double getOuterFactor()
+    {
+        return outerFactor;
+    }
+
+    /**
+     * Returns the outward displacement of the inner face from the base surface, per unit of
+     * thickness (negative: the inner face is displaced inwards).
+     * @return displacement factor.
+     */
+    public double getInnerFactor()
+    {
+        return innerFactor;
+    }
 }
@@ -0,0 +1,17 @@
+package it.davideorlandi.lithophanizer;
+
+/**
+ * Shape of the surface the image is laid on.
+ */
+public enum Shape
+{
+    /** Whole cylinder; the image wraps around it. */
+    CYLINDER,
+
+    /** Part of a cylinder, spanning an angle smaller than a full turn. */
+    ARC,
+
+    /** Flat panel. */
+    FLAT
+
+}
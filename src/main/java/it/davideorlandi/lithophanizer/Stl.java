@@ -10,31 +10,138 @@ import java.util.List;
 
 /**
  * STL model creation and serialization.
+ * <p>
+ * Triangles are kept already serialized in binary STL format, 50 bytes each, instead of as
+ * objects. The first buffer grows by doubling up to a chunk size; beyond it, triangles go in
+ * further chunks, so that large models need neither arrays larger than the JVM allows nor a copy
+ * of the whole model each time the buffer is full.
+ * </p>
  */
-public class Stl
+public final class Stl implements MeshSink
 {
+    /** Initial size of the triangle buffer, in bytes. */
+    private static final int INITIAL_CAPACITY = 64 * Triangle.BINARY_SIZE;
+
+    /** Size of a full chunk of the triangle buffer, in bytes. */
+    private static final int CHUNK_SIZE = (1 << 20) * Triangle.BINARY_SIZE;
+
     /** Name of this model. */
-    protected final String name;
+    private final String name;
+
+    /** Full chunks of triangles (facets), in binary STL format. */
+    private final List<ByteBuffer> fullChunks = new ArrayList<>();
+
+    /** Number of triangles in the full chunks. */
+    private int fullChunkTriangles;
 
-    /** All the triangles (facets) comprising the model. */
-    protected final List<Triangle> triangles = new ArrayList<>();
+    /** Chunk the triangles are being added to. */
+    private ByteBuffer triangles;
 
     /**
      * Constructor.
      * @param name model name.
      */
     public Stl(final String name)
+    {
+        this(name, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     * @param name model name.
+     * @param capacity initial size of the triangle buffer, in bytes.
+     */
+    Stl(final String name, final int capacity)
     {
         this.name = name;
+        this.triangles = ByteBuffer.allocate(Math.min(capacity, CHUNK_SIZE))
+                .order(ByteOrder.LITTLE_ENDIAN);
     }
 
     /**
      * Adds a triangle to the STL model.
-     * @param triangle trignale to be added.
+     * @param x1 first vertex X.
+     * @param y1 first vertex Y.
+     * @param z1 first vertex Z.
+     * @param x2 second vertex X.
+     * @param y2 second vertex Y.
+     * @param z2 second vertex Z.
+     * @param x3 third vertex X.
+     * @param y3 third vertex Y.
+     * @param z3 third vertex Z.
+     */
+    public void addTriangle(final float x1, final float y1, final float z1, final float x2,
+            final float y2, final float z2, final float x3, final float y3, final float z3)
+    {
+        if (triangles.remaining() < Triangle.BINARY_SIZE)
+            makeRoom();
+        Triangle.writeBinary(triangles, x1, y1, z1, x2, y2, z2, x3, y3, z3);
+    }
+
+    /**
+     * Adds a triangle to the STL model, referencing its vertices by index in their perimeters.
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
+     */
+    @Override
+    public void addTriangle(final Perimeter p1, final int i1, final Perimeter p2, final int i2,
+            final Perimeter p3, final int i3)
+    {
+        if (triangles.remaining() < Triangle.BINARY_SIZE)
+            makeRoom();
+        Triangle.writeBinary(triangles, p1, i1, p2, i2, p3, i3);
+    }
+
+    /**
+     * Adds a triangle whose normal is already known to the STL model, referencing its vertices by
+     * index in their perimeters.
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
+     * @param nx normal X.
+     * @param ny normal Y.
+     * @param nz normal Z.
      */
-    public void addTriangle(final Triangle triangle)
+    @Override
+    public void addTriangle(final Perimeter p1, final int i1, final Perimeter p2, final int i2,
+            final Perimeter p3, final int i3, final float nx, final float ny, final float nz)
     {
-        triangles.add(triangle);
+        if (triangles.remaining() < Triangle.BINARY_SIZE)
+            makeRoom();
+        Triangle.writeBinary(triangles, p1, i1, p2, i2, p3, i3, nx, ny, nz);
+    }
+
+    /**
+     * Makes room in the triangle buffer for at least one more triangle: the current chunk is
+     * enlarged up to the chunk size, then a new chunk is started.
+     */
+    private void makeRoom()
+    {
+        if (triangles.capacity() < CHUNK_SIZE)
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(CHUNK_SIZE,
+                    Math.max(triangles.capacity() * 2, INITIAL_CAPACITY)))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            triangles.flip();
+            bigger.put(triangles);
+            triangles = bigger;
+            return;
+        }
+        int chunkTriangles = triangles.position() / Triangle.BINARY_SIZE;
+        if ((fullChunkTriangles + (long) chunkTriangles + (CHUNK_SIZE / Triangle.BINARY_SIZE))
+                > Integer.MAX_VALUE)
+            throw new IllegalStateException(String.format(
+                    "STL models cannot have more than %d triangles", Integer.MAX_VALUE));
+        fullChunks.add(triangles);
+        fullChunkTriangles += chunkTriangles;
+        triangles = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
     }
 
     /**
@@ -43,16 +150,64 @@ public class Stl
      * @throws IOException error while writing.
      */
     public void writeBinary(final OutputStream stream) throws IOException
+    {
+        writeBinaryHeader(stream, name, getTriangleCount());
+        writeBinaryTriangles(stream);
+        stream.flush();
+    }
+
+    /**
+     * Writes the triangles of the model in binary STL format, without the header.
+     * @param stream destination stream.
+     * @throws IOException error while writing.
+     */
+    public void writeBinaryTriangles(final OutputStream stream) throws IOException
+    {
+        for (ByteBuffer chunk : fullChunks)
+        {
+            stream.write(chunk.array(), 0, chunk.position());
+        }
+        stream.write(triangles.array(), 0, triangles.position());
+    }
+
+    /**
+     * Returns the triangles of the model in binary STL format, without the header.
+     * @return read-only buffers, one for each chunk, from the first to the last triangle.
+     */
+    public List<ByteBuffer> getBinaryTriangles()
+    {
+        List<ByteBuffer> buffers = new ArrayList<>(fullChunks.size() + 1);
+        for (ByteBuffer chunk : fullChunks)
+        {
+            buffers.add(chunk.asReadOnlyBuffer().flip());
+        }
+        buffers.add(triangles.asReadOnlyBuffer().flip());
+        return buffers;
+    }
+
+    /**
+     * Returns the number of triangles in the model.
+     * @return number of triangles.
+     */
+    public int getTriangleCount()
+    {
+        return fullChunkTriangles + (triangles.position() / Triangle.BINARY_SIZE);
+    }
+
+    /**
+     * Writes the 84 bytes header of a binary STL file (model name and number of triangles).
+     * @param stream destination stream.
+     * @param name model name; truncated to 80 characters.
+     * @param triangleCount number of triangles that will follow the header.
+     * @throws IOException error while writing.
+     */
+    static void writeBinaryHeader(final OutputStream stream, final String name,
+            final int triangleCount) throws IOException
     {
         String truncatedName = name.length() <= 80 ? name : name.substring(0, 80);
         ByteBuffer header = ByteBuffer.allocate(80 + 4).order(ByteOrder.LITTLE_ENDIAN);
         header.put(String.format("%-80s", truncatedName).getBytes(StandardCharsets.US_ASCII));
-        header.putInt(triangles.size());
+        header.putInt(triangleCount);
         stream.write(header.array());
-        for (Triangle triangle : triangles)
-        {
-            triangle.writeBinary(stream);
-        }
-        stream.flush();
     }
 }
@@ -0,0 +1,120 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary STL file that is serialized while it is built: triangles are written to the stream as
+ * soon as the (fixed size) triangle buffer is full, and are not kept in memory; see {@link Stl}
+ * for a model kept in memory.
+ * <p>
+ * The binary STL header contains the number of triangles, so it must be known in advance.
+ * </p>
+ */
+public class StreamingStl implements MeshSink
+{
+    /** Size of the triangle buffer, in bytes. */
+    private static final int BUFFER_SIZE = 1024 * Triangle.BINARY_SIZE;
+
+    /** Triangles not yet written to the stream, in binary STL format. */
+    private final ByteBuffer triangles = ByteBuffer.allocate(BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    /** Destination stream. */
+    private final OutputStream stream;
+
+    /** Number of triangles declared in the header. */
+    private final int triangleCount;
+
+    /** Number of triangles already written to the stream. */
+    private int writtenTriangles;
+
+    /**
+     * Constructor; writes the STL header immediately.
+     * @param name model name.
+     * @param stream destination stream.
+     * @param triangleCount number of triangles that will be added.
+     * @throws IOException error while writing.
+     */
+    public StreamingStl(final String name, final OutputStream stream, final int triangleCount)
+            throws IOException
+    {
+        this.stream = stream;
+        this.triangleCount = triangleCount;
+        Stl.writeBinaryHeader(stream, name, triangleCount);
+    }
+
+    @Override
+    public void addTriangle(final Perimeter p1, final int i1, final Perimeter p2, final int i2,
+            final Perimeter p3, final int i3) throws IOException
+    {
+        if (triangles.remaining() < Triangle.BINARY_SIZE)
+            flushTriangles();
+        Triangle.writeBinary(triangles, p1, i1, p2, i2, p3, i3);
+    }
+
+    @Override
+    public void addTriangle(final Perimeter p1, final int i1, final Perimeter p2, final int i2,
+            final Perimeter p3, final int i3, final float nx, final float ny, final float nz)
+            throws IOException
+    {
+        if (triangles.remaining() < Triangle.BINARY_SIZE)
+            flushTriangles();
+        Triangle.writeBinary(triangles, p1, i1, p2, i2, p3, i3, nx, ny, nz);
+    }
+
+    /**
+     * Writes the buffered triangles to the stream.
+     * @throws IOException error while writing.
+     */
+    private void flushTriangles() throws IOException
+    {
+        int buffered = triangles.position() / Triangle.BINARY_SIZE;
+        if ((writtenTriangles + (long) buffered) > triangleCount)
+            throw new IllegalStateException(
+                    String.format("More than %d triangles added to the model", triangleCount));
+        stream.write(triangles.array(), 0, triangles.position());
+        triangles.clear();
+        writtenTriangles += buffered;
+    }
+
+    /**
+     * Writes all the triangles of another model.
+     * @param stl model whose triangles must be added.
+     * @throws IOException error while writing.
+     */
+    public void addTriangles(final Stl stl) throws IOException
+    {
+        flushTriangles();
+        if ((writtenTriangles + (long) stl.getTriangleCount()) > triangleCount)
+            throw new IllegalStateException(
+                    String.format("More than %d triangles added to the model", triangleCount));
+        stl.writeBinaryTriangles(stream);
+        writtenTriangles += stl.getTriangleCount();
+    }
+
+    /**
+     * Writes the buffered triangles, checks that all the declared triangles have been written and
+     * flushes the stream.
+     * @throws IOException error while writing.
+     */
+    public void finish() throws IOException
+    {
+        flushTriangles();
+        if (writtenTriangles != triangleCount)
+            throw new IllegalStateException(String.format(
+                    "%d triangles declared but %d written", triangleCount, writtenTriangles));
+        stream.flush();
+    }
+
+    /**
+     * Returns the number of triangles added so far.
+     * @return number of triangles.
+     */
+    public int getTriangleCount()
+    {
+        return writtenTriangles + (triangles.position() / Triangle.BINARY_SIZE);
+    }
+}
@@ -0,0 +1,46 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that writes everything to two streams.
+ */
+final class TeeOutputStream extends OutputStream
+{
+    private final OutputStream first;
+
+    private final OutputStream second;
+
+    /**
+     * Constructor.
+     * @param first first destination stream.
+     * @param second second destination stream.
+     */
+    TeeOutputStream(final OutputStream first, final OutputStream second)
+    {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        first.write(b);
+        second.write(b);
+    }
+
+    @Override
+    public void write(final byte [] b, final int off, final int len) throws IOException
+    {
+        first.write(b, off, len);
+        second.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        first.flush();
+        second.flush();
+    }
+}
@@ -0,0 +1,126 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer of 3MF files: a zip container with the content types, the relationships and a single
+ * mesh object in millimeters; the model is compressed on several threads.
+ */
+public class ThreeMfWriter extends IndexedMeshWriter
+{
+    /** Size of the output buffer, in characters. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String CONTENT_TYPES = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <Types xmlns="http://schemas.openxmlformats.org/package/2006/content-types">
+             <Default Extension="rels" ContentType="application/vnd.openxmlformats-package.relationships+xml"/>
+             <Default Extension="model" ContentType="application/vnd.ms-package.3dmanufacturing-3dmodel+xml"/>
+            </Types>
+            """;
+
+    private static final String RELATIONSHIPS = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">
+             <Relationship Target="/3D/3dmodel.model" Id="rel0" Type="http://schemas.microsoft.com/3dmanufacturing/2013/01/3dmodel"/>
+            </Relationships>
+            """;
+
+    private final ZipContainerWriter zip;
+
+    /** Destination of the model XML. */
+    private final Writer writer;
+
+    /** True once the first face has been written. */
+    private boolean writingFaces;
+
+    /**
+     * Constructor; writes the container files and the beginning of the model immediately.
+     * @param stream destination stream; it is flushed but not closed.
+     * @param name model name.
+     * @param vertexCount number of vertices that will be written.
+     * @param faceCount number of faces that will be written.
+     * @param threads number of compression threads.
+     * @throws IOException error while writing.
+     */
+    public ThreeMfWriter(final OutputStream stream, final String name, final long vertexCount,
+            final long faceCount, final int threads) throws IOException
+    {
+        super(vertexCount, faceCount);
+        this.zip = new ZipContainerWriter(stream);
+        zip.addStoredEntry("[Content_Types].xml", CONTENT_TYPES.getBytes(StandardCharsets.UTF_8));
+        zip.addStoredEntry("_rels/.rels", RELATIONSHIPS.getBytes(StandardCharsets.UTF_8));
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                zip.startDeflatedEntry("3D/3dmodel.model", threads), StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write("<model unit=\"millimeter\" xml:lang=\"en-US\""
+                + " xmlns=\"http://schemas.microsoft.com/3dmanufacturing/core/2015/02\">\n");
+        writer.write(" <metadata name=\"Title\">" + escape(name) + "</metadata>\n");
+        writer.write(" <resources>\n  <object id=\"1\" type=\"model\">\n   <mesh>\n");
+        writer.write("    <vertices>\n");
+    }
+
+    @Override
+    protected void writeVertex(final float x, final float y, final float z) throws IOException
+    {
+        writer.write("     <vertex x=\"");
+        writer.write(Float.toString(x));
+        writer.write("\" y=\"");
+        writer.write(Float.toString(y));
+        writer.write("\" z=\"");
+        writer.write(Float.toString(z));
+        writer.write("\"/>\n");
+    }
+
+    @Override
+    protected void writeFace(final int v1, final int v2, final int v3) throws IOException
+    {
+        if ( ! writingFaces)
+        {
+            writer.write("    </vertices>\n    <triangles>\n");
+            writingFaces = true;
+        }
+        writer.write("     <triangle v1=\"");
+        writer.write(Integer.toString(v1));
+        writer.write("\" v2=\"");
+        writer.write(Integer.toString(v2));
+        writer.write("\" v3=\"");
+        writer.write(Integer.toString(v3));
+        writer.write("\"/>\n");
+    }
+
+    @Override
+    protected void flush() throws IOException
+    {
+        if ( ! writingFaces)
+            writer.write("    </vertices>\n    <triangles>\n");
+        writer.write("    </triangles>\n   </mesh>\n  </object>\n </resources>\n");
+        writer.write(" <build>\n  <item objectid=\"1\"/>\n </build>\n</model>\n");
+        writer.flush();
+        zip.finish();
+    }
+
+    /**
+     * Stops the compression threads after an error.
+     */
+    public void shutdown()
+    {
+        zip.shutdown();
+    }
+
+    /**
+     * Escapes the XML special characters of a text.
+     * @param text text.
+     * @return escaped text.
+     */
+    private static String escape(final String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -1,126 +1,138 @@
 package it.davideorlandi.lithophanizer;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
- * Model of a STL's triangle.
+ * Serialization of STL triangles.
+ * <p>
+ * Triangles are not kept as objects: they are written straight into a buffer from the coordinates
+ * of their vertices.
+ * </p>
  */
-public class Triangle
+public final class Triangle
 {
-    /** Array triangle's three vertices (each one a 3 float vector). */
-    protected final double [] [] vertices;
+    /** Size in bytes of a triangle in a binary STL file. */
+    public static final int BINARY_SIZE = 50;
 
     /**
-     * Constructor.
-     * @param vertices array of 3 vertices vectors.
+     * Private constructor: only static methods.
      */
-    public Triangle(final double [] [] vertices)
+    private Triangle()
     {
-        this(vertices, false);
+        // nessuna istanza
     }
 
     /**
-     * Constructor.
+     * Writes a triangle in binary STL format (normal, three vertices and the attribute byte count)
+     * into a little endian buffer.
      * <p>
-     * Note: it's not enough to invert the normal in the output .stl file; the order of the vertices
-     * must be inverted too.
+     * Vertices must be in counter-clockwise order, seen from outside the model; the normal is
+     * calculated from them.
      * </p>
-     * @param vertices array of 3 vertices vectors. The array will be copied.
-     * @param invertNormal if true, the normal will be inverted (left-handed).
+     * @param buffer destination buffer; it must have at least {@link #BINARY_SIZE} bytes remaining.
+     * @param x1 first vertex X.
+     * @param y1 first vertex Y.
+     * @param z1 first vertex Z.
+     * @param x2 second vertex X.
+     * @param y2 second vertex Y.
+     * @param z2 second vertex Z.
+     * @param x3 third vertex X.
+     * @param y3 third vertex Y.
+     * @param z3 third vertex Z.
      */
-    public Triangle(final double [] [] vertices, final boolean invertNormal)
+    public static void writeBinary(final ByteBuffer buffer, final float x1, final float y1,
+            final float z1, final float x2, final float y2, final float z2, final float x3,
+            final float y3, final float z3)
     {
-        this.vertices = new double [3] [];
-        if (invertNormal)
-        {
-            this.vertices[0] = vertices[2];
-            this.vertices[1] = vertices[1];
-            this.vertices[2] = vertices[0];
-        }
-        else
-        {
-            this.vertices[0] = vertices[0];
-            this.vertices[1] = vertices[1];
-            this.vertices[2] = vertices[2];
-        }
-    }
+        // normal = (v2 - v1) x (v3 - v1), normalized
+        double ux = x2 - x1;
+        double uy = y2 - y1;
+        double uz = z2 - z1;
+        double vx = x3 - x1;
+        double vy = y3 - y1;
+        double vz = z3 - z1;
+        double nx = (uy * vz) - (uz * vy);
+        double ny = (uz * vx) - (ux * vz);
+        double nz = (ux * vy) - (uy * vx);
+        double l = Math.sqrt((nx * nx) + (ny * ny) + (nz * nz));
 
-    /**
-     * Constructor.
-     * @param v1 first vertex.
-     * @param v2 second vertex.
-     * @param v3 third vertex.
-     */
-    public Triangle(final double [] v1, final double [] v2, final double [] v3)
-    {
-        this(new double [] [] { v1, v2, v3 });
+        writeBinary(buffer, (float) (nx / l), (float) (ny / l), (float) (nz / l), x1, y1, z1, x2,
+                y2, z2, x3, y3, z3);
     }
 
     /**
-     * Constructor.
-     * @param v1 first vertex.
-     * @param v2 second vertex.
-     * @param v3 third vertex.
-     * @param invertNormal if true, the normal will be inverted (left-handed).
+     * Writes a triangle whose normal is already known in binary STL format into a little endian
+     * buffer.
+     * @param buffer destination buffer; it must have at least {@link #BINARY_SIZE} bytes remaining.
+     * @param nx normal X.
+     * @param ny normal Y.
+     * @param nz normal Z.
+     * @param x1 first vertex X.
+     * @param y1 first vertex Y.
+     * @param z1 first vertex Z.
+     * @param x2 second vertex X.
+     * @param y2 second vertex Y.
+     * @param z2 second vertex Z.
+     * @param x3 third vertex X.
+     * @param y3 third vertex Y.
+     * @param z3 third vertex Z.
      */
-    public Triangle(final double [] v1, final double [] v2, final double [] v3,
-            final boolean invertNormal)
+    public static void writeBinary(final ByteBuffer buffer, final float nx, final float ny,
+            final float nz, final float x1, final float y1, final float z1, final float x2,
+            final float y2, final float z2, final float x3, final float y3, final float z3)
     {
-        this(new double [] [] { v1, v2, v3 }, invertNormal);
+        buffer.putFloat(nx);
+        buffer.putFloat(ny);
+        buffer.putFloat(nz);
+        buffer.putFloat(x1);
+        buffer.putFloat(y1);
+        buffer.putFloat(z1);
+        buffer.putFloat(x2);
+        buffer.putFloat(y2);
+        buffer.putFloat(z2);
+        buffer.putFloat(x3);
+        buffer.putFloat(y3);
+        buffer.putFloat(z3);
+        buffer.putShort((short) 0);
     }
 
     /**
-     * Calculates the normal of the triangle.
-     * @return normal vector.
+     * Writes a triangle in binary STL format into a little endian buffer, referencing its
+     * vertices by index in their perimeters; the normal is calculated from them.
+     * @param buffer destination buffer; it must have at least {@link #BINARY_SIZE} bytes remaining.
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
      */
-    protected double [] calculateNormal()
+    public static void writeBinary(final ByteBuffer buffer, final Perimeter p1, final int i1,
+            final Perimeter p2, final int i2, final Perimeter p3, final int i3)
     {
-        double [] v1 = new double [] { vertices[1][0] - vertices[0][0],
-                vertices[1][1] - vertices[0][1], vertices[1][2] - vertices[0][2] };
-        double [] v2 = new double [] { vertices[2][0] - vertices[0][0],
-                vertices[2][1] - vertices[0][1], vertices[2][2] - vertices[0][2] };
-        double [] n = new double [] { (v1[1] * v2[2]) - (v1[2] * v2[1]),
-                (v1[2] * v2[0]) - (v1[0] * v2[2]), (v1[0] * v2[1]) - (v1[1] * v2[0]) };
-        // normalize
-        double l = Math.sqrt((n[0] * n[0]) + (n[1] * n[1]) + (n[2] * n[2]));
-        n[0] /= l;
-        n[1] /= l;
-        n[2] /= l;
-
-        return n;
-    }
-
-    /**
-     * Writes this triangle to a binary stream.
-     * @param stream outout stream (buffered is better).
-     * @throws IOException error writing data.
-     */
-    public void writeBinary(final OutputStream stream) throws IOException
-    {
-        ByteBuffer b = ByteBuffer.allocate(50).order(ByteOrder.LITTLE_ENDIAN);
-        putVectorIntoByteBuffer(b, calculateNormal());
-        for (int v = 0; v < 3; v++)
-        {
-            putVectorIntoByteBuffer(b, vertices[v]);
-        }
-        b.putShort((short) 0);
-
-        stream.write(b.array());
+        writeBinary(buffer, p1.x()[i1], p1.y()[i1], p1.z(), p2.x()[i2], p2.y()[i2], p2.z(),
+                p3.x()[i3], p3.y()[i3], p3.z());
     }
 
     /**
-     * Put a vector of 3 double as 3 floats in a ByteBuffer.
-     * @param bb destination buffer.
-     * @param vector array of x, y, z.
+     * Writes a triangle whose normal is already known in binary STL format into a little endian
+     * buffer, referencing its vertices by index in their perimeters.
+     * @param buffer destination buffer; it must have at least {@link #BINARY_SIZE} bytes remaining.
+     * @param p1 perimeter of the first vertex.
+     * @param i1 index of the first vertex.
+     * @param p2 perimeter of the second vertex.
+     * @param i2 index of the second vertex.
+     * @param p3 perimeter of the third vertex.
+     * @param i3 index of the third vertex.
+     * @param nx normal X.
+     * @param ny normal Y.
+     * @param nz normal Z.
      */
-    private void putVectorIntoByteBuffer(final ByteBuffer bb, final double [] vector)
+    public static void writeBinary(final ByteBuffer buffer, final Perimeter p1, final int i1,
+            final Perimeter p2, final int i2, final Perimeter p3, final int i3, final float nx,
+            final float ny, final float nz)
     {
-        for (int i = 0; i < 3; i++)
-        {
-            bb.putFloat((float) vector[i]);
-        }
+        writeBinary(buffer, nx, ny, nz, p1.x()[i1], p1.y()[i1], p1.z(), p2.x()[i2], p2.y()[i2],
+                p2.z(), p3.x()[i3], p3.y()[i3], p3.z());
     }
 }
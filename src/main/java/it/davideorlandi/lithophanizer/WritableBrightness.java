@@ -0,0 +1,16 @@
+package it.davideorlandi.lithophanizer;
+
+/**
+ * Brightness of an image that can be modified; concurrent writes to different pixels are
+ * allowed.
+ */
+public interface WritableBrightness extends BrightnessSource
+{
+    /**
+     * Sets the brightness of a pixel.
+     * @param x pixel x coordinate.
+     * @param y pixel y coordinate (0 = top row).
+     * @param value brightness (0 - {@link #MAX_BRIGHTNESS}).
+     */
+    void set(int x, int y, int value);
+}
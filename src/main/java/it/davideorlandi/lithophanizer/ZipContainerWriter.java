@@ -0,0 +1,349 @@
+package it.davideorlandi.lithophanizer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal zip file writer whose large entries are compressed on several threads.
+ * <p>
+ * Streamed entries are written with a data descriptor and Zip64 sizes, so they can be larger
+ * than 4 GB; the Zip64 end of central directory is written only when needed. Timestamps are
+ * fixed, so that the same content always produces the same file.
+ * </p>
+ */
+public class ZipContainerWriter
+{
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    /** Version needed to extract entries with Zip64 fields (4.5). */
+    private static final int VERSION_ZIP64 = 45;
+
+    /** Version needed to extract other entries (2.0). */
+    private static final int VERSION_DEFAULT = 20;
+
+    /** General purpose flag: sizes and CRC are in the data descriptor. */
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    /** General purpose flag: names are UTF-8. */
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    /** MS-DOS date of 1980-01-01. */
+    private static final int DOS_DATE = (1 << 5) | 1;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    /** Largest value of a 32 bit size or offset; larger values go in the Zip64 fields. */
+    private static final long MAX_32 = 0xFFFFFFFFL;
+
+    private static final int MAX_16 = 0xFFFF;
+
+    private final CountingOutputStream out;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /** Entry being streamed, or null. */
+    private ParallelDeflateOutputStream currentStream;
+
+    private Entry currentEntry;
+
+    /**
+     * Constructor.
+     * @param out destination stream; it is flushed but not closed by {@link #finish()}.
+     */
+    public ZipContainerWriter(final OutputStream out)
+    {
+        this.out = new CountingOutputStream(out);
+    }
+
+    /**
+     * Adds a small entry, stored without compression.
+     * @param name entry name.
+     * @param data entry content.
+     * @throws IOException error writing the entry.
+     */
+    public void addStoredEntry(final String name, final byte [] data) throws IOException
+    {
+        closeEntry();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        Entry entry = new Entry(name, METHOD_STORED, 0, out.count);
+        entry.crc = crc.getValue();
+        entry.compressedSize = data.length;
+        entry.uncompressedSize = data.length;
+        writeLocalHeader(entry, false);
+        out.write(data);
+        entries.add(entry);
+    }
+
+    /**
+     * Starts a deflated entry whose content is written to the returned stream; the entry ends
+     * when another entry is started or the zip file is finished.
+     * @param name entry name.
+     * @param threads number of compression threads.
+     * @return stream receiving the uncompressed content; it must not be closed.
+     * @throws IOException error writing the entry.
+     */
+    public OutputStream startDeflatedEntry(final String name, final int threads)
+            throws IOException
+    {
+        closeEntry();
+        Entry entry = new Entry(name, METHOD_DEFLATED, FLAG_DATA_DESCRIPTOR, out.count);
+        entry.zip64 = true;
+        writeLocalHeader(entry, true);
+        currentEntry = entry;
+        currentStream = new ParallelDeflateOutputStream(out, threads,
+                Deflater.DEFAULT_COMPRESSION);
+        return currentStream;
+    }
+
+    /**
+     * Finishes the current entry, if any, and writes the central directory.
+     * @throws IOException error writing the zip file.
+     */
+    public void finish() throws IOException
+    {
+        closeEntry();
+        long centralDirectoryOffset = out.count;
+        boolean zip64 = entries.size() > MAX_16;
+        for (Entry entry : entries)
+        {
+            zip64 |= writeCentralHeader(entry);
+        }
+        long centralDirectorySize = out.count - centralDirectoryOffset;
+        zip64 |= (centralDirectoryOffset >= MAX_32) || (centralDirectorySize >= MAX_32);
+
+        if (zip64)
+        {
+            long zip64EndOffset = out.count;
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries.size(), MAX_16));
+        writeShort(Math.min(entries.size(), MAX_16));
+        writeInt(Math.min(centralDirectorySize, MAX_32));
+        writeInt(Math.min(centralDirectoryOffset, MAX_32));
+        writeShort(0);
+        out.flush();
+    }
+
+    /**
+     * Stops the compression threads of the current entry, if any, after an error.
+     */
+    public void shutdown()
+    {
+        if (currentStream != null)
+            currentStream.shutdown();
+    }
+
+    /**
+     * Finishes the entry being streamed, writing its data descriptor.
+     * @throws IOException error writing the entry.
+     */
+    private void closeEntry() throws IOException
+    {
+        if (currentStream == null)
+            return;
+        currentStream.finish();
+        currentEntry.crc = currentStream.getCrc();
+        currentEntry.compressedSize = currentStream.getCompressedSize();
+        currentEntry.uncompressedSize = currentStream.getUncompressedSize();
+        writeInt(DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(currentEntry.crc);
+        writeLong(currentEntry.compressedSize);
+        writeLong(currentEntry.uncompressedSize);
+        entries.add(currentEntry);
+        currentStream = null;
+        currentEntry = null;
+    }
+
+    /**
+     * Writes the local header of an entry.
+     * @param entry entry.
+     * @param streamed true if CRC and sizes follow the data in a Zip64 data descriptor.
+     * @throws IOException error writing the header.
+     */
+    private void writeLocalHeader(final Entry entry, final boolean streamed) throws IOException
+    {
+        byte [] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(streamed ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeShort(0);
+        writeShort(DOS_DATE);
+        writeInt(streamed ? 0 : entry.crc);
+        writeInt(streamed ? MAX_32 : entry.compressedSize);
+        writeInt(streamed ? MAX_32 : entry.uncompressedSize);
+        writeShort(name.length);
+        writeShort(streamed ? 20 : 0);
+        out.write(name);
+        if (streamed)
+        {
+            // sizes are in the data descriptor
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+    }
+
+    /**
+     * Writes the central directory header of an entry.
+     * @param entry entry.
+     * @return true if Zip64 fields were needed.
+     * @throws IOException error writing the header.
+     */
+    private boolean writeCentralHeader(final Entry entry) throws IOException
+    {
+        boolean bigUncompressed = entry.uncompressedSize >= MAX_32;
+        boolean bigCompressed = entry.compressedSize >= MAX_32;
+        boolean bigOffset = entry.offset >= MAX_32;
+        int extraSize = (bigUncompressed ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+
+        byte [] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        writeInt(CENTRAL_HEADER_SIGNATURE);
+        writeShort(VERSION_ZIP64);
+        writeShort(entry.zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeShort(0);
+        writeShort(DOS_DATE);
+        writeInt(entry.crc);
+        writeInt(Math.min(entry.compressedSize, MAX_32));
+        writeInt(Math.min(entry.uncompressedSize, MAX_32));
+        writeShort(name.length);
+        writeShort(extraSize > 0 ? extraSize + 4 : 0);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(Math.min(entry.offset, MAX_32));
+        out.write(name);
+        if (extraSize > 0)
+        {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(extraSize);
+            if (bigUncompressed)
+                writeLong(entry.uncompressedSize);
+            if (bigCompressed)
+                writeLong(entry.compressedSize);
+            if (bigOffset)
+                writeLong(entry.offset);
+        }
+        return extraSize > 0;
+    }
+
+    private void writeShort(final int value) throws IOException
+    {
+        out.write(value);
+        out.write(value >>> 8);
+    }
+
+    private void writeInt(final long value) throws IOException
+    {
+        writeShort((int) value & MAX_16);
+        writeShort((int) (value >>> 16) & MAX_16);
+    }
+
+    private void writeLong(final long value) throws IOException
+    {
+        writeInt(value & MAX_32);
+        writeInt(value >>> 32);
+    }
+
+    /**
+     * An entry of the zip file.
+     */
+    private static final class Entry
+    {
+        final String name;
+
+        final int method;
+
+        final int flags;
+
+        /** Offset of the local header. */
+        final long offset;
+
+        long crc;
+
+        long compressedSize;
+
+        long uncompressedSize;
+
+        /** True if the local header has Zip64 fields. */
+        boolean zip64;
+
+        Entry(final String name, final int method, final int flags, final long offset)
+        {
+            this.name = name;
+            this.method = method;
+            this.flags = flags | FLAG_UTF8;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Output stream that counts the bytes written, to know the offset of each structure.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        long count;
+
+        CountingOutputStream(final OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package it.davideorlandi.lithophanizer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the generation hot path stays within a budget of bytes allocated, measured with the
+ * allocation counter of the current thread on a synthetic image.
+ * <p>
+ * There are three budgets, set with the system properties allocation.sampling,
+ * allocation.geometry and allocation.serialization (see the pom): sampling, in bytes per pixel
+ * read from a brightness plane; geometry, in bytes per triangle passed to a sink, counted from the
+ * first triangle so that decoding and planning are left out; serialization, in bytes per triangle
+ * written to a binary STL stream beyond those of the geometry. Each measurement is repeated and
+ * the smallest result is kept, so that the runs before the JIT compiler has optimized the code do
+ * not count.
+ * </p>
+ */
+class AllocationBudgetTest
+{
+    /** Width of the synthetic image. */
+    private static final int WIDTH = 1024;
+
+    /** Height of the synthetic image. */
+    private static final int HEIGHT = 640;
+
+    /** Number of runs of each measurement. */
+    private static final int RUNS = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @TempDir
+    static Path directory;
+
+    private static BufferedImage image;
+
+    private static File imageFile;
+
+    /**
+     * Enables the allocation counters and writes the synthetic image: a diagonal gradient with
+     * noise, so that neighbouring pixels differ as in a photo.
+     * @throws IOException error writing the image.
+     */
+    @BeforeAll
+    static void setUp() throws IOException
+    {
+        assertTrue(THREADS.isThreadAllocatedMemorySupported(),
+                "This JVM does not count the memory allocated by threads");
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(42);
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++)
+            {
+                int base = (255 * (x + y)) / (WIDTH + HEIGHT);
+                int r = Math.max(0, Math.min(255, (base + random.nextInt(32)) - 16));
+                int g = Math.max(0, Math.min(255, (base + random.nextInt(32)) - 16));
+                int b = Math.max(0, Math.min(255, (base + random.nextInt(32)) - 16));
+                image.setRGB(x, y, 0xFF000000 | (r << 16) | (g << 8) | b);
+            }
+        }
+        imageFile = directory.resolve("synthetic.png").toFile();
+        ImageIO.write(image, "png", imageFile);
+    }
+
+    /**
+     * Reading the brightness of the pixels allocates nothing.
+     */
+    @Test
+    void sampling()
+    {
+        BrightnessPlane plane = BrightnessPlane.fromImage(image);
+        double bytes = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++)
+        {
+            bytes = Math.min(bytes, measureSampling(plane));
+        }
+        check("sampling", bytes, "pixel");
+    }
+
+    /**
+     * Generating the triangles allocates nothing for each triangle.
+     * @throws IOException error reading the image.
+     */
+    @Test
+    void geometry() throws IOException
+    {
+        double bytes = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++)
+        {
+            bytes = Math.min(bytes, measureGeometry());
+        }
+        check("geometry", bytes, "triangle");
+    }
+
+    /**
+     * Writing the triangles as binary STL allocates nothing for each triangle.
+     * @throws IOException error reading the image.
+     */
+    @Test
+    void serialization() throws IOException
+    {
+        double geometry = Double.MAX_VALUE;
+        double stl = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++)
+        {
+            geometry = Math.min(geometry, measureGeometry());
+            stl = Math.min(stl, measureStl());
+        }
+        check("serialization", Math.max(0.0, stl - geometry), "triangle");
+    }
+
+    /**
+     * Compares a measurement with its budget.
+     * @param name name of the measurement, and of its budget property after "allocation.".
+     * @param bytes bytes allocated per unit.
+     * @param unit unit.
+     */
+    private static void check(final String name, final double bytes, final String unit)
+    {
+        double budget = Double.parseDouble(System.getProperty("allocation." + name, "0"));
+        String result = String.format(Locale.US, "%s: %.3f bytes/%s (budget %.3f)", name, bytes,
+                unit, budget);
+        assertTrue(bytes <= budget, result);
+    }
+
+    /**
+     * Measures the bytes allocated reading all the pixels of an image.
+     * @param source image.
+     * @return bytes per pixel.
+     */
+    private static double measureSampling(final BrightnessSource source)
+    {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        long sum = 0;
+        long start = THREADS.getCurrentThreadAllocatedBytes();
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                sum += source.get(x, y);
+            }
+        }
+        long bytes = THREADS.getCurrentThreadAllocatedBytes() - start;
+        // use the sum, so that the reads are not eliminated
+        assertTrue(sum >= 0, "Negative brightness");
+        return (double) bytes / ((long) width * height);
+    }
+
+    /**
+     * Measures the bytes allocated generating the triangles of the model.
+     * @return bytes per triangle.
+     * @throws IOException error reading the image.
+     */
+    private static double measureGeometry() throws IOException
+    {
+        CountingSink sink = new CountingSink();
+        createLithophanizer().generateLithophane(sink);
+        long bytes = THREADS.getCurrentThreadAllocatedBytes() - sink.startBytes;
+        return (double) bytes / sink.triangles;
+    }
+
+    /**
+     * Measures the bytes allocated generating and writing the model as binary STL.
+     * @return bytes per triangle.
+     * @throws IOException error reading the image.
+     */
+    private static double measureStl() throws IOException
+    {
+        Lithophanizer lithophanizer = createLithophanizer();
+        CountingOutputStream stream = new CountingOutputStream();
+        lithophanizer.generateLithophane(stream);
+        long bytes = THREADS.getCurrentThreadAllocatedBytes() - stream.startBytes;
+        return (double) bytes / lithophanizer.getTriangleCount();
+    }
+
+    /**
+     * Creates a lithophanizer generating on the current thread.
+     * @return lithophanizer.
+     */
+    private static Lithophanizer createLithophanizer()
+    {
+        Lithophanizer lithophanizer = new Lithophanizer(imageFile, null, 60.0, 0.6, 3.0, 3.0,
+                3.0, 2.0, 3.0, 3.0, 2.0, RoughFace.BOTH);
+        lithophanizer.setVerbose(false);
+        lithophanizer.setThreads(1);
+        return lithophanizer;
+    }
+
+    /**
+     * Sink that counts the triangles, noting the allocated bytes at the first one.
+     */
+    private static final class CountingSink implements MeshSink
+    {
+        private long startBytes;
+
+        private long triangles;
+
+        @Override
+        public void addTriangle(final Perimeter p1, final int i1, final Perimeter p2,
+                final int i2, final Perimeter p3, final int i3)
+        {
+            if (triangles == 0)
+                startBytes = THREADS.getCurrentThreadAllocatedBytes();
+            triangles++;
+        }
+    }
+
+    /**
+     * Output stream that discards the bytes, noting the allocated bytes at the first write.
+     */
+    private static final class CountingOutputStream extends OutputStream
+    {
+        private long startBytes = -1;
+
+        @Override
+        public void write(final int b)
+        {
+            start();
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len)
+        {
+            start();
+        }
+
+        /**
+         * Notes the allocated bytes, if not done yet.
+         */
+        private void start()
+        {
+            if (startBytes < 0)
+                startBytes = THREADS.getCurrentThreadAllocatedBytes();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package it.davideorlandi.lithophanizer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Validation of the meshes read back from binary STL files: a tetrahedron, whole or damaged.
+ */
+class MeshValidatorTest
+{
+    /** Vertices of the tetrahedron: the origin and a point on each axis. */
+    private static final float [][] VERTICES = {{0, 0, 0}, {10, 0, 0}, {0, 10, 0}, {0, 0, 10}};
+
+    /** Faces of the tetrahedron, counterclockwise seen from outside. */
+    private static final int [][] FACES = {{0, 2, 1}, {0, 1, 3}, {0, 3, 2}, {1, 2, 3}};
+
+    /**
+     * A closed tetrahedron is valid.
+     * @throws IOException error reading the model.
+     */
+    @Test
+    void closedMeshIsValid() throws IOException
+    {
+        MeshValidator.Report report = validate(createStl(FACES, 0.0f));
+        assertTrue(report.isValid(), report.toString());
+        assertEquals(4, report.triangles());
+        assertEquals(6, report.edges());
+    }
+
+    /**
+     * Vertices closer than a micrometer are the same vertex, as for a slicer.
+     * @throws IOException error reading the model.
+     */
+    @Test
+    void nearbyVerticesAreMerged() throws IOException
+    {
+        MeshValidator.Report report = validate(createStl(FACES, 1e-4f));
+        assertTrue(report.isValid(), report.toString());
+    }
+
+    /**
+     * A tetrahedron with a missing face and a flipped one is invalid.
+     * @throws IOException error reading the model.
+     */
+    @Test
+    void holeAndFlippedTriangleAreInvalid() throws IOException
+    {
+        // bottom face flipped, slanted face missing
+        int [][] faces = {{0, 1, 2}, {0, 1, 3}, {0, 3, 2}};
+        MeshValidator.Report report = validate(createStl(faces, 0.0f));
+        assertFalse(report.isValid(), report.toString());
+        assertEquals(3, report.triangles());
+        assertTrue(report.openEdges() > 0, report.toString());
+        assertTrue(report.flippedEdges() > 0, report.toString());
+        assertEquals(0, report.firstProblemTriangle());
+    }
+
+    /**
+     * A file with fewer triangles than declared is not read.
+     * @throws IOException error writing the model.
+     */
+    @Test
+    void truncatedFileIsRejected() throws IOException
+    {
+        byte [] stl = createStl(FACES, 0.0f);
+        byte [] truncated = Arrays.copyOf(stl, stl.length - Triangle.BINARY_SIZE);
+        assertThrows(IOException.class, () -> validate(truncated));
+    }
+
+    /**
+     * Writes a binary STL file with some faces of the tetrahedron.
+     * @param faces faces, as indices of {@link #VERTICES}.
+     * @param shift offset added to the coordinates of the top vertex in the last face only.
+     * @return file content.
+     * @throws IOException error writing the model.
+     */
+    private static byte [] createStl(final int [][] faces, final float shift) throws IOException
+    {
+        Stl stl = new Stl("tetrahedron");
+        for (int f = 0; f < faces.length; f++)
+        {
+            float [][] v = new float [3][];
+            for (int i = 0; i < 3; i++)
+            {
+                v[i] = VERTICES[faces[f][i]].clone();
+                if ((f == faces.length - 1) && (faces[f][i] == 3))
+                    v[i][2] += shift;
+            }
+            stl.addTriangle(v[0][0], v[0][1], v[0][2], v[1][0], v[1][1], v[1][2], v[2][0],
+                    v[2][1], v[2][2]);
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stl.writeBinary(stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Reads back a binary STL file and validates its mesh.
+     * @param stl file content.
+     * @return validation result.
+     * @throws IOException error reading the model.
+     */
+    private static MeshValidator.Report validate(final byte [] stl) throws IOException
+    {
+        MeshValidator validator = new MeshValidator();
+        MeshReader.read(new ByteArrayInputStream(stl), MeshFormat.STL, validator);
+        return validator.getReport();
+    }
+}
@@ -0,0 +1,200 @@
+package it.davideorlandi.lithophanizer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Eviction of the least recently used models and handling of evicted and abandoned files.
+ */
+class ResultCacheTest
+{
+    /** Size of each test model. */
+    private static final int MODEL_SIZE = 100;
+
+    private static final String KEY_A = "aa";
+
+    private static final String KEY_B = "bb";
+
+    private static final String KEY_C = "cc";
+
+    @TempDir
+    Path directory;
+
+    /**
+     * The least recently used model is evicted, and fetching a model marks it as used.
+     * @throws IOException error accessing the cache.
+     */
+    @Test
+    void evictsLeastRecentlyUsed() throws IOException
+    {
+        ResultCache cache = new ResultCache(getCacheDirectory(), (2 * MODEL_SIZE) + 50);
+        cache.store(KEY_A, createModel('a'));
+        cache.store(KEY_B, createModel('b'));
+        // A stored first, but used after B
+        setUsed(KEY_A, 2000);
+        setUsed(KEY_B, 1000);
+        assertTrue(cache.fetch(KEY_A, new ByteArrayOutputStream()));
+
+        cache.store(KEY_C, createModel('c'));
+
+        assertFalse(Files.exists(getCacheDirectory().toPath().resolve(KEY_B)));
+        assertArrayEquals(getContent('a'), fetch(cache, KEY_A));
+        assertArrayEquals(getContent('c'), fetch(cache, KEY_C));
+    }
+
+    /**
+     * Fetching an evicted model reports it as missing and writes nothing.
+     * @throws IOException error accessing the cache.
+     */
+    @Test
+    void fetchAfterEvict() throws IOException
+    {
+        ResultCache cache = new ResultCache(getCacheDirectory(), MODEL_SIZE + 50);
+        cache.store(KEY_A, createModel('a'));
+        setUsed(KEY_A, 1000);
+        cache.store(KEY_B, createModel('b'));
+
+        File output = directory.resolve("output.stl").toFile();
+        assertFalse(cache.fetch(KEY_A, output));
+        assertFalse(output.exists());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        assertFalse(cache.fetch(KEY_A, stream));
+        assertEquals(0, stream.size());
+
+        assertTrue(cache.fetch(KEY_B, output));
+        assertArrayEquals(getContent('b'), Files.readAllBytes(output.toPath()));
+    }
+
+    /**
+     * The newest model is kept even if larger than the limit, until a newer one is added.
+     * @throws IOException error accessing the cache.
+     */
+    @Test
+    void keepsNewestModelLargerThanLimit() throws IOException
+    {
+        ResultCache cache = new ResultCache(getCacheDirectory(), MODEL_SIZE / 2);
+        cache.store(KEY_A, createModel('a'));
+        assertArrayEquals(getContent('a'), fetch(cache, KEY_A));
+
+        setUsed(KEY_A, 1000);
+        cache.store(KEY_B, createModel('b'));
+        assertFalse(cache.fetch(KEY_A, new ByteArrayOutputStream()));
+        assertArrayEquals(getContent('b'), fetch(cache, KEY_B));
+    }
+
+    /**
+     * Temporary files older than a day are deleted when a model is added; recent ones, possibly
+     * being written by another process, are kept.
+     * @throws IOException error accessing the cache.
+     */
+    @Test
+    void deletesAbandonedTemporaryFiles() throws IOException
+    {
+        File cacheDirectory = getCacheDirectory();
+        ResultCache cache = new ResultCache(cacheDirectory, 10 * MODEL_SIZE);
+        Path abandoned = cacheDirectory.toPath().resolve("tmp-abandoned.part");
+        Path recent = cacheDirectory.toPath().resolve("tmp-recent.part");
+        Files.write(abandoned, getContent('x'));
+        Files.write(recent, getContent('y'));
+        Files.setLastModifiedTime(abandoned,
+                FileTime.fromMillis(System.currentTimeMillis() - (48L * 60 * 60 * 1000)));
+
+        cache.store(KEY_A, createModel('a'));
+
+        assertFalse(Files.exists(abandoned));
+        assertTrue(Files.exists(recent));
+    }
+
+    /**
+     * An entry closed without committing is not added.
+     * @throws IOException error accessing the cache.
+     */
+    @Test
+    void discardsUncommittedEntry() throws IOException
+    {
+        ResultCache cache = new ResultCache(getCacheDirectory(), 10 * MODEL_SIZE);
+        try (ResultCache.Writer writer = cache.startEntry(KEY_A))
+        {
+            writer.write(getContent('a'));
+        }
+        assertFalse(cache.fetch(KEY_A, new ByteArrayOutputStream()));
+        try (Stream<Path> files = Files.list(getCacheDirectory().toPath()))
+        {
+            assertTrue(files.noneMatch(path -> path.getFileName().toString().startsWith("tmp-")));
+        }
+    }
+
+    /**
+     * Returns the cache directory.
+     * @return directory.
+     */
+    private File getCacheDirectory()
+    {
+        return directory.resolve("cache").toFile();
+    }
+
+    /**
+     * Sets the last use of a model in the past.
+     * @param key model key.
+     * @param secondsAgo time since the last use.
+     * @throws IOException error setting the time.
+     */
+    private void setUsed(final String key, final long secondsAgo) throws IOException
+    {
+        Files.setLastModifiedTime(getCacheDirectory().toPath().resolve(key),
+                FileTime.fromMillis(System.currentTimeMillis() - (secondsAgo * 1000)));
+    }
+
+    /**
+     * Writes a test model.
+     * @param fill byte repeated in the model.
+     * @return model file.
+     * @throws IOException error writing the file.
+     */
+    private File createModel(final char fill) throws IOException
+    {
+        Path model = directory.resolve("model-" + fill);
+        Files.write(model, getContent(fill));
+        return model.toFile();
+    }
+
+    /**
+     * Returns the content of a test model.
+     * @param fill byte repeated in the model.
+     * @return content.
+     */
+    private static byte [] getContent(final char fill)
+    {
+        byte [] content = new byte [MODEL_SIZE];
+        Arrays.fill(content, (byte) fill);
+        return content;
+    }
+
+    /**
+     * Fetches a model to memory.
+     * @param cache cache.
+     * @param key model key.
+     * @return content.
+     * @throws IOException error reading the model.
+     */
+    private static byte [] fetch(final ResultCache cache, final String key) throws IOException
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        assertTrue(cache.fetch(key, stream), "Model " + key + " not cached");
+        return stream.toByteArray();
+    }
+}